@@ -124,6 +124,14 @@ public class GenerateSum100 {
         int endAddr = out.currentCodeAddress();
         out.reviseAInstr(jumpEndInstructionAddr, endAddr);
 
+        // Stop, by looping forever.
+        out.emitHalt();
+
+        // Optionally let the peephole optimizer clean up the worst of it.
+        if (args.length > 0 && args[0].equals("-O")) {
+            xpres2.Peephole.optimize(out);
+        }
+
         // Output result
         Writer w = new OutputStreamWriter(new FileOutputStream("generatedSum100.hack"), "US-ASCII");
         out.outputCode(w);
@@ -0,0 +1,92 @@
+package xpres2;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of compiling the statements of a program to Hack code, and of
+ * writing the code. The parameters are the number of statements in the
+ * program (see GenerateXpres) and the compile options. Running the code is in
+ * EmulateBench.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodeBench {
+    private static final String Name = "bench.x2";
+
+    @Param({"100", "1000", "10000"})
+    public int statements;
+
+    @Param({"", "-O"})
+    public String options;
+
+    private List<Stmt> program;
+    private CompileOptions opts;
+    private HackGen gen;
+    private PrintStream discard;
+
+    // Takes all bytes written, and does nothing with them.
+    private final WritableByteChannel nullChannel = new WritableByteChannel() {
+        public int write(ByteBuffer b) {
+            int n = b.remaining();
+            b.position(b.limit());
+            return n;
+        }
+
+        public boolean isOpen() { return true; }
+
+        public void close() { }
+    };
+
+    @Setup
+    public void setup() throws IOException {
+        discard = new PrintStream(OutputStream.nullOutputStream());
+        program = DescentParser.parse(Name, new StringReader(GenerateXpres.program(statements, 1)), discard);
+        opts = new CompileOptions();
+        opts.parse(options.isEmpty() ? new String[0] : options.split(" "));
+        gen = compile();
+    }
+
+    /** Compiles the statements, and finishes the code, as CompileXpres does
+      * before writing it. */
+    @Benchmark
+    public HackGen compile() {
+        HackGen gen = new HackGen(1024, opts.staticStack);
+        Compiler compiler = new Compiler(Name, gen, opts);
+        compiler.setErrorStream(discard);
+        compiler.begin();
+        for (Stmt s : program) {
+            compiler.statement(s);
+        }
+        compiler.end();
+        gen.finishLayout();
+        if (opts.peephole) Peephole.optimize(gen);
+        return gen;
+    }
+
+    /** Writes the code in the .hack format, to a Writer. */
+    @Benchmark
+    public void outputCode() throws IOException {
+        gen.outputCode(Writer.nullWriter());
+    }
+
+    /** Writes the code in the .hack format, to a channel. */
+    @Benchmark
+    public void outputCodeChannel() throws IOException {
+        gen.outputCode(nullChannel);
+    }
+
+    /** Writes the code in the binary .hackb format. */
+    @Benchmark
+    public void outputBinary() throws IOException {
+        gen.outputBinary(nullChannel);
+    }
+}
@@ -0,0 +1,71 @@
+package xpres2;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark of running compiled code on HackCpu. The parameters are the
+ * number of statements in the program (see GenerateXpres) and the compile
+ * options. The sizes are smaller than in the other benchmarks, since the
+ * code has to fit in the 32K words of the ROM. Constant propagation is left
+ * out of the optimizations, as it would reduce the programs, which have no
+ * input, to prints of constants. The code is run an instruction at a time,
+ * or translated to JVM bytecode (see HackTranslator).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmulateBench {
+    private static final String Name = "bench.x2";
+
+    // Instructions to execute before giving up on the program stopping.
+    private static final long MaxCycles = 100000000L;
+
+    @Param({"100", "500"})
+    public int statements;
+
+    @Param({"", "-O -no-propagate"})
+    public String options;
+
+    @Param({"false", "true"})
+    public boolean translate;
+
+    private HackCpu cpu;
+
+    @Setup
+    public void setup() throws IOException {
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        CompileOptions opts = new CompileOptions();
+        opts.parse(options.isEmpty() ? new String[0] : options.split(" "));
+        HackGen gen = new HackGen(1024, opts.staticStack);
+        Compiler compiler = new Compiler(Name, gen, opts);
+        compiler.setErrorStream(discard);
+        compiler.begin();
+        for (Stmt s : DescentParser.parse(Name, new StringReader(GenerateXpres.program(statements, 1)), discard)) {
+            compiler.statement(s);
+        }
+        compiler.end();
+        gen.finishLayout();
+        if (opts.peephole) Peephole.optimize(gen);
+        if (gen.currentCodeAddress() > HackCpu.RamSize) {
+            throw new IllegalStateException(Name + ": " + gen.currentCodeAddress() + " instructions do not fit");
+        }
+        cpu = new HackCpu(gen);
+        if (translate) cpu.translate();
+        if (!cpu.run(MaxCycles)) {
+            throw new IllegalStateException(Name + ": did not halt");
+        }
+    }
+
+    /** Runs the code from the start until it halts. */
+    @Benchmark
+    public long emulate() {
+        cpu.reset();
+        cpu.run(MaxCycles);
+        return cpu.getCycles();
+    }
+}
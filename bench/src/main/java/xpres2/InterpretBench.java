@@ -0,0 +1,43 @@
+package xpres2;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark of running the statements of a program with Interpreter, with
+ * what it prints thrown away. The parameter is the number of statements in
+ * the program (see GenerateXpres).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterpretBench {
+    private static final String Name = "bench.x2";
+
+    @Param({"100", "1000", "10000"})
+    public int statements;
+
+    private List<Stmt> program;
+    private PrintStream discard;
+
+    @Setup
+    public void setup() throws IOException {
+        discard = new PrintStream(OutputStream.nullOutputStream());
+        program = DescentParser.parse(Name, new StringReader(GenerateXpres.program(statements, 1)), discard);
+    }
+
+    /** Runs the statements with a new Interpreter. */
+    @Benchmark
+    public Interpreter interpret() {
+        Interpreter in = new Interpreter(Name, discard, discard);
+        for (Stmt s : program) {
+            in.execute(s);
+        }
+        return in;
+    }
+}
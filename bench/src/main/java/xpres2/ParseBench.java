@@ -0,0 +1,85 @@
+package xpres2;
+
+import xpres2.grammar.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.antlr.v4.runtime.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of reading programs: lexing and parsing with ANTLR, building
+ * the statements from the parse tree (see TreeBuilder), and parsing with
+ * DescentParser. The parameter is the number of statements in the program
+ * (see GenerateXpres).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBench {
+    private static final String Name = "bench.x2";
+
+    @Param({"100", "1000", "10000"})
+    public int statements;
+
+    private String text;
+    private XpresParser.CodeContext tree;
+    private PrintStream err;
+
+    @Setup
+    public void setup() {
+        text = GenerateXpres.program(statements, 1);
+        err = new PrintStream(OutputStream.nullOutputStream());
+        tree = parser().file().code();
+    }
+
+    private XpresLexer lexer() {
+        XpresLexer lexer = new XpresLexer(CharStreams.fromString(text, Name));
+        TreeBuilder.reportErrors(lexer, new TreeBuilder.SyntaxErrors(Name, err));
+        return lexer;
+    }
+
+    private XpresParser parser() {
+        XpresParser parser = new XpresParser(new CommonTokenStream(lexer()));
+        TreeBuilder.reportErrors(parser, new TreeBuilder.SyntaxErrors(Name, err));
+        return parser;
+    }
+
+    /** Reads all the tokens with the ANTLR lexer. */
+    @Benchmark
+    public int lex() {
+        XpresLexer lexer = lexer();
+        int n = 0;
+        while (lexer.nextToken().getType() != Token.EOF) {
+            n++;
+        }
+        return n;
+    }
+
+    /** Makes the parse tree with the ANTLR parser. */
+    @Benchmark
+    public XpresParser.FileContext parse() {
+        return parser().file();
+    }
+
+    /** Makes the statements from a parse tree. */
+    @Benchmark
+    public List<Stmt> buildTree() {
+        return TreeBuilder.program(tree);
+    }
+
+    /** Reads the statements with the ANTLR parser, as CompileXpres does. */
+    @Benchmark
+    public List<Stmt> antlrStatements() throws IOException {
+        return TreeBuilder.parse(Name, new StringReader(text), err);
+    }
+
+    /** Reads the statements with DescentParser, as CompileXpres -descent does. */
+    @Benchmark
+    public List<Stmt> descentStatements() throws IOException {
+        return DescentParser.parse(Name, new StringReader(text), err);
+    }
+}
@@ -6,8 +6,7 @@ package xpres.grammar;
 }
 
 code
-: statement ';' code
-| EOF                           // implicitly defined terminal
+: (statement ';')* EOF          // EOF is implicitly defined
 ;
 
 statement
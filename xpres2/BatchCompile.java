@@ -0,0 +1,168 @@
+package xpres2;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Compiles many files in parallel, for CompileXpres -batch. Each file is
+ * compiled by a job of its own, with its own HackGen and Compiler, on a fixed
+ * number of threads. The ANTLR parsers share their prediction (DFA) cache,
+ * which is static per grammar, so it warms up once for all files.
+ *
+ * The diagnostics of each file are collected while it is compiled, and
+ * printed together when it is done, in the order of the files. At the end a
+ * summary of the time taken is printed, with the slowest files.
+ */
+class BatchCompile {
+    // The number of slowest files listed in the summary.
+    private static final int Slowest = 5;
+
+    /** A file to compile, and the result. */
+    private static class Job {
+        final String infnam;
+        final File in, out;
+        String diagnostics;
+        int status;
+        long nanos;
+
+        Job(String infnam, File in, File out) {
+            this.infnam = infnam;
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    private BatchCompile() { }
+
+    /** Compiles the files given by inputs to outdir, and returns the highest
+      * exit status of any of them. An input is a file, a directory that is
+      * searched for .x2 files, or @ and the name of a file that lists files,
+      * one per line. Relative names are relative to dir, if not null. The
+      * cache is used if not null. */
+    static int run(String[] inputs, File outdir, File dir, final CompileOptions opts, final CompileCache cache,
+                   PrintStream err)
+        throws IOException
+    {
+        ArrayList<Job> jobs = new ArrayList<Job>();
+        for (String input : inputs) {
+            if (input.startsWith("@")) {
+                BufferedReader r = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(XpresServer.resolve(dir, input.substring(1))), "UTF-8"));
+                try {
+                    for (String line = r.readLine(); line != null; line = r.readLine()) {
+                        line = line.trim();
+                        if (!line.isEmpty()) addFile(jobs, line, dir, outdir);
+                    }
+                } finally {
+                    r.close();
+                }
+            } else if (XpresServer.resolve(dir, input).isDirectory()) {
+                addDir(jobs, input, XpresServer.resolve(dir, input), "", outdir);
+            } else {
+                addFile(jobs, input, dir, outdir);
+            }
+        }
+        HashSet<File> outs = new HashSet<File>();
+        for (Job j : jobs) {
+            if (!outs.add(j.out)) {
+                err.println(j.infnam + ": another file is also compiled to " + j.out);
+                return 2;
+            }
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(opts.batch);
+        ArrayList<Future<Job>> results = new ArrayList<Future<Job>>();
+        for (final Job j : jobs) {
+            results.add(pool.submit(new Callable<Job>() {
+                public Job call() {
+                    compile(j, opts, cache);
+                    return j;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        int status = 0, failed = 0;
+        for (Future<Job> f : results) {
+            Job j;
+            try {
+                j = f.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            err.print(j.diagnostics);
+            if (!j.diagnostics.isEmpty() || j.status != 0) failed++;
+            status = Math.max(status, j.status);
+        }
+        summary(jobs, System.nanoTime() - start, failed, opts.batch, err);
+        return status;
+    }
+
+    private static void addFile(List<Job> jobs, String name, File dir, File outdir) {
+        jobs.add(new Job(name, XpresServer.resolve(dir, name), new File(outdir, hackName(new File(name).getName()))));
+    }
+
+    /** Adds the .x2 files in the directory d, named infnam, whose path below
+      * the directory given as input is rel. */
+    private static void addDir(List<Job> jobs, String infnam, File d, String rel, File outdir) {
+        String[] names = d.list();
+        if (names == null) return;
+        Arrays.sort(names);
+        for (String name : names) {
+            File f = new File(d, name);
+            String n = infnam + File.separator + name, r = rel + name;
+            if (f.isDirectory()) {
+                addDir(jobs, n, f, r + File.separator, outdir);
+            } else if (name.endsWith(".x2")) {
+                jobs.add(new Job(n, f, new File(outdir, hackName(r))));
+            }
+        }
+    }
+
+    private static String hackName(String name) {
+        if (name.endsWith(".x2")) name = name.substring(0, name.length() - 3);
+        return name + ".hack";
+    }
+
+    private static void compile(Job j, CompileOptions opts, CompileCache cache) {
+        ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+        PrintStream err = new PrintStream(diagnostics);
+        PrintStream discard = new PrintStream(new ByteArrayOutputStream());
+        long start = System.nanoTime();
+        try {
+            File parent = j.out.getParentFile();
+            if (parent != null) parent.mkdirs();
+            j.status = CompileXpres.compileFile(j.infnam, j.in, j.out.getPath(), opts, cache, discard, err);
+        } catch (Exception e) {
+            err.println(j.infnam + ": " + e);
+            j.status = 1;
+        }
+        j.nanos = System.nanoTime() - start;
+        err.flush();
+        j.diagnostics = diagnostics.toString();
+    }
+
+    private static void summary(List<Job> jobs, long wall, int failed, int threads, PrintStream err) {
+        long total = 0;
+        for (Job j : jobs) {
+            total += j.nanos;
+        }
+        err.printf("batch: %d files in %.3f s on %d threads, %d with errors%n",
+                   jobs.size(), wall / 1e9, threads, failed);
+        if (jobs.isEmpty()) return;
+        err.printf("  %.3f s compiling, %.3f ms per file%n", total / 1e9, total / 1e6 / jobs.size());
+        ArrayList<Job> slow = new ArrayList<Job>(jobs);
+        Collections.sort(slow, new Comparator<Job>() {
+            public int compare(Job a, Job b) {
+                return Long.compare(b.nanos, a.nanos);
+            }
+        });
+        for (int i = 0; i < Slowest && i < slow.size(); i++) {
+            err.printf("  %9.3f ms  %s%n", slow.get(i).nanos / 1e6, slow.get(i).infnam);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package xpres2;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.io.*;
+
+/**
+ * A program lowered to a flat form for fast interpretation, as an alternative
+ * to Interpreter. Variables are resolved to slot numbers once, when lowering,
+ * and the program becomes an int array of instructions for a stack machine,
+ * each an opcode followed by its operand, if it has one. Running it uses an
+ * int array for the variables and another for the operand stack, so nothing
+ * is allocated per statement. Printed values are formatted directly into a
+ * byte buffer. Loops and if statements become jumps, with the target address
+ * as the operand; a conditional jump compares the top two values (see Cond).
+ *
+ * Values are ints, as in Interpreter, and expressions are folded first. The
+ * test of a loop also checks if the thread has been interrupted, and if so
+ * stops with a CancellationException (for XpresServer).
+ */
+public class Bytecode {
+    // Opcodes. The ones ending with C and V have a constant or a variable's
+    // slot as their right operand, instead of the top of the stack.
+    private static final int CONST = 0;     // push constant
+    private static final int LOAD = 1;      // push variable
+    private static final int STORE = 2;     // pop into variable
+    private static final int PRINT = 3;     // pop and print
+    private static final int ADD = 4;
+    private static final int MUL = 5;
+    private static final int ADDC = 6;
+    private static final int MULC = 7;
+    private static final int ADDV = 8;
+    private static final int MULV = 9;
+    private static final int JUMP = 10;     // jump to operand
+    private static final int JLT = 11;      // pop two, and jump if the comparison holds
+    private static final int JLE = 12;
+    private static final int JGT = 13;
+    private static final int JGE = 14;
+    private static final int JEQ = 15;
+    private static final int JNE = 16;
+    private static final int CHECK = 17;    // stop if the thread is interrupted (at the test of a loop)
+
+    private final String infnam;
+    private final PrintStream err;
+
+    private int[] code = new int[256];
+    private int codeSize = 0;
+    private int depth = 0, maxDepth = 0;
+
+    // The slot of each declared variable (a new one for each declaration).
+    private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+    private int numSlots = 0;
+
+    private final Expr.Resolver resolver = new Expr.Resolver() {
+        public int resolve(String name, int line) {
+            Integer s = slots.get(name);
+            if (s == null) {
+                error(line, "undefined " + name);
+                return numSlots++;  // a slot of its own, like Interpreter
+            }
+            return s;
+        }
+    };
+
+    /** Lowers a program, reporting undefined and redefined variables to err. */
+    public Bytecode(String infnam, List<Stmt> program, PrintStream err) {
+        this.infnam = infnam;
+        this.err = err;
+        for (Stmt s : program) {
+            lower(s);
+        }
+    }
+
+    private void error(int line, String msg) {
+        err.println(infnam + ":" + line + ": " + msg);
+    }
+
+    /** Returns the number of ints in the lowered program. */
+    public int size() {
+        return codeSize;
+    }
+
+    private void lower(Stmt s) {
+        if (s instanceof Stmt.Decl) {
+            String name = ((Stmt.Decl) s).name;
+            if (slots.put(name, numSlots++) != null) {
+                error(s.line, "redefined " + name);
+            }
+        } else if (s instanceof Stmt.Assign) {
+            Stmt.Assign a = (Stmt.Assign) s;
+            lower(expr(a.expr));
+            emit(STORE, resolver.resolve(a.name, a.line), -1);
+        } else if (s instanceof Stmt.Print) {
+            lower(expr(((Stmt.Print) s).expr));
+            emit(PRINT, -1);
+        } else if (s instanceof Stmt.While) {
+            // The test is after the body, as in Compiler.
+            Stmt.While w = (Stmt.While) s;
+            Cond c = cond(w.cond);
+            int skip = jump(JUMP, 0);
+            int body = codeSize;
+            lower(w.body);
+            code[skip] = codeSize;
+            emit(CHECK, 0);
+            lowerBranch(c, c.op, body);
+        } else {
+            Stmt.If i = (Stmt.If) s;
+            Cond c = cond(i.cond);
+            int skip = lowerBranch(c, c.op.negate(), 0);
+            lower(i.thenPart);
+            if (!i.elsePart.isEmpty()) {
+                int end = jump(JUMP, 0);
+                code[skip] = codeSize;
+                lower(i.elsePart);
+                skip = end;
+            }
+            code[skip] = codeSize;
+        }
+    }
+
+    private void lower(List<Stmt> stmts) {
+        for (Stmt s : stmts) {
+            lower(s);
+        }
+    }
+
+    /** Emits a jump to target if the operands of c compare by op. Returns
+      * the position of the target, to fill in later. */
+    private int lowerBranch(Cond c, Cond.Op op, int target) {
+        lower(c.left);
+        lower(c.right);
+        changeDepth(-2);
+        return jump(JLT + op.ordinal(), target);
+    }
+
+    /** Emits a jump, and returns the position of its target. */
+    private int jump(int op, int target) {
+        add(op);
+        add(target);
+        return codeSize - 1;
+    }
+
+    private Cond cond(Cond c) {
+        c.resolve(resolver);
+        return c.fold();
+    }
+
+    private Expr expr(Expr e) {
+        e.resolve(resolver);
+        return e.fold();
+    }
+
+    /** Emits code that pushes the value of e. */
+    private void lower(Expr e) {
+        if (e instanceof Expr.Const) {
+            emit(CONST, ((Expr.Const) e).value, 1);
+        } else if (e instanceof Expr.Var) {
+            emit(LOAD, ((Expr.Var) e).slot, 1);
+        } else {
+            Expr.Binary b = (Expr.Binary) e;
+            boolean add = b.op == Expr.Op.ADD;
+            lower(b.left);
+            if (b.right instanceof Expr.Const) {
+                emit(add ? ADDC : MULC, ((Expr.Const) b.right).value, 0);
+            } else if (b.right instanceof Expr.Var) {
+                emit(add ? ADDV : MULV, ((Expr.Var) b.right).slot, 0);
+            } else {
+                lower(b.right);
+                emit(add ? ADD : MUL, -1);
+            }
+        }
+    }
+
+    private void emit(int op, int delta) {
+        add(op);
+        changeDepth(delta);
+    }
+
+    private void emit(int op, int operand, int delta) {
+        add(op);
+        add(operand);
+        changeDepth(delta);
+    }
+
+    private void add(int i) {
+        if (codeSize == code.length) {
+            code = Arrays.copyOf(code, 2 * codeSize);
+        }
+        code[codeSize++] = i;
+    }
+
+    private void changeDepth(int delta) {
+        depth += delta;
+        if (depth > maxDepth) maxDepth = depth;
+    }
+
+    /** Runs the program from the start, with all variables zero, writing
+      * printed values to out, one per line. */
+    public void run(OutputStream out) throws IOException {
+        final int[] code = this.code;
+        final int n = codeSize;
+        final int[] vars = new int[numSlots];
+        final int[] stack = new int[maxDepth];
+        final byte[] buf = new byte[8192];
+        int sp = 0, bp = 0;
+
+        int pc = 0;
+        while (pc < n) {
+            switch (code[pc++]) {
+            case CONST: stack[sp++] = code[pc++]; break;
+            case LOAD:  stack[sp++] = vars[code[pc++]]; break;
+            case STORE: vars[code[pc++]] = stack[--sp]; break;
+            case ADD:   sp--; stack[sp-1] += stack[sp]; break;
+            case MUL:   sp--; stack[sp-1] *= stack[sp]; break;
+            case ADDC:  stack[sp-1] += code[pc++]; break;
+            case MULC:  stack[sp-1] *= code[pc++]; break;
+            case ADDV:  stack[sp-1] += vars[code[pc++]]; break;
+            case MULV:  stack[sp-1] *= vars[code[pc++]]; break;
+            case JUMP:  pc = code[pc]; break;
+            case JLT:   sp -= 2; pc = stack[sp] < stack[sp+1] ? code[pc] : pc + 1; break;
+            case JLE:   sp -= 2; pc = stack[sp] <= stack[sp+1] ? code[pc] : pc + 1; break;
+            case JGT:   sp -= 2; pc = stack[sp] > stack[sp+1] ? code[pc] : pc + 1; break;
+            case JGE:   sp -= 2; pc = stack[sp] >= stack[sp+1] ? code[pc] : pc + 1; break;
+            case JEQ:   sp -= 2; pc = stack[sp] == stack[sp+1] ? code[pc] : pc + 1; break;
+            case JNE:   sp -= 2; pc = stack[sp] != stack[sp+1] ? code[pc] : pc + 1; break;
+            case CHECK:
+                if (Thread.currentThread().isInterrupted()) throw new CancellationException();
+                break;
+            case PRINT:
+                if (bp > buf.length - 12) {     // room for "-2147483648\n"
+                    out.write(buf, 0, bp);
+                    bp = 0;
+                }
+                bp = format(stack[--sp], buf, bp);
+                break;
+            default:
+                throw new IllegalStateException("bad opcode at " + (pc-1));
+            }
+        }
+        out.write(buf, 0, bp);
+        out.flush();
+    }
+
+    /** Writes v in decimal, and a newline, into buf at position p. Returns
+      * the position after. */
+    private static int format(int v, byte[] buf, int p) {
+        long x = v;     // so that -Integer.MIN_VALUE works
+        if (x < 0) {
+            buf[p++] = '-';
+            x = -x;
+        }
+        int digits = 1;
+        for (long t = x; t >= 10; t /= 10) digits++;
+        int end = p + digits;
+        for (int i = end - 1; i >= p; i--) {
+            buf[i] = (byte) ('0' + x % 10);
+            x /= 10;
+        }
+        buf[end] = '\n';
+        return end + 1;
+    }
+}
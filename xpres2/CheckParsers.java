@@ -0,0 +1,252 @@
+package xpres2;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks DescentParser against the ANTLR parser, parsing a statement at a
+ * time (StatementStream), on programs with syntax errors. The syntax errors
+ * reported, and the statements that are kept, with their line numbers, have
+ * to be the same.
+ *
+ * The programs are the files given, and generated programs (see
+ * GenerateXpres) into which errors are put: tokens put in, left out or
+ * replaced, at random. A line is reported per program: its name or seed,
+ * the number of errors, the number of statements kept, and the result.
+ *
+ * Usage: CheckParsers [-runs=N] [-mutations=N] [generator options] [file.x2 ...]
+ *
+ * Without files, -runs programs are generated (default 100), with -mutations
+ * errors each (default 3). Unless the generator options say otherwise, they
+ * have 20 statements, of which 15 percent are loops and 15 percent ifs. A
+ * generated program with the same seed and options is the same program,
+ * with the same errors.
+ */
+public class CheckParsers {
+    // Tokens put into programs, including bad ones.
+    private static final String[] Tokens = {
+        ";", ";", "}", "}", "{", "(", ")", "var", "print", "while", "if", "else", "=", "<", "<=", "!=", "+",
+        "*", "x", "y", "1", "99999999999", "!", "#"
+    };
+
+    /** What happened to one program. */
+    private static class Result {
+        String name;
+        int errors, statements;
+        String outcome;
+        boolean failed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int runs = 100, mutations = 3;
+        ArrayList<String> rest = new ArrayList<String>();
+        ArrayList<String> files = new ArrayList<String>();
+        for (String arg : args) {
+            try {
+                if (arg.startsWith("-runs=")) {
+                    runs = Integer.parseInt(arg.substring(6));
+                } else if (arg.startsWith("-mutations=")) {
+                    mutations = Integer.parseInt(arg.substring(11));
+                } else if (arg.startsWith("-")) {
+                    rest.add(arg);
+                } else {
+                    files.add(arg);
+                }
+            } catch (NumberFormatException e) {
+                runs = -1;
+            }
+        }
+        GenerateXpres g = new GenerateXpres();
+        g.statements = 20;
+        g.loops = 15;
+        g.ifs = 15;
+        try {
+            String[] left = g.parse(rest.toArray(new String[rest.size()]));
+            if (left.length > 0) throw new IllegalArgumentException("unexpected " + left[0]);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            runs = -1;
+        }
+        if (runs < 0 || mutations < 0) {
+            System.err.println("usage: CheckParsers [-runs=N] [-mutations=N] [generator options] [file.x2 ...]");
+            System.err.println("  -runs=N         check N generated programs, if no files (default 100)");
+            System.err.println("  -mutations=N    put N errors in each generated program (default 3)");
+            System.err.println("  generated programs have 20 statements, 15% loops and 15% ifs, unless set by:");
+            System.err.print(GenerateXpres.usage());
+            System.exit(2);
+        }
+
+        PrintStream out = System.out;
+        out.printf("%-20s %6s %10s  %s%n", "program", "errors", "statements", "result");
+        int checked = 0, failed = 0;
+        if (!files.isEmpty()) {
+            for (String f : files) {
+                Result r = check(f, read(f));
+                failed += report(out, r);
+                checked++;
+            }
+        } else {
+            long seed = g.seed;
+            for (int i = 0; i < runs; i++) {
+                g.seed = seed + i;
+                Result r = check(Long.toString(g.seed), mutate(g.generate(), mutations, new Random(g.seed)));
+                failed += report(out, r);
+                checked++;
+            }
+        }
+        out.println(checked + " programs, " + (checked - failed) + " the same, " + failed + " different");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int report(PrintStream out, Result r) {
+        out.printf("%-20s %6d %10d  %s%n", r.name, r.errors, r.statements, r.outcome);
+        out.flush();
+        return r.failed ? 1 : 0;
+    }
+
+    /** Returns the program with n tokens put in, left out or replaced. */
+    static String mutate(String program, int n, Random rnd) {
+        StringBuilder sb = new StringBuilder(program);
+        for (int i = 0; i < n && sb.length() > 0; i++) {
+            int at = rnd.nextInt(sb.length());
+            // Move to the start of a token, or of the space between two.
+            while (at > 0 && Character.isLetterOrDigit(sb.charAt(at - 1))
+                   && Character.isLetterOrDigit(sb.charAt(at))) {
+                at--;
+            }
+            int end = at;
+            if (Character.isLetterOrDigit(sb.charAt(end))) {
+                while (end < sb.length() && Character.isLetterOrDigit(sb.charAt(end))) end++;
+            } else if (!Character.isWhitespace(sb.charAt(end))) {
+                end++;
+            }
+            String token = " " + Tokens[rnd.nextInt(Tokens.length)] + " ";
+            switch (rnd.nextInt(3)) {
+            case 0: sb.insert(at, token); break;
+            case 1: sb.delete(at, end); break;
+            default: sb.replace(at, end, token);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Parses the program with both parsers and compares the results. */
+    private static Result check(String name, String program) throws IOException {
+        Result r = new Result();
+        r.name = name;
+        ByteArrayOutputStream antlrErrors = new ByteArrayOutputStream();
+        ByteArrayOutputStream descentErrors = new ByteArrayOutputStream();
+        ArrayList<String> antlr, descent;
+        try {
+            antlr = statements(new StatementStream(name, new StringReader(program),
+                                                   new PrintStream(antlrErrors, true)));
+        } catch (RuntimeException e) {
+            r.outcome = "ANTLR parser failed: " + e;
+            r.failed = true;
+            return r;
+        }
+        try {
+            descent = statements(new DescentParser(name, new StringReader(program),
+                                                   new PrintStream(descentErrors, true)));
+        } catch (RuntimeException e) {
+            r.outcome = "DescentParser failed: " + e;
+            r.failed = true;
+            return r;
+        }
+        r.errors = lines(antlrErrors.toString()).size();
+        r.statements = antlr.size();
+        r.outcome = compare("error", lines(antlrErrors.toString()), lines(descentErrors.toString()));
+        if (r.outcome == null) r.outcome = compare("statement", antlr, descent);
+        r.failed = r.outcome != null;
+        if (r.outcome == null) r.outcome = "the same";
+        return r;
+    }
+
+    /** Returns the statements from a source, each with its line number, and
+      * those of its parts. */
+    private static ArrayList<String> statements(StatementSource stmts) throws IOException {
+        ArrayList<String> list = new ArrayList<String>();
+        for (Stmt s = stmts.next(); s != null; s = stmts.next()) {
+            StringBuilder sb = new StringBuilder();
+            lines(s, sb);
+            list.add(sb.append(": ").append(s).toString());
+        }
+        return list;
+    }
+
+    private static void lines(Stmt s, StringBuilder sb) {
+        sb.append(' ').append(s.line);
+        if (s instanceof Stmt.Assign) {
+            lines(((Stmt.Assign) s).expr, sb);
+        } else if (s instanceof Stmt.Print) {
+            lines(((Stmt.Print) s).expr, sb);
+        } else if (s instanceof Stmt.While) {
+            Stmt.While w = (Stmt.While) s;
+            lines(w.cond, sb);
+            lines(w.body, sb);
+        } else if (s instanceof Stmt.If) {
+            Stmt.If f = (Stmt.If) s;
+            lines(f.cond, sb);
+            lines(f.thenPart, sb);
+            lines(f.elsePart, sb);
+        }
+    }
+
+    private static void lines(List<Stmt> stmts, StringBuilder sb) {
+        sb.append(" {");
+        for (Stmt s : stmts) {
+            lines(s, sb);
+        }
+        sb.append(" }");
+    }
+
+    private static void lines(Cond c, StringBuilder sb) {
+        sb.append(' ').append(c.line);
+        lines(c.left, sb);
+        lines(c.right, sb);
+    }
+
+    private static void lines(Expr e, StringBuilder sb) {
+        sb.append(' ').append(e.line);
+        if (e instanceof Expr.Binary) {
+            lines(((Expr.Binary) e).left, sb);
+            lines(((Expr.Binary) e).right, sb);
+        }
+    }
+
+    /** Returns null if the lines are the same, or else where they differ. */
+    private static String compare(String what, List<String> expected, List<String> actual) {
+        int n = Math.min(expected.size(), actual.size());
+        for (int i = 0; i < n; i++) {
+            if (!expected.get(i).equals(actual.get(i))) {
+                return "DIFFERENT " + what + " " + (i + 1) + ": \"" + expected.get(i) + "\" from ANTLR, \""
+                    + actual.get(i) + "\" from DescentParser";
+            }
+        }
+        if (expected.size() != actual.size()) {
+            return "DIFFERENT: " + expected.size() + " " + what + "s from ANTLR, " + actual.size()
+                + " from DescentParser";
+        }
+        return null;
+    }
+
+    private static List<String> lines(String s) {
+        return s.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(s.split("\r?\n"));
+    }
+
+    private static String read(String file) throws IOException {
+        Reader rd = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[65536];
+            for (int n = rd.read(buf); n > 0; n = rd.read(buf)) {
+                sb.append(buf, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            rd.close();
+        }
+    }
+}
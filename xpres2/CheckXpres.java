@@ -0,0 +1,216 @@
+package xpres2;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks the compiler against the interpreter on generated programs (see
+ * GenerateXpres). Each program is run with Interpreter, and compiled with
+ * CompileXpres and run on HackCpu, and the printed values are compared. The
+ * Hack computer has 16-bit words, so the interpreter is set to cut values to
+ * 16 bits as well (see Interpreter.setShort).
+ *
+ * A line is reported per program: its seed, size, the time taken to
+ * interpret, compile and run it, the code size, the number of instructions
+ * executed, and the result. A program whose code does not fit in the 32K
+ * words of the ROM is interpreted and compiled, but not run.
+ *
+ * Usage: CheckXpres [-runs=N] [-translate] [generator options] [compile options]
+ *
+ * With -translate, HackCpu runs the code translated to JVM bytecode (see
+ * HackTranslator); the time to translate is counted in the run time.
+ *
+ * The programs have the seeds given by -seed and up, so a program that fails
+ * can be made again with GenerateXpres and the same options.
+ */
+public class CheckXpres {
+    // Instructions to execute before giving up on the program stopping.
+    private static final long MaxCycles = 1000000000L;
+
+    /** What happened to one program. */
+    private static class Result {
+        long seed, statements, bytes;
+        long interpretNanos, compileNanos, runNanos;
+        int instructions;
+        long cycles;
+        String outcome;
+        boolean failed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int runs = 1;
+        boolean translate = false;
+        ArrayList<String> rest = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("-runs=")) {
+                try {
+                    runs = Integer.parseInt(arg.substring(6));
+                } catch (NumberFormatException e) {
+                    runs = 0;
+                }
+            } else if (arg.equals("-translate")) {
+                translate = true;
+            } else {
+                rest.add(arg);
+            }
+        }
+        GenerateXpres g = new GenerateXpres();
+        String[] compileArgs = null;
+        try {
+            compileArgs = g.parse(rest.toArray(new String[rest.size()]));
+            new CompileOptions().parse(compileArgs);
+            for (String arg : compileArgs) {
+                if (!arg.startsWith("-")) throw new IllegalArgumentException("unexpected " + arg);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            runs = 0;
+        }
+        if (runs < 1) {
+            System.err.println("usage: CheckXpres [-runs=N] [-translate] [generator options] [compile options]");
+            System.err.print(GenerateXpres.usage());
+            System.err.print(CompileOptions.usage());
+            System.exit(2);
+        }
+
+        PrintStream out = System.out;
+        out.printf("%8s %10s %12s %10s %10s %10s %12s %10s  %s%n", "seed", "statements", "bytes",
+                   "interp ms", "compile ms", "code", "cycles", "run ms", "result");
+        long seed = g.seed;
+        int failed = 0, notRun = 0;
+        for (int i = 0; i < runs; i++) {
+            g.seed = seed + i;
+            Result r = check(g, compileArgs, translate);
+            out.printf("%8d %10d %12d %10.1f %10.1f %10d %12d %10.1f  %s%n", r.seed, r.statements, r.bytes,
+                       r.interpretNanos / 1e6, r.compileNanos / 1e6, r.instructions, r.cycles,
+                       r.runNanos / 1e6, r.outcome);
+            if (r.failed) failed++;
+            if (r.instructions > HackCpu.RamSize) notRun++;
+            out.flush();
+        }
+        out.println(runs + " programs, " + (runs - failed - notRun) + " the same, " + failed + " failed, "
+                    + notRun + " not run");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /** Generates the program for the settings of g, and checks it. */
+    private static Result check(GenerateXpres g, String[] compileArgs, boolean translate) throws IOException {
+        Result r = new Result();
+        r.seed = g.seed;
+        File src = File.createTempFile("check", ".x2");
+        File code = new File(src.getPath().replaceFirst("\\.x2$", ".hack"));
+        try {
+            Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(src), "US-ASCII"), 65536);
+            try {
+                r.statements = g.generate(w);
+            } finally {
+                w.close();
+            }
+            r.bytes = src.length();
+
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            interpret(src, new PrintStream(printed), new PrintStream(errors));
+            r.interpretNanos = System.nanoTime() - start;
+            if (errors.size() > 0) {
+                return fail(r, "interpreter: " + firstLine(errors));
+            }
+            int[] expected = values(printed);
+
+            String[] a = Arrays.copyOf(compileArgs, compileArgs.length + 3);
+            a[compileArgs.length] = src.getPath();
+            a[compileArgs.length + 1] = code.getPath();
+            a[compileArgs.length + 2] = "traceOff";
+            start = System.nanoTime();
+            int status = CompileXpres.run(a, null, new PrintStream(new ByteArrayOutputStream()),
+                                          new PrintStream(errors));
+            r.compileNanos = System.nanoTime() - start;
+            if (status != 0 || errors.size() > 0) {
+                return fail(r, "compiler: " + (errors.size() > 0 ? firstLine(errors) : "status " + status));
+            }
+
+            int[] c = HackCpu.readHackFile(code.getPath());
+            r.instructions = c.length;
+            if (c.length > HackCpu.RamSize) {
+                r.outcome = "not run: more than " + HackCpu.RamSize + " instructions";
+                return r;
+            }
+            HackCpu cpu = new HackCpu(c, c.length);
+            start = System.nanoTime();
+            if (translate) cpu.translate();
+            boolean halted = cpu.run(MaxCycles);
+            r.runNanos = System.nanoTime() - start;
+            r.cycles = cpu.getCycles();
+            if (!halted) {
+                return fail(r, "did not halt");
+            }
+            r.outcome = compare(expected, cpu.getOutput());
+            r.failed = r.outcome != null;
+            if (r.outcome == null) r.outcome = "the same, " + expected.length + " values";
+            return r;
+        } finally {
+            src.delete();
+            code.delete();
+        }
+    }
+
+    /** Runs the program a statement at a time, so that it can be of any size. */
+    private static void interpret(File src, PrintStream out, PrintStream err) throws IOException {
+        Reader rd = new InputStreamReader(new FileInputStream(src), "US-ASCII");
+        try {
+            DescentParser p = new DescentParser(src.getPath(), rd, err);
+            Interpreter in = new Interpreter(src.getPath(), out, err);
+            in.setShort(true);
+            for (Stmt s = p.next(); s != null; s = p.next()) {
+                in.execute(s);
+            }
+        } finally {
+            rd.close();
+        }
+        out.flush();
+        err.flush();
+    }
+
+    /** Returns the values printed by the interpreter, one per line. */
+    private static int[] values(ByteArrayOutputStream printed) throws IOException {
+        BufferedReader rd = new BufferedReader(new StringReader(printed.toString("US-ASCII")));
+        int[] v = new int[64];
+        int n = 0;
+        for (String line = rd.readLine(); line != null; line = rd.readLine()) {
+            if (n == v.length) v = Arrays.copyOf(v, 2 * n);
+            v[n++] = Integer.parseInt(line);
+        }
+        return Arrays.copyOf(v, n);
+    }
+
+    /** Returns null if the values printed by the code are the expected ones,
+      * modulo 2^16, or else where they differ. */
+    private static String compare(int[] expected, int[] actual) {
+        int n = Math.min(expected.length, actual.length);
+        for (int i = 0; i < n; i++) {
+            if ((short) expected[i] != (short) actual[i]) {
+                return "DIFFERENT at value " + (i + 1) + ": " + (short) expected[i] + " expected, "
+                    + (short) actual[i] + " printed";
+            }
+        }
+        if (expected.length != actual.length) {
+            return "DIFFERENT: " + expected.length + " values expected, " + actual.length + " printed";
+        }
+        return null;
+    }
+
+    private static Result fail(Result r, String outcome) {
+        r.outcome = outcome;
+        r.failed = true;
+        return r;
+    }
+
+    private static String firstLine(ByteArrayOutputStream b) {
+        String s = b.toString();
+        int nl = s.indexOf('\n');
+        return nl < 0 ? s : s.substring(0, nl);
+    }
+}
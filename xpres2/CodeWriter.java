@@ -0,0 +1,77 @@
+package xpres2;
+
+import java.io.*;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.*;
+
+/**
+ * Formats and writes code on a thread of its own, given chunks of
+ * instructions (from HackGen.takeCode) through a bounded queue, so that
+ * writing is done at the same time as compiling (for CompileXpres -pipeline
+ * with -stream).
+ */
+public class CodeWriter {
+    private static final int Chunks = 8;       // the most chunks in the queue
+
+    // A chunk with no instructions marks the end.
+    private final BlockingQueue<int[]> queue = new ArrayBlockingQueue<int[]>(Chunks);
+    private final Thread thread;
+    private volatile IOException failure;
+
+    /** Starts a writer to ch, in the .hack or .hackb format. */
+    public CodeWriter(final WritableByteChannel ch, final boolean binary) {
+        thread = new Thread("writer") {
+            public void run() {
+                try {
+                    for (int[] c = take(); c.length > 0; c = take()) {
+                        if (failure == null) {
+                            try {
+                                HackGen.writeCode(ch, c, binary);
+                            } catch (IOException e) {
+                                failure = e;    // keep taking chunks until the end
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) { }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private int[] take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /** Queues a chunk of instructions to be written, waiting if the queue is
+      * full. */
+    public void write(int[] code) throws IOException {
+        if (code.length == 0) return;
+        try {
+            queue.put(code);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /** Waits until all chunks have been written. Throws the exception from
+      * writing, if there was one. */
+    public void finish() throws IOException {
+        try {
+            queue.put(new int[0]);
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /** Makes the writer thread end, leaving out the chunks that are not yet
+      * written, if finish has not been called. It must be called from the
+      * thread that calls write, and is used when compiling fails. */
+    public void close() {
+        if (!thread.isAlive()) return;
+        queue.clear();
+        queue.offer(new int[0]);
+    }
+}
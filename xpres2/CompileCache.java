@@ -0,0 +1,212 @@
+package xpres2;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A directory of earlier compiles, for CompileXpres -cache, so that a file
+ * that has not changed is not compiled again. An entry is keyed by a SHA-256
+ * hash of the source text, the file name (which is in the messages), the
+ * options that affect the result (see CompileOptions.key) and the version of
+ * the compiler. It holds the code file as written, and the messages printed
+ * when it was compiled. A hit costs hashing the file, copying the code and
+ * printing the messages.
+ *
+ * An entry is two files, hash.code and hash.msgs, written under temporary
+ * names and then renamed, so that compiles running at the same time (as
+ * with -batch) can share the cache. The modification time of the code file
+ * is the time of the last use, and evict removes the least recently used
+ * entries when the cache is larger than its size.
+ */
+class CompileCache {
+    // Changed when the compiler changes the code it generates, to make old
+    // entries miss. The modification time of the compiler's jar (or class
+    // directory) is also part of the key.
+    private static final String Version = "2";
+
+    // Messages longer than this (long traces) are not kept.
+    private static final int MaxMessages = 1 << 20;
+
+    private final File dir;
+    private final long maxBytes;
+    private final String version;
+
+    /** Uses the cache in dir (which is created if needed), keeping at most
+      * maxBytes in it. */
+    CompileCache(File dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir.toPath());
+        long built = 0;
+        try {
+            built = new File(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .lastModified();
+        } catch (Exception e) { }   // no code source: only the version then
+        version = Version + "/" + built;
+    }
+
+    /** Returns the default directory of the cache. */
+    static String defaultDir() {
+        return System.getProperty("user.home") + File.separator + ".xpres2-cache";
+    }
+
+    /** Returns the key of compiling the file in, called infnam, with opts to
+      * the output format of outfnam. */
+    String key(String infnam, File in, String outfnam, CompileOptions opts) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String header = version + "\n" + infnam + "\n" + opts.key()
+            + (outfnam.endsWith(".hackb") ? " binary" : "") + "\n";
+        md.update(header.getBytes("UTF-8"));
+        InputStream is = new FileInputStream(in);
+        try {
+            byte[] buf = new byte[65536];
+            for (int n = is.read(buf); n > 0; n = is.read(buf)) {
+                md.update(buf, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /** If there is an entry for key, copies its code to outfnam, prints its
+      * messages to out and err, and returns true. */
+    boolean replay(String key, String outfnam, PrintStream out, PrintStream err) throws IOException {
+        File code = new File(dir, key + ".code"), msgs = new File(dir, key + ".msgs");
+        byte[] record;
+        try {
+            record = Files.readAllBytes(msgs.toPath());
+            Files.copy(code.toPath(), Paths.get(outfnam), StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException x) {
+            return false;       // not there, or evicted meanwhile
+        }
+        code.setLastModified(System.currentTimeMillis());
+        Recorder.replay(record, out, err);
+        return true;
+    }
+
+    /** Stores the code in outfnam, and the messages recorded by a Recorder,
+      * as the entry for key. */
+    void store(String key, String outfnam, byte[] record) throws IOException {
+        File code = new File(dir, key + ".code"), msgs = new File(dir, key + ".msgs");
+        File tmp = File.createTempFile(key, ".tmp", dir);
+        try {
+            Files.write(tmp.toPath(), record);
+            Files.move(tmp.toPath(), msgs.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            Files.copy(Paths.get(outfnam), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp.toPath(), code.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /** Removes the least recently used entries, until the cache holds at most
+      * its size. */
+    void evict() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long total = 0;
+        ArrayList<File> codes = new ArrayList<File>();
+        final HashMap<File, Long> used = new HashMap<File, Long>();
+        for (File f : files) {
+            total += f.length();
+            if (f.getName().endsWith(".code")) {
+                codes.add(f);
+                used.put(f, f.lastModified());
+            }
+        }
+        if (total <= maxBytes) return;
+        Collections.sort(codes, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(used.get(a), used.get(b));
+            }
+        });
+        for (File code : codes) {
+            if (total <= maxBytes) break;
+            String name = code.getName();
+            File msgs = new File(dir, name.substring(0, name.length() - 5) + ".msgs");
+            total -= code.length() + msgs.length();
+            code.delete();
+            msgs.delete();
+        }
+    }
+
+    /** Records what is printed to two streams, in order, while passing it
+      * on, as records of which stream (Out or Err), a length and the bytes. */
+    static class Recorder {
+        private static final int Out = 1, Err = 2;
+
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream log = new DataOutputStream(bytes);
+        final PrintStream out, err;
+
+        Recorder(PrintStream out, PrintStream err) {
+            this.out = new PrintStream(new Tap(out, Out), true);
+            this.err = new PrintStream(new Tap(err, Err), true);
+        }
+
+        /** Returns the record, or null if it got longer than MaxMessages. */
+        synchronized byte[] bytes() {
+            out.flush();
+            err.flush();
+            return bytes == null ? null : bytes.toByteArray();
+        }
+
+        /** Prints a record to out and err. */
+        static void replay(byte[] record, PrintStream out, PrintStream err) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            while (in.available() > 0) {
+                PrintStream to = in.readByte() == Out ? out : err;
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                to.write(b, 0, b.length);
+                to.flush();
+            }
+        }
+
+        private class Tap extends OutputStream {
+            private final OutputStream to;
+            private final int kind;
+
+            Tap(OutputStream to, int kind) {
+                this.to = to;
+                this.kind = kind;
+            }
+
+            public void write(int c) throws IOException {
+                write(new byte[] { (byte) c }, 0, 1);
+            }
+
+            public void write(byte[] buf, int off, int len) throws IOException {
+                to.write(buf, off, len);
+                synchronized (Recorder.this) {
+                    if (bytes == null) return;
+                    if (bytes.size() + len > MaxMessages) {
+                        bytes = null;
+                    } else {
+                        log.writeByte(kind);
+                        log.writeInt(len);
+                        log.write(buf, off, len);
+                    }
+                }
+            }
+
+            public void flush() throws IOException {
+                to.flush();
+            }
+        }
+    }
+}
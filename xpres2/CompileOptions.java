@@ -0,0 +1,199 @@
+package xpres2;
+
+import java.util.*;
+
+/**
+ * Settings for compiling, given on the CompileXpres command line as options
+ * starting with "-". Each optimization has an option to turn it on, and -O
+ * turns them all on; "-no-" in front of an option name turns it off, as in
+ * "-O -no-cse".
+ */
+public class CompileOptions {
+    /** How stack operations that are long enough to be worth it are done:
+     *  inline, as calls of shared routines, or inline where a profiling run
+     *  shows that they are executed often, and shared elsewhere. */
+    public enum Subroutines { INLINE, SHARED, PROFILE }
+
+    public boolean traceOn = true;
+    public Trace.Level traceLevel = Trace.Level.OPERATIONS; // -trace=off|statements|operations
+    public String traceFile = null;     // -tracefile=name: trace to a file instead of the output
+    public int traceRing = 0;           // -tracering=N: keep only the last N trace records
+    public boolean peephole = false;    // -peephole: run Peephole over the code
+    public boolean cacheTop = false;    // -cachetop: keep the top of the expression stack in D
+    public boolean staticStack = false; // -staticstack: fixed stack slots instead of an SP
+    public boolean fold = false;        // -fold: constant folding of expressions
+    public boolean propagate = false;   // -propagate: constant propagation over the whole program
+    public boolean cse = false;         // -cse: common subexpression elimination
+    public boolean strength = false;    // -strength: multiplication by constants with shifts and adds
+    public Subroutines subroutines = Subroutines.INLINE; // -subroutines=inline|shared|profile
+    public boolean stats = false;       // -stats: report code size and executed instructions
+    public boolean stream = false;      // -stream: compile while reading, writing code as it goes
+    public boolean descent = false;     // -descent: parse with DescentParser instead of ANTLR
+    public boolean sourceMap = false;   // -sourcemap: write a SourceMap next to the code
+    public boolean pipeline = false;    // -pipeline: parse, compile and write on separate threads
+    public int batch = 0;               // -batch[=threads]: compile many files in parallel
+    public String cache = null;         // -cache[=dir]: directory of CompileCache, if used
+    public long cacheSize = 512;        // -cachesize=MB: the most the cache may hold
+
+    /** Returns a copy of these options. */
+    public CompileOptions copy() {
+        CompileOptions c = new CompileOptions();
+        c.traceOn = traceOn;
+        c.traceLevel = traceLevel;
+        c.traceFile = traceFile;
+        c.traceRing = traceRing;
+        c.peephole = peephole;
+        c.cacheTop = cacheTop;
+        c.staticStack = staticStack;
+        c.fold = fold;
+        c.propagate = propagate;
+        c.cse = cse;
+        c.strength = strength;
+        c.subroutines = subroutines;
+        c.stats = stats;
+        c.stream = stream;
+        c.descent = descent;
+        c.sourceMap = sourceMap;
+        c.pipeline = pipeline;
+        c.batch = batch;
+        c.cache = cache;
+        c.cacheSize = cacheSize;
+        return c;
+    }
+
+    /** Sets options from the arguments that start with "-", and returns the
+      * other arguments. Throws IllegalArgumentException for an unknown option. */
+    public String[] parse(String[] args) {
+        ArrayList<String> rest = new ArrayList<String>();
+        for (String arg : args) {
+            if (!arg.startsWith("-")) {
+                rest.add(arg);
+                continue;
+            }
+            String name = arg.substring(1);
+            boolean on = true;
+            if (name.startsWith("no-")) {
+                name = name.substring(3);
+                on = false;
+            }
+            if (name.equals("O")) {
+                peephole = cacheTop = staticStack = fold = propagate = cse = strength = on;
+            } else if (name.equals("peephole")) {
+                peephole = on;
+            } else if (name.equals("cachetop")) {
+                cacheTop = on;
+            } else if (name.equals("staticstack")) {
+                staticStack = on;
+            } else if (name.equals("fold")) {
+                fold = on;
+            } else if (name.equals("propagate")) {
+                propagate = on;
+            } else if (name.equals("cse")) {
+                cse = on;
+            } else if (name.equals("strength")) {
+                strength = on;
+            } else if (name.startsWith("subroutines=") && on) {
+                try {
+                    subroutines = Subroutines.valueOf(name.substring(12).toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+            } else if (name.startsWith("trace=") && on) {
+                try {
+                    traceLevel = Trace.Level.valueOf(name.substring(6).toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+            } else if (name.startsWith("tracefile=") && on) {
+                traceFile = name.substring(10);
+            } else if (name.startsWith("tracering=") && on) {
+                try {
+                    traceRing = Integer.parseInt(name.substring(10));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+                if (traceRing < 1) throw new IllegalArgumentException("unknown option " + arg);
+            } else if (name.equals("stats")) {
+                stats = on;
+            } else if (name.equals("stream")) {
+                stream = on;
+            } else if (name.equals("descent")) {
+                descent = on;
+            } else if (name.equals("sourcemap")) {
+                sourceMap = on;
+            } else if (name.equals("pipeline")) {
+                pipeline = on;
+            } else if (name.equals("batch")) {
+                batch = on ? Runtime.getRuntime().availableProcessors() : 0;
+            } else if (name.startsWith("batch=") && on) {
+                try {
+                    batch = Integer.parseInt(name.substring(6));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+                if (batch < 1) throw new IllegalArgumentException("unknown option " + arg);
+            } else if (name.equals("cache")) {
+                cache = on ? CompileCache.defaultDir() : null;
+            } else if (name.startsWith("cache=") && on) {
+                cache = name.substring(6);
+            } else if (name.startsWith("cachesize=") && on) {
+                try {
+                    cacheSize = Long.parseLong(name.substring(10));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        return rest.toArray(new String[rest.size()]);
+    }
+
+    /** Returns a string of the options that affect the code and messages
+      * from compiling a file, for CompileCache. */
+    public String key() {
+        return "trace=" + (traceOn ? traceLevel : Trace.Level.OFF) + " tracering=" + traceRing + " peephole=" + peephole + " cachetop=" + cacheTop
+            + " staticstack=" + staticStack + " fold=" + fold + " propagate=" + propagate
+            + " cse=" + cse + " strength=" + strength + " subroutines=" + subroutines
+            + " stats=" + stats + " stream=" + stream + " descent=" + descent + " pipeline=" + pipeline;
+    }
+
+    /** Returns a usage message listing the options. */
+    public static String usage() {
+        return "options (-no-name turns option -name off):\n"
+            + "  -O            all optimizations\n"
+            + "  -peephole     peephole optimization of the generated code\n"
+            + "  -cachetop     keep the top of the expression stack in D\n"
+            + "  -staticstack  address the stack with fixed slots instead of a stack pointer\n"
+            + "  -fold         compute constant parts of expressions when compiling\n"
+            + "  -propagate    propagate constants and remove dead assignments over the whole program\n"
+            + "  -cse          reuse values of common subexpressions\n"
+            + "  -strength     multiply by constants with shifts and adds, not the routine\n"
+            + "  -subroutines=inline|shared|profile\n"
+            + "                stack operations inline, as calls of shared routines (smaller code),\n"
+            + "                or shared except where a profiling run finds them executed often\n"
+            + "  -trace=off|statements|operations\n"
+            + "                what to trace with traceOn: nothing, each statement, or also each\n"
+            + "                operation on the stack (the default)\n"
+            + "  -tracefile=name  write the trace to a file instead of the output\n"
+            + "  -tracering=N  keep only the last N trace records, and write them at the end\n"
+            + "  -stats        run the compiled code, and report its size and instructions executed\n"
+            + "  -stream       compile a statement at a time while reading, and write the code as it\n"
+            + "                goes, for very long programs (not with optimizations of the whole\n"
+            + "                program or the code: -peephole -staticstack -propagate -cse)\n"
+            + "  -descent      parse with the hand-written parser instead of the ANTLR one\n"
+            + "  -sourcemap    write the source line of each code address to file.map, for\n"
+            + "                HackCpu -profile\n"
+            + "  -pipeline     parse on a thread of its own, and with -stream also write the code\n"
+            + "                on one, overlapping with compiling (the code is the same)\n"
+            + "  -batch[=threads]\n"
+            + "                compile many files in parallel, each file.x2 to outdir/file.hack;\n"
+            + "                a directory means all .x2 files in it, and @list the files listed\n"
+            + "  -cache[=dir]  reuse the code and messages from an earlier compile of the same\n"
+            + "                source with the same options (default dir ~/.xpres2-cache)\n"
+            + "  -cachesize=MB remove the least recently used files from the cache above this\n"
+            + "                size (default 512)\n"
+            + "  -client[=port]  have a running XpresServer do the compiling (default port "
+            + XpresServer.DefaultPort + ")\n";
+    }
+}
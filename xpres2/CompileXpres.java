@@ -1,35 +1,314 @@
 package xpres2;
 
 import java.io.*;
-import java.util.Scanner;
-import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.*;
-import xpres2.grammar.*;
+import java.util.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class CompileXpres {
+    // Instructions to execute when profiling, or reporting stats, before
+    // giving up on the program stopping.
+    private static final long MaxCycles = 100000000L;
+
+    // With -subroutines=profile, stack operations executed at least this many
+    // times are kept inline.
+    private static final long HotCount = 2;
+
+    // With -stream, the memory layout is fixed from the start (stack pointer,
+    // stack, first variable), and code is written out about this many
+    // instructions at a time.
+    private static final int StreamSP = 1024, StreamStack = 2048, StreamVars = 1025;
+    private static final int StreamFlush = 65536;
+
     public static void main(String[] args) throws IOException {
-        String infnam;
-        String outfnam = args[1];
-        boolean traceOn = args.length < 3 || "traceOn".equalsIgnoreCase(args[2]);
+        if (XpresServer.isClient(args)) {
+            try {
+                System.exit(XpresServer.request("compile", args));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.err.print(CompileOptions.usage());
+                System.exit(2);
+            }
+        }
+        int status = run(args, null, System.out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /** Compiles as given by the command line args, with relative file names
+      * relative to dir (or the current directory, if null), and returns the
+      * exit status. Messages are printed to out and errors to err. */
+    static int run(String[] args, File dir, PrintStream out, PrintStream err) throws IOException {
+        CompileOptions opts = new CompileOptions();
+        try {
+            args = opts.parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.print(CompileOptions.usage());
+            return 2;
+        }
+        if (args.length < 2) {
+            err.println("usage: CompileXpres [options] file.x2 file.hack|file.hackb [traceOn|traceOff]\n"
+                        + "       CompileXpres -batch[=threads] [options] outdir file.x2|dir|@list ...");
+            err.print(CompileOptions.usage());
+            return 2;
+        }
+        if (opts.traceFile != null) {
+            opts.traceFile = XpresServer.resolve(dir, opts.traceFile).getPath();
+        }
+        CompileCache cache = null;
+        if (opts.cache != null) {
+            cache = new CompileCache(XpresServer.resolve(dir, opts.cache), opts.cacheSize << 20);
+        }
+        int status;
+        if (opts.batch > 0) {
+            opts.traceOn = false;
+            status = BatchCompile.run(Arrays.copyOfRange(args, 1, args.length), XpresServer.resolve(dir, args[0]),
+                                      dir, opts, cache, err);
+        } else {
+            opts.traceOn = args.length < 3 || "traceOn".equalsIgnoreCase(args[2]);
+            status = compileFile(args[0], XpresServer.resolve(dir, args[0]),
+                                 XpresServer.resolve(dir, args[1]).getPath(), opts, cache, out, err);
+        }
+        if (cache != null) cache.evict();
+        return status;
+    }
+
+    /** Compiles the file in, called infnam in messages, to outfnam, or gets
+      * the result from the cache, if not null. Returns the exit status. */
+    static int compileFile(String infnam, File in, String outfnam, CompileOptions opts, CompileCache cache,
+                           PrintStream out, PrintStream err) throws IOException {
+        if (cache == null || opts.sourceMap || opts.traceFile != null) {  // not kept in the cache
+            return compileFile(infnam, in, outfnam, opts, out, err);
+        }
+        String key = cache.key(infnam, in, outfnam, opts);
+        if (cache.replay(key, outfnam, out, err)) {
+            return 0;
+        }
+        CompileCache.Recorder rec = new CompileCache.Recorder(out, err);
+        int status = compileFile(infnam, in, outfnam, opts, rec.out, rec.err);
+        byte[] record = rec.bytes();
+        if (status == 0 && record != null) {
+            cache.store(key, outfnam, record);
+        }
+        return status;
+    }
+
+    private static int compileFile(String infnam, File in, String outfnam, CompileOptions opts,
+                                   PrintStream out, PrintStream err) throws IOException {
+        Reader r = new InputStreamReader(new FileInputStream(in), "UTF-8");
+        try {
+            if (opts.stream) {
+                return streamCompile(infnam, r, outfnam, opts, out, err);
+            } else if (opts.pipeline) {
+                return pipelineCompile(infnam, r, outfnam, opts, out, err);
+            }
+            List<Stmt> program = opts.descent ? DescentParser.parse(infnam, r, err)
+                                              : TreeBuilder.parse(infnam, r, err);
+            if (program == null) return 1;
+            return compile(infnam, program, outfnam, opts, out, err);
+        } finally {
+            r.close();
+        }
+    }
+
+    private static int compile(String infnam, List<Stmt> program, String outfnam, CompileOptions opts,
+                               PrintStream out, PrintStream err) throws IOException {
+        BitSet hot = new BitSet();
+        if (opts.subroutines == CompileOptions.Subroutines.PROFILE) {
+            hot = hotSites(infnam, program, opts, out);
+        }
+        HackGen gen = new HackGen(1024, opts.staticStack);
+        Compiler compiler = newCompiler(infnam, gen, opts, out, err);
+        compiler.setHotSites(hot);
+        compile(compiler, program);
+        return finish(infnam, gen, compiler, outfnam, opts, out, err);
+    }
+
+    /** Compiles with the parser on a thread of its own (see StatementQueue),
+      * so that parsing and compiling overlap. The rest is as in compile. */
+    private static int pipelineCompile(String infnam, Reader r, String outfnam, CompileOptions opts,
+                                       PrintStream out, PrintStream err) throws IOException {
+        if (opts.subroutines == CompileOptions.Subroutines.PROFILE) {
+            err.println("-pipeline cannot be used with -subroutines=profile");
+            return 2;
+        }
+        HackGen gen = new HackGen(1024, opts.staticStack);
+        Compiler compiler = newCompiler(infnam, gen, opts, out, err);
+        StatementSource stmts = statements(infnam, r, opts, err);
+        try {
+            compiler.begin();
+            for (Stmt s = stmts.next(); s != null; s = stmts.next()) {
+                compiler.statement(s);
+            }
+            compiler.end();
+        } finally {
+            close(stmts);
+        }
+        if (stmts.getErrors() > 0) return 1;
+        return finish(infnam, gen, compiler, outfnam, opts, out, err);
+    }
+
+    private static Compiler newCompiler(String infnam, HackGen gen, CompileOptions opts,
+                                        PrintStream out, PrintStream err) throws IOException {
+        Compiler compiler = new Compiler(infnam, gen, opts);
+        compiler.setErrorStream(err);
+        Trace.Level level = opts.traceOn ? opts.traceLevel : Trace.Level.OFF;
+        if (opts.traceRing > 0) {
+            compiler.setTrace(Trace.ring(level, opts.traceRing, out));
+        } else if (opts.traceFile != null && level != Trace.Level.OFF) {
+            compiler.setTrace(Trace.to(level, new FileOutputStream(opts.traceFile), true));
+        } else {
+            compiler.setTrace(Trace.to(level, out, false));
+        }
+        if (opts.sourceMap) compiler.setSourceMap(new SourceMap(infnam));
+        return compiler;
+    }
+
+    /** Returns the statements read from r, one at a time, parsed on a thread
+      * of their own with -pipeline. */
+    private static StatementSource statements(String infnam, Reader r, CompileOptions opts, PrintStream err)
+        throws IOException
+    {
+        StatementSource stmts = opts.descent ? new DescentParser(infnam, r, err)
+                                             : new StatementStream(infnam, new BufferedReader(r), err);
+        return opts.pipeline ? new StatementQueue(stmts) : stmts;
+    }
+
+    /** Stops the parser thread of stmts, if there is one, in case the
+      * statements were not read to the end. */
+    private static void close(StatementSource stmts) {
+        if (stmts instanceof StatementQueue) ((StatementQueue) stmts).close();
+    }
+
+    /** Finishes the trace and the layout of the code, optimizes it, writes it
+      * (and the source map, if any) to outfnam, and runs it for -stats.
+      * Returns the exit status. */
+    private static int finish(String infnam, HackGen gen, Compiler compiler, String outfnam,
+                              CompileOptions opts, PrintStream out, PrintStream err) throws IOException {
+        compiler.getTrace().finish();
+        SourceMap map = compiler.getSourceMap();
+        try {
+            gen.finishLayout();
+        } catch (IllegalStateException e) {
+            err.println(infnam + ": " + e.getMessage());
+            return 1;
+        }
+        if (opts.peephole) {
+            int before = gen.currentCodeAddress();
+            int[] moved = Peephole.optimize(gen);
+            if (map != null) map.relocate(moved);
+            if (opts.traceOn) {
+                out.println("Peephole: " + before + " -> " + gen.currentCodeAddress() + " instructions");
+            }
+        }
+        gen.writeCodeFile(outfnam);
+        if (map != null) map.write(SourceMap.fileFor(outfnam));
+        if (opts.stats) {
+            HackCpu cpu = new HackCpu(gen);
+            boolean halted = cpu.run(MaxCycles);
+            err.println(infnam + ": " + gen.currentCodeAddress() + " instructions, "
+                        + cpu.getCycles() + " executed" + (halted ? "" : " (did not halt)"));
+        }
+        return 0;
+    }
 
-        if (args.length > 0) {
-            infnam = args[0];
+    private static void compile(Compiler compiler, List<Stmt> program) {
+        compiler.begin();
+        for (Stmt s : program) {
+            compiler.statement(s);
+        }
+        compiler.end();
+    }
+
+    /** Compiles a statement at a time, as the program is read, without a parse
+      * tree for the whole program, and writes the code as it goes. */
+    private static int streamCompile(String infnam, Reader r, String outfnam, CompileOptions opts,
+                                     PrintStream trace, PrintStream err) throws IOException {
+        if (opts.peephole || opts.staticStack || opts.propagate || opts.cse
+            || opts.stats || opts.subroutines == CompileOptions.Subroutines.PROFILE) {
+            err.println("-stream cannot be used with -peephole, -staticstack, -propagate, -cse, "
+                        + "-stats or -subroutines=profile");
+            return 2;
+        }
+        HackGen out = new HackGen(StreamSP, StreamStack, StreamVars);
+        Compiler compiler = newCompiler(infnam, out, opts, trace, err);
+        StatementSource stmts = statements(infnam, r, opts, err);
+        boolean binary = outfnam.endsWith(".hackb");
+        FileChannel ch = FileChannel.open(Paths.get(outfnam), StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        // With -pipeline, the code is written on a thread of its own.
+        CodeWriter writer = opts.pipeline ? new CodeWriter(ch, binary) : null;
+        try {
+            compiler.begin();
+            int nextFlush = StreamFlush;
+            for (Stmt s = stmts.next(); s != null; s = stmts.next()) {
+                compiler.statement(s);
+                if (out.currentCodeAddress() >= nextFlush) {
+                    flush(out, ch, binary, writer);
+                    nextFlush = out.currentCodeAddress() + StreamFlush;
+                }
+            }
+            compiler.end();
+            compiler.getTrace().finish();
+            try {
+                out.finishLayout();
+            } catch (IllegalStateException e) {
+                err.println(infnam + ": " + e.getMessage());
+                return 1;
+            }
+            flush(out, ch, binary, writer);
+            if (writer != null) writer.finish();
+            if (compiler.getSourceMap() != null) compiler.getSourceMap().write(SourceMap.fileFor(outfnam));
+        } finally {
+            close(stmts);
+            if (writer != null) writer.close();
+            ch.close();
+        }
+        return stmts.getErrors() > 0 ? 1 : 0;
+    }
+
+    private static void flush(HackGen out, FileChannel ch, boolean binary, CodeWriter writer) throws IOException {
+        if (writer != null) {
+            writer.write(out.takeCode());
         } else {
-            System.out.println("Vilken fil vill du köra?");
-            Scanner scanner = new Scanner(System.in);
-            infnam = scanner.nextLine();
-        }
-
-        CharStream input = CharStreams.fromFileName(infnam);
-        XpresLexer lexer = new XpresLexer(input);
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        XpresParser parser = new XpresParser(tokens);
-        ParseTree tree = parser.file();
-        ParseTreeWalker walker = new ParseTreeWalker();
-        HackGen out = new HackGen(1024, 2048, 1025);
-        walker.walk(new Compiler(infnam, out, traceOn), tree);
-        Writer w = new OutputStreamWriter(new FileOutputStream(outfnam), "US-ASCII");
-        out.outputCode(w);
-        w.close();
+            out.flushCode(ch, binary);
+        }
+    }
+
+    /** Compiles with all stack operations inline, and runs the code with
+      * profiling. Returns the sites (see Compiler.getSiteAddrs) that were
+      * executed at least HotCount times. */
+    private static BitSet hotSites(String infnam, List<Stmt> program, CompileOptions opts, PrintStream out) {
+        CompileOptions o = opts.copy();
+        o.traceOn = false;
+        o.subroutines = CompileOptions.Subroutines.INLINE;
+        HackGen gen = new HackGen(1024, o.staticStack);
+        Compiler compiler = new Compiler(infnam, gen, o);
+        compiler.recordSites();
+        compiler.setErrorStream(new PrintStream(new ByteArrayOutputStream())); // reported later
+        compile(compiler, program);
+        BitSet hot = new BitSet();
+        try {
+            gen.finishLayout();
+        } catch (IllegalStateException e) {
+            return hot;     // reported later
+        }
+
+        long[] counts = new long[gen.currentCodeAddress()];
+        HackCpu cpu = new HackCpu(gen);
+        cpu.setProfile(counts);
+        cpu.run(MaxCycles);
+        List<Integer> sites = compiler.getSiteAddrs();
+        for (int i = 0; i < sites.size(); i++) {
+            if (counts[sites.get(i)] >= HotCount) hot.set(i);
+        }
+        if (opts.traceOn) {
+            out.println("Profile: " + hot.cardinality() + " of " + sites.size()
+                        + " stack operations kept inline");
+        }
+        return hot;
     }
 }
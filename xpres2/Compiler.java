@@ -1,109 +1,468 @@
 package xpres2;
 
-import xpres2.grammar.*;
 import java.util.*;
-import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.*;
+import java.io.PrintStream;
 
-public class Compiler extends XpresBaseListener {
+/**
+ * Compiles a program to Hack code, a statement at a time: call begin, then
+ * statement for each statement, then end.
+ */
+public class Compiler {
     private final String infnam;
-    private final boolean traceOn;
+    private final boolean cacheTop;
+    private final boolean fold;
+    private final boolean propagate;
+    private final boolean cse;
+    private final boolean strength;
+    private final CompileOptions.Subroutines subroutines;
+
+    // Multiplications by constants that need more instructions than this are
+    // done by the multiplication routine instead.
+    private static final int MaxMulConstCost = 30;
     
     private final HackGen out;
     private final HashMap<String, Integer> varAddr = new HashMap<String, Integer>();
+
+    // Set when the variables no longer fit in memory, which is reported once.
+    private boolean outOfVars = false;
+
+    // With cacheTop, the top of the expression stack is kept in D rather than
+    // on the stack in memory, when this is true.
+    private boolean topInD = false;
+
+    // With constant propagation or CSE, the statements of the program are collected
+    // here, and compiled when the whole program has been seen.
+    private ArrayList<Stmt> program;
+
+    // Stack operations that may be done by shared routines are numbered, in
+    // the order they are compiled, and their code addresses recorded if
+    // siteAddrs is not null. With profiling, hotSites are the ones to keep
+    // inline.
+    private int sites = 0;
+    private ArrayList<Integer> siteAddrs;
+    private BitSet hotSites = new BitSet();
+
+    private PrintStream err = System.err;
+    private Trace trace = Trace.OFF;
+    private int line;           // the line of the statement being compiled
+    private SourceMap sourceMap;
     
-    Compiler(String infnam, HackGen out, boolean traceOn) {
+    Compiler(String infnam, HackGen out, CompileOptions opts) {
         this.infnam = infnam;
         this.out = out;
-        this.traceOn = traceOn;
+        this.cacheTop = opts.cacheTop;
+        this.fold = opts.fold;
+        this.propagate = opts.propagate;
+        this.cse = opts.cse;
+        this.strength = opts.strength;
+        this.subroutines = opts.subroutines;
+        if (propagate || cse) {
+            program = new ArrayList<Stmt>();
+        }
+    }
+
+    /** Sets the stream that errors are reported to (System.err by default). */
+    void setErrorStream(PrintStream err) {
+        this.err = err;
+    }
+
+    /** Sets where to trace the code emitted (nowhere by default). */
+    void setTrace(Trace trace) {
+        this.trace = trace;
+    }
+
+    /** Makes the compiler record the source line of the code of each
+      * statement in a source map (and HackGen its routines). */
+    void setSourceMap(SourceMap map) {
+        sourceMap = map;
+        out.setSourceMap(map);
+    }
+
+    /** Returns where the code emitted is traced. */
+    Trace getTrace() {
+        return trace;
+    }
+
+    /** Returns the source map, or null if none is recorded. */
+    SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
+    /** Sets the sites that are executed often (see getSiteAddrs), which are
+      * kept inline when subroutines is PROFILE. */
+    void setHotSites(BitSet hot) {
+        hotSites = hot;
+    }
+
+    /** Makes the compiler record the code addresses of the stack operations
+      * that may be done by shared routines, for getSiteAddrs. */
+    void recordSites() {
+        siteAddrs = new ArrayList<Integer>();
     }
 
-    private void tracePrint(String message) {
-        if (traceOn) {
-            System.out.println("At operation "+out.currentCodeAddress()+": "+message);
+    /** Returns the code addresses of the stack operations that may be done by
+      * shared routines, as compiled so far (if recordSites was called). */
+    List<Integer> getSiteAddrs() {
+        return siteAddrs;
+    }
+
+    /** Records the start of a stack operation that may be done by a shared
+      * routine, and returns true if it should be. */
+    private boolean sharedSite() {
+        int site = sites++;
+        if (siteAddrs != null) siteAddrs.add(out.currentCodeAddress());
+        switch (subroutines) {
+        case SHARED:  return true;
+        case PROFILE: return !hotSites.get(site);
+        default:      return false;
+        }
+    }
+
+    private void trace(Trace.Action action, int arg) {
+        trace.record(out.currentCodeAddress(), line, action, arg);
+    }
+
+    private void trace(Trace.Action action) {
+        trace(action, 0);
+    }
+
+    /** Emits code to get the value on top of the expression stack into D,
+     *  removing it from the stack. */
+    private void popToD() {
+        if (topInD) {
+            topInD = false;
+        } else {
+            out.emitPopD();
         }
     }
 
-    private int getVarAddr(Token tok) {
-        String name = tok.getText();
+    /** Emits code to put the value in D on top of the expression stack. The
+     *  previous top must not be in D; callers that have used D since the last
+     *  push call spillTop first. */
+    private void pushD() {
+        if (!cacheTop) {
+            out.emitPushD();
+        } else {
+            topInD = true;
+        }
+    }
+
+    /** Emits code to spill the top of the expression stack to memory, if it is
+     *  in D, so that D can be used for something else. */
+    private void spillTop() {
+        if (topInD) {
+            trace(Trace.Action.SPILL);
+            out.emitPushD();
+            topInD = false;
+        }
+    }
+
+    private int getVarAddr(String name, int line) {
         Integer a = varAddr.get(name);
         if (a == null) {
-            error(tok.getLine(), "undefined " + name);
+            error(line, "undefined " + name);
             return 0;
         } else {
             return a;
         }
     }
+
+    // Resolves variables in expressions to their memory addresses.
+    private final Expr.Resolver resolver = new Expr.Resolver() {
+        public int resolve(String name, int line) {
+            return getVarAddr(name, line);
+        }
+    };
     
     private void error(int line, String msg) {
-        System.err.println(infnam + ":" + line + ": " + msg);
+        err.println(infnam + ":" + line + ": " + msg);
     }
     
-    @Override
-    public void enterFile(XpresParser.FileContext ctx) {
-        tracePrint("Initialize SP");
+    /** Starts the program. */
+    public void begin() {
+        mapTo(0, "start");
+        trace(Trace.Action.INIT_SP);
         out.emitInitSP();
     }
 
-    @Override
-    public void enterDecl(XpresParser.DeclContext ctx) {
-        String name = ctx.ID().getText();
-        int addr = out.newVarAddr();
-        Integer old = varAddr.put(name, addr);
-        if (old != null) {
-            error(ctx.ID().getSymbol().getLine(), "redefined " + name);
+    /** Compiles the next statement of the program (or saves it until end, if
+     *  optimizations need the whole program). */
+    public void statement(Stmt s) {
+        if (program != null) {
+            program.add(s);     // compiled at the end
+        } else {
+            compile(s);
         }
     }
 
-    @Override
-    public void exitAssign(XpresParser.AssignContext ctx) {
-        int a = getVarAddr(ctx.ID().getSymbol());
-        tracePrint("Pop from stack and put in "+a);
-        out.emitPopD();
-        out.emitAInstr(a);
-        out.emitCInstr(HackGen.DestM, HackGen.CompD, 0);
+    /** Ends the program. */
+    public void end() {
+        if (program != null) {
+            List<Stmt> p = program;
+            if (propagate) p = ConstantPropagation.run(p);
+            if (cse) p = ValueNumbering.run(p);
+            for (Stmt s : p) {
+                compile(s);
+            }
+            program = null;
+        }
+        mapTo(0, "halt");
+        line = 0;
+        trace(Trace.Action.HALT);
+        out.emitHalt();
+        if (sourceMap != null) sourceMap.setEnd(out.currentCodeAddress());
     }
 
-    @Override
-    public void enterPrint(XpresParser.PrintContext ctx) {
-        error(ctx.getStart().getLine(), "print not implemented");
+    /** Records in the source map that the code from here on is for what on
+      * the given line. */
+    private void mapTo(int line, String what) {
+        if (sourceMap != null) sourceMap.add(out.currentCodeAddress(), line, what);
     }
-    
-    @Override
-    public void exitAddExpr(XpresParser.AddExprContext ctx) {
-        ParseTree operator = ctx.getChild(1); // the second token, if it's there, is the operator
-        if (operator != null && "+".equals(operator.getText())) { // if it's plus, this is an addition
-            // Add the top two numbers on the stack, leaving only the sum.
-            tracePrint("Add top two numbers on the stack, leaving the sum");
-            out.emitGetTwoOperands();         // Get operands.
-            out.emitCInstr(HackGen.DestD, HackGen.DPlusM, 0); // Add them.
-            out.emitReplaceTopWithD();        // Replace top of stack with sum.
+
+    /** Emits code for a statement. */
+    private void compile(Stmt s) {
+        line = s.line;
+        if (s instanceof Stmt.Decl) {
+            compileDecl((Stmt.Decl) s);
+        } else if (s instanceof Stmt.Assign) {
+            Stmt.Assign as = (Stmt.Assign) s;
+            mapTo(s.line, "assign");
+            Expr e = expr(as.expr);
+            int a = getVarAddr(as.name, as.line);
+            trace(Trace.Action.ASSIGN, a);
+            emitExpr(e);
+            trace(Trace.Action.POP_STORE, a);
+            popToD();
+            out.emitAInstr(a);
+            out.emitCInstr(HackGen.DestM, HackGen.CompD, 0);
+        } else if (s instanceof Stmt.Print) {
+            mapTo(s.line, "print");
+            trace(Trace.Action.PRINT);
+            emitExpr(expr(((Stmt.Print) s).expr));
+            trace(Trace.Action.POP_PRINT);
+            popToD();
+            out.emitPrintD();
+        } else if (s instanceof Stmt.While) {
+            compileWhile((Stmt.While) s);
         } else {
-            // No operator we know, so it must be a lone term. Just leave it on the stack.
+            compileIf((Stmt.If) s);
         }
     }
-        
-    @Override
-    public void exitMulExpr(XpresParser.MulExprContext ctx) {
-        if (ctx.mulExpr() != null) {
-            error(ctx.getStart().getLine(), "multiplication not implemented");
+
+    private void compile(List<Stmt> stmts) {
+        for (Stmt s : stmts) {
+            compile(s);
         }
     }
-    
-    @Override
-    public void enterAtomExpr(XpresParser.AtomExprContext ctx) {
-        if (ctx.ID() != null) {
-            int a = getVarAddr(ctx.ID().getSymbol());
-            tracePrint("Push contents of "+a+" on stack");
+
+    /** Emits code for a while loop. The test is placed after the body, so
+     *  that an iteration ends with a single conditional jump back to the
+     *  body, and the loop is entered by a jump to the test. */
+    private void compileWhile(Stmt.While w) {
+        mapTo(w.line, "while");
+        trace(Trace.Action.WHILE);
+        Cond c = cond(w.cond);
+        trace(Trace.Action.JUMP);
+        int skip = out.emitJump(0);         // to the test, filled in below
+        int body = out.currentCodeAddress();
+        compile(w.body);
+        line = w.line;
+        mapTo(w.line, "while");
+        out.reviseAInstr(skip, out.currentCodeAddress());
+        emitBranch(c, true, body);
+    }
+
+    /** Emits code for an if statement: a jump past the then part if the
+     *  condition does not hold, and with an else part, a jump past it at the
+     *  end of the then part. */
+    private void compileIf(Stmt.If i) {
+        mapTo(i.line, "if");
+        trace(Trace.Action.IF);
+        int skip = emitBranch(cond(i.cond), false, 0);
+        compile(i.thenPart);
+        if (!i.elsePart.isEmpty()) {
+            line = i.line;
+            mapTo(i.line, "if");
+            trace(Trace.Action.JUMP);
+            int end = out.emitJump(0);
+            out.reviseAInstr(skip, out.currentCodeAddress());
+            compile(i.elsePart);
+            skip = end;
+        }
+        out.reviseAInstr(skip, out.currentCodeAddress());
+    }
+
+    /** Emits code that jumps to target if the condition is when. An operand
+     *  is compared directly with the other when it is a variable or constant,
+     *  and otherwise the right one is kept in MulY. A single jump on the
+     *  difference decides, after jumps on the signs for <, <=, > and >=
+     *  where the difference could overflow (see HackGen.emitCompareD).
+     *  Returns the address of the @-instruction with the target, to fill in
+     *  later if it is not known yet. */
+    private int emitBranch(Cond c, boolean when, int target) {
+        Cond.Op op = when ? c.op : c.op.negate();
+        Expr l = c.left, r = c.right;
+        if (r instanceof Expr.Const) {
+            int k = ((Expr.Const) r).value;
+            emitExpr(l);
+            trace(Trace.Action.COMPARE_CONST, (short) k);
+            popToD();
+            return out.emitCompareConstD(k, target, op.jump);
+        } else if (l instanceof Expr.Const) {
+            int k = ((Expr.Const) l).value;
+            emitExpr(r);
+            trace(Trace.Action.COMPARE_CONST, (short) k);
+            popToD();
+            return out.emitCompareConstD(k, target, HackGen.mirrorJump(op.jump));
+        } else if (r instanceof Expr.Var) {
+            int a = ((Expr.Var) r).slot;
+            emitExpr(l);
+            trace(Trace.Action.COMPARE_VAR, a);
+            popToD();
+            return out.emitCompareD(a, target, op.jump);
+        } else if (op == Cond.Op.EQ || op == Cond.Op.NE) {
+            emitExpr(l);
+            emitExpr(r);
+            trace(Trace.Action.COMPARE_TOP);
+            popToD();                           // Right operand in D.
+            out.emitPopToM();                   // Left operand in M.
+            out.emitCInstr(HackGen.DestD, HackGen.MMinusD, 0);
+            return out.emitJumpD(target, op.jump);
+        } else {
+            emitExpr(l);
+            emitExpr(r);
+            trace(Trace.Action.COMPARE_TOP);
+            popToD();                           // Right operand in D.
+            out.emitAInstr(HackGen.MulY);
+            out.emitCInstr(HackGen.DestM, HackGen.CompD, 0);
+            popToD();                           // Left operand in D.
+            return out.emitCompareD(HackGen.MulY, target, op.jump);
+        }
+    }
+
+    private void compileDecl(Stmt.Decl d) {
+        int addr;
+        try {
+            addr = out.newVarAddr();
+        } catch (IllegalStateException e) {
+            if (!outOfVars) error(d.line, e.getMessage());
+            outOfVars = true;
+            // Keep the name defined, so that its uses are not also reported.
+            varAddr.put(d.name, 0);
+            return;
+        }
+        Integer old = varAddr.put(d.name, addr);
+        if (old != null) {
+            error(d.line, "redefined " + d.name);
+        }
+    }
+
+    /** Returns an expression with variables resolved to their memory addresses,
+     *  and simplified if folding is on. */
+    private Expr expr(Expr e) {
+        e.resolve(resolver);
+        return fold ? e.fold() : e;
+    }
+
+    /** Returns a condition with its variables resolved, and simplified if
+     *  folding is on. */
+    private Cond cond(Cond c) {
+        c.resolve(resolver);
+        return fold ? c.fold() : c;
+    }
+
+    /** Emits code that leaves the value of an expression on top of the stack. */
+    private void emitExpr(Expr e) {
+        if (e instanceof Expr.Const) {
+            int i = ((Expr.Const) e).value;
+            trace(Trace.Action.PUSH_CONST, i);
+            spillTop();
+            out.emitConstD(i);
+            pushD();
+        } else if (e instanceof Expr.Var) {
+            int a = ((Expr.Var) e).slot;
+            trace(Trace.Action.PUSH_VAR, a);
+            spillTop();
             out.emitAInstr(a);
             out.emitCInstr(HackGen.DestD, HackGen.CompM, 0);
-            out.emitPushD();
-        } else if (ctx.INT() != null) {
-            int i = Integer.parseInt(ctx.INT().getText());
-            tracePrint("Push "+i+" on stack");
-            out.emitAInstr(i);
-            out.emitCInstr(HackGen.DestD, HackGen.CompA, 0);
-            out.emitPushD();
+            pushD();
+        } else {
+            Expr.Binary b = (Expr.Binary) e;
+            if (b.op == Expr.Op.MUL) {
+                emitMul(b);
+                return;
+            }
+            emitExpr(b.left);
+            if (topInD && emitAddToD(b.right)) {
+                return;
+            }
+            emitExpr(b.right);
+            // Add the top two numbers on the stack, leaving only the sum.
+            trace(Trace.Action.ADD_TOP);
+            if (topInD) {
+                out.emitPopToM();             // Right operand in D, get left.
+                out.emitCInstr(HackGen.DestD, HackGen.DPlusM, 0); // Add them, sum stays in D.
+            } else {
+                out.emitStackOp(HackGen.DPlusM, sharedSite()); // Replace them with the sum.
+            }
+        }
+    }
+
+    /** Emits code for a multiplication. A multiplication by a constant is done
+     *  with shifts and adds, if strength reduction is on and it is cheap
+     *  enough. Otherwise the multiplication routine is called. */
+    private void emitMul(Expr.Binary b) {
+        Expr l = b.left, r = b.right;
+        if (l instanceof Expr.Const && !(r instanceof Expr.Const)) {
+            Expr t = l;         // multiplication commutes
+            l = r;
+            r = t;
+        }
+        if (strength && r instanceof Expr.Const) {
+            int c = ((Expr.Const) r).value;
+            int cost = HackGen.mulConstCost(c);
+            if (cost >= 0 && cost <= MaxMulConstCost) {
+                emitExpr(l);
+                trace(Trace.Action.MUL_CONST, c);
+                popToD();
+                out.emitMulConstD(c);
+                pushD();
+                return;
+            }
+        }
+        emitExpr(l);
+        emitExpr(r);
+        trace(Trace.Action.MUL_TOP);
+        popToD();                               // Right operand in D.
+        out.emitMultiplyTop(sharedSite());      // Product in D.
+        pushD();
+    }
+
+    /** If e is a constant or variable, emits code that adds it directly to D
+     *  and returns true. Otherwise, emits nothing and returns false. */
+    private boolean emitAddToD(Expr e) {
+        if (e instanceof Expr.Var) {
+            int a = ((Expr.Var) e).slot;
+            trace(Trace.Action.ADD_VAR, a);
+            out.emitAInstr(a);
+            out.emitCInstr(HackGen.DestD, HackGen.DPlusM, 0);
+            return true;
+        } else if (e instanceof Expr.Const) {
+            int i = (short) ((Expr.Const) e).value;
+            trace(Trace.Action.ADD_CONST, i);
+            if (i == 1 || i == -1) {
+                out.emitCInstr(HackGen.DestD, i == 1 ? HackGen.DPlus1 : HackGen.DMinus1, 0);
+            } else if (i >= 0) {
+                out.emitAInstr(i);
+                out.emitCInstr(HackGen.DestD, HackGen.DPlusA, 0);
+            } else if (i != Short.MIN_VALUE) {
+                out.emitAInstr(-i);
+                out.emitCInstr(HackGen.DestD, HackGen.DMinusA, 0);
+            } else {
+                return false;
+            }
+            return true;
         }
+        return false;
     }
 }
@@ -0,0 +1,90 @@
+package xpres2;
+
+/**
+ * A comparison of two expressions, the condition of a while or if statement.
+ * Values are compared as numbers, so 30000 < -30000 is false, in every
+ * backend. (On the Hack computer, a comparison is a subtraction followed by
+ * a jump on the sign of the result, so the compiled code has to guard
+ * against the difference not fitting in 16 bits; see HackGen.emitCompareD.)
+ */
+public class Cond {
+    /** The comparison operators. */
+    public enum Op {
+        LT("<", HackGen.JLT), LE("<=", HackGen.JLE), GT(">", HackGen.JGT),
+        GE(">=", HackGen.JGE), EQ("==", HackGen.JEQ), NE("!=", HackGen.JNE);
+
+        public final String symbol;
+        /** The Hack jump on the difference that jumps if the comparison holds
+          * (when the difference fits). */
+        public final int jump;
+
+        Op(String symbol, int jump) {
+            this.symbol = symbol;
+            this.jump = jump;
+        }
+
+        /** Compares x to y. */
+        public boolean test(int x, int y) {
+            switch (this) {
+            case LT: return x < y;
+            case LE: return x <= y;
+            case GT: return x > y;
+            case GE: return x >= y;
+            case EQ: return x == y;
+            default: return x != y;
+            }
+        }
+
+        /** Returns the operator that holds when this one does not. */
+        public Op negate() {
+            switch (this) {
+            case LT: return GE;
+            case LE: return GT;
+            case GT: return LE;
+            case GE: return LT;
+            case EQ: return NE;
+            default: return EQ;
+            }
+        }
+
+        /** Returns the operator with the given symbol. */
+        public static Op of(String symbol) {
+            for (Op op : values()) {
+                if (op.symbol.equals(symbol)) return op;
+            }
+            throw new IllegalArgumentException("no comparison " + symbol);
+        }
+    }
+
+    /** Source line where the condition starts. */
+    public final int line;
+    public final Op op;
+    public final Expr left, right;
+
+    public Cond(int line, Op op, Expr left, Expr right) {
+        this.line = line;
+        this.op = op;
+        this.left = left;
+        this.right = right;
+    }
+
+    /** Looks up all variables in the operands, setting their slots. */
+    public void resolve(Expr.Resolver r) {
+        left.resolve(r);
+        right.resolve(r);
+    }
+
+    /** Returns the condition with its operands folded (see Expr.fold). */
+    public Cond fold() {
+        Expr l = left.fold();
+        Expr r = right.fold();
+        return l == left && r == right ? this : new Cond(line, op, l, r);
+    }
+
+    /** Computes whether the condition holds. */
+    public boolean test(Expr.Env env) {
+        return op.test(left.eval(env), right.eval(env));
+    }
+
+    public String toString() { return left + " " + op.symbol + " " + right; }
+}
@@ -0,0 +1,207 @@
+package xpres2;
+
+import java.util.*;
+
+/**
+ * Constant propagation over a whole program. Since programs have no input,
+ * the value of every variable is known at each point of a straight-line
+ * program. Uses of variables with known values are replaced by the values,
+ * and assignments to variables that are not read afterwards are removed, so
+ * that essentially only the prints are left.
+ *
+ * Statements that refer to undefined variables are left as they are, so that
+ * the compiler still reports them.
+ *
+ * A while loop or if statement is kept, with only the variables that it does
+ * not assign replaced inside it; the ones it assigns are unknown from it on.
+ * No assignment inside it is removed, and every variable it reads is live
+ * before it.
+ */
+public class ConstantPropagation {
+    private ConstantPropagation() { }
+
+    /** Returns the program with constants propagated and dead assignments
+      * removed. The statements given are not changed. */
+    public static List<Stmt> run(List<Stmt> program) {
+        return removeDeadAssigns(propagate(program));
+    }
+
+    /** Forward pass: replaces variables with their values where known. */
+    private static List<Stmt> propagate(List<Stmt> program) {
+        HashSet<String> declared = new HashSet<String>();
+        HashMap<String, Integer> known = new HashMap<String, Integer>();
+        ArrayList<Stmt> result = new ArrayList<Stmt>(program.size());
+
+        for (Stmt s : program) {
+            if (s instanceof Stmt.Decl) {
+                String name = ((Stmt.Decl) s).name;
+                declared.add(name);
+                known.put(name, 0); // variables start out as zero
+                result.add(s);
+            } else if (s instanceof Stmt.Assign) {
+                Stmt.Assign a = (Stmt.Assign) s;
+                if (!declared.contains(a.name) || !onlyDeclared(a.expr, declared)) {
+                    known.remove(a.name);
+                    result.add(s);
+                    continue;
+                }
+                Expr e = substitute(a.expr, known).fold();
+                if (e instanceof Expr.Const) {
+                    known.put(a.name, ((Expr.Const) e).value);
+                } else {
+                    known.remove(a.name);
+                }
+                result.add(new Stmt.Assign(a.line, a.name, e));
+            } else if (s instanceof Stmt.Print) {
+                Stmt.Print p = (Stmt.Print) s;
+                if (!onlyDeclared(p.expr, declared)) {
+                    result.add(s);
+                    continue;
+                }
+                result.add(new Stmt.Print(p.line, substitute(p.expr, known).fold()));
+            } else {
+                // In a loop, a variable assigned anywhere in the body may have
+                // been assigned by an earlier iteration.
+                HashSet<String> assigned = new HashSet<String>();
+                s.addAssigned(assigned);
+                known.keySet().removeAll(assigned);
+                result.add(substitute(s, known, declared));
+            }
+        }
+        return result;
+    }
+
+    /** Returns a statement in a loop or if statement, or the statement
+      * itself, with known variables replaced by constants where all the
+      * variables are declared. */
+    private static Stmt substitute(Stmt s, Map<String, Integer> known, Set<String> declared) {
+        if (s instanceof Stmt.Assign) {
+            Stmt.Assign a = (Stmt.Assign) s;
+            if (!declared.contains(a.name) || !onlyDeclared(a.expr, declared)) return s;
+            return new Stmt.Assign(a.line, a.name, substitute(a.expr, known).fold());
+        } else if (s instanceof Stmt.Print) {
+            Stmt.Print p = (Stmt.Print) s;
+            if (!onlyDeclared(p.expr, declared)) return s;
+            return new Stmt.Print(p.line, substitute(p.expr, known).fold());
+        } else if (s instanceof Stmt.While) {
+            Stmt.While w = (Stmt.While) s;
+            return new Stmt.While(w.line, substitute(w.cond, known, declared), substitute(w.body, known, declared));
+        } else {
+            Stmt.If i = (Stmt.If) s;
+            return new Stmt.If(i.line, substitute(i.cond, known, declared), substitute(i.thenPart, known, declared),
+                               substitute(i.elsePart, known, declared));
+        }
+    }
+
+    private static List<Stmt> substitute(List<Stmt> stmts, Map<String, Integer> known, Set<String> declared) {
+        ArrayList<Stmt> result = new ArrayList<Stmt>(stmts.size());
+        for (Stmt s : stmts) {
+            result.add(substitute(s, known, declared));
+        }
+        return result;
+    }
+
+    private static Cond substitute(Cond c, Map<String, Integer> known, Set<String> declared) {
+        if (!onlyDeclared(c.left, declared) || !onlyDeclared(c.right, declared)) return c;
+        return new Cond(c.line, c.op, substitute(c.left, known), substitute(c.right, known)).fold();
+    }
+
+    /** Backward pass: removes assignments to variables that are not read
+      * before they are assigned again, or before the program ends. */
+    private static List<Stmt> removeDeadAssigns(List<Stmt> program) {
+        // Assignments that may be removed: those that only refer to variables
+        // declared before them.
+        boolean[] removable = new boolean[program.size()];
+        HashSet<String> declared = new HashSet<String>();
+        for (int i = 0; i < removable.length; i++) {
+            Stmt s = program.get(i);
+            if (s instanceof Stmt.Decl) {
+                declared.add(((Stmt.Decl) s).name);
+            } else if (s instanceof Stmt.Assign) {
+                Stmt.Assign a = (Stmt.Assign) s;
+                removable[i] = declared.contains(a.name) && onlyDeclared(a.expr, declared);
+            }
+        }
+
+        HashSet<String> live = new HashSet<String>();
+        ArrayList<Stmt> result = new ArrayList<Stmt>(program.size());
+        for (int i = program.size() - 1; i >= 0; i--) {
+            Stmt s = program.get(i);
+            if (s instanceof Stmt.Decl) {
+                live.remove(((Stmt.Decl) s).name);
+            } else if (s instanceof Stmt.Assign) {
+                Stmt.Assign a = (Stmt.Assign) s;
+                if (!live.contains(a.name) && removable[i]) {
+                    continue; // dead
+                }
+                live.remove(a.name);
+                addVars(a.expr, live);
+            } else {
+                addReads(s, live);
+            }
+            result.add(s);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /** Returns e with known variables replaced by constants. */
+    private static Expr substitute(Expr e, Map<String, Integer> known) {
+        if (e instanceof Expr.Var) {
+            Integer v = known.get(((Expr.Var) e).name);
+            return v == null ? e : new Expr.Const(e.line, v);
+        } else if (e instanceof Expr.Binary) {
+            Expr.Binary b = (Expr.Binary) e;
+            return new Expr.Binary(b.line, b.op, substitute(b.left, known), substitute(b.right, known));
+        } else {
+            return e;
+        }
+    }
+
+    /** Returns true if all variables in e are in the declared set. */
+    private static boolean onlyDeclared(Expr e, Set<String> declared) {
+        if (e instanceof Expr.Var) {
+            return declared.contains(((Expr.Var) e).name);
+        } else if (e instanceof Expr.Binary) {
+            return onlyDeclared(((Expr.Binary) e).left, declared)
+                && onlyDeclared(((Expr.Binary) e).right, declared);
+        } else {
+            return true;
+        }
+    }
+
+    /** Adds the variables that a print, loop or if statement reads to vars. */
+    private static void addReads(Stmt s, Set<String> vars) {
+        if (s instanceof Stmt.Assign) {
+            addVars(((Stmt.Assign) s).expr, vars);
+        } else if (s instanceof Stmt.Print) {
+            addVars(((Stmt.Print) s).expr, vars);
+        } else if (s instanceof Stmt.While) {
+            Stmt.While w = (Stmt.While) s;
+            addVars(w.cond.left, vars);
+            addVars(w.cond.right, vars);
+            addReads(w.body, vars);
+        } else if (s instanceof Stmt.If) {
+            Stmt.If i = (Stmt.If) s;
+            addVars(i.cond.left, vars);
+            addVars(i.cond.right, vars);
+            addReads(i.thenPart, vars);
+            addReads(i.elsePart, vars);
+        }
+    }
+
+    private static void addReads(List<Stmt> stmts, Set<String> vars) {
+        for (Stmt s : stmts) {
+            addReads(s, vars);
+        }
+    }
+
+    private static void addVars(Expr e, Set<String> vars) {
+        if (e instanceof Expr.Var) {
+            vars.add(((Expr.Var) e).name);
+        } else if (e instanceof Expr.Binary) {
+            addVars(((Expr.Binary) e).left, vars);
+            addVars(((Expr.Binary) e).right, vars);
+        }
+    }
+}
@@ -0,0 +1,805 @@
+package xpres2;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * A hand-written lexer and recursive-descent parser for xpres2 (like the one
+ * in xpres.js), as a faster alternative to the ANTLR parser, which also does
+ * not need the ANTLR runtime. It accepts the same language as
+ * grammar/Xpres.g4, and builds the same statements and expression trees as
+ * TreeBuilder does from the ANTLR parse tree, with the same line numbers.
+ *
+ * Statements are parsed one at a time, from a reader, so this can also be
+ * used for streaming. Syntax errors are reported as "file:line: message",
+ * and recovered from as by the ANTLR parser when it parses a statement at a
+ * time (see StatementStream), so that the same messages are reported and
+ * the same statements skipped: a missing or extra token is put in or
+ * skipped if that lets parsing go on, and otherwise the rule that found the
+ * error skips to a token that can follow it, or one of the rules it is in,
+ * or to a ';' or '}'. The tokens that may follow are worked out by hand for
+ * this grammar, as ANTLR does from the grammar, so the two have to be kept
+ * in step (CheckParsers checks that they are).
+ */
+public class DescentParser implements StatementSource {
+    // Token kinds, numbered as in the ANTLR vocabulary, so that sets of them
+    // are listed in the same order in messages.
+    private static final int EOF = 0, SEMI = 1, VAR = 2, ASSIGN = 3, PRINT = 4, WHILE = 5, LPAREN = 6,
+        RPAREN = 7, IF = 8, ELSE = 9, LBRACE = 10, RBRACE = 11, LT = 12, LE = 13, GT = 14, GE = 15,
+        EQ = 16, NE = 17, PLUS = 18, TIMES = 19, ID = 20, INT = 21;
+    private static final String[] Names = {
+        "<EOF>", "';'", "'var'", "'='", "'print'", "'while'", "'('", "')'", "'if'", "'else'", "'{'", "'}'",
+        "'<'", "'<='", "'>'", "'>='", "'=='", "'!='", "'+'", "'*'", "ID", "INT"
+    };
+
+    // Sets of token kinds are bit masks. In the set of tokens that can follow
+    // a point in a rule, Eps means that the rule can end there, so that what
+    // follows the rule can come next.
+    private static final int Eps = 1 << 30;
+    private static final int StatementStart = bits(VAR, PRINT, WHILE, IF, ID);
+    private static final int ActionStart = bits(PRINT, WHILE, IF, ID);
+    private static final int ExprStart = bits(LPAREN, ID, INT);
+    private static final int Comparison = bits(LT, LE, GT, GE, EQ, NE);
+
+    // The points where an error can be found, for recover.
+    private static final int NextStatementSync = 0, StatementSync = 1, DeclSemi = 2, ActionSync = 3,
+        AssignSemi = 4, PrintSemi = 5, DeclVar = 6, DeclId = 7, AssignId = 8, AssignOp = 9, PrintKey = 10,
+        WhileKey = 11, WhileOpen = 12, WhileClose = 13, IfKey = 14, IfOpen = 15, IfClose = 16, ElseKey = 17,
+        ElseSync = 18, BlockOpen = 19, BlockSync = 20, BlockClose = 21, CondOp = 22, AtomSync = 23,
+        AtomOpen = 24, AtomClose = 25;
+
+    private final String infnam;
+    private final Reader in;
+    private final PrintStream err;
+    private int errors = 0;
+
+    // Input buffer.
+    private final char[] buf = new char[65536];
+    private int bufPos = 0, bufEnd = 0;
+    private int line = 1;
+
+    // The current token, the one after it if it has been read, the kind of
+    // the one before it, and the number of tokens before it.
+    private int tok;
+    private String tokText;
+    private int tokLine;
+    private boolean peeked = false;
+    private int nextTok;
+    private String nextText;
+    private int nextLine;
+    private int prevTok = -1;
+    private int index = 0;
+    private final StringBuilder text = new StringBuilder();
+
+    // For each rule being parsed, the tokens that can follow it in the rule
+    // that it is part of.
+    private int[] follows = new int[32];
+    private int depth = 0;
+
+    // State of error recovery, as in ANTLR's DefaultErrorStrategy: whether
+    // an error has been reported and no token matched since (further errors
+    // are not reported until one is), the tokens expected at the last point
+    // where a rule could have ended, if no token has been seen there since
+    // (which are the ones reported when a token is missing after it), and
+    // the token index and points of recoveries since the last match, which
+    // make a recovery at the same index and point as before skip a token.
+    private boolean recovering = false;
+    private int expectedAtEnd = -1;
+    private int lastErrorIndex = -1;
+    private final BitSet errorPoints = new BitSet();
+
+    // Syntax errors in the current statement, reported or not, the position
+    // of the first (twice the token index, odd for a missing token), and the
+    // first integer too large.
+    private int faults = 0;
+    private int firstFault;
+    private int bigPos, bigLine;
+    private String bigText;
+
+    /** Thrown for a syntax error, to the rule that recovers from it. */
+    private static class SyntaxError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int line;
+        final String msg;
+        final int point;
+
+        SyntaxError(int line, String msg, int point) {
+            super(null, null, false, false);
+            this.line = line;
+            this.msg = msg;
+            this.point = point;
+        }
+    }
+
+    /** Creates a parser for the program read from in, reporting syntax errors
+      * to err. */
+    public DescentParser(String infnam, Reader in, PrintStream err) throws IOException {
+        this.infnam = infnam;
+        this.in = in;
+        this.err = err;
+        lex();
+    }
+
+    /** Parses a whole program, and returns its statements, or null if there
+      * were syntax errors. */
+    public static List<Stmt> parse(String infnam, Reader in, PrintStream err) throws IOException {
+        DescentParser p = new DescentParser(infnam, in, err);
+        ArrayList<Stmt> program = new ArrayList<Stmt>();
+        for (Stmt s = p.next(); s != null; s = p.next()) {
+            program.add(s);
+        }
+        return p.getErrors() > 0 ? null : program;
+    }
+
+    /** Returns the number of syntax errors reported so far. */
+    public int getErrors() {
+        return errors;
+    }
+
+    /** Returns the next statement, or null at the end of the input. Statements
+      * with syntax errors are skipped. */
+    public Stmt next() throws IOException {
+        while (true) {
+            int before = index;
+            Stmt s = nextStatement();
+            if (s != null) return s;
+            if (tok == EOF) return null;
+            // As in StatementStream: the ';' or '}' that recovery stopped in
+            // front of goes with the statement.
+            boolean ended = index > before && (prevTok == SEMI || prevTok == RBRACE);
+            if (!ended && (tok == SEMI || tok == RBRACE) || index == before) {
+                advance();
+            }
+        }
+    }
+
+    // nextStatement : statement | EOF
+    private Stmt nextStatement() throws IOException {
+        int start = index;
+        try {
+            sync(StatementStart | bit(EOF), false, NextStatementSync);
+            if (in(tok, StatementStart)) {
+                return statement();
+            } else if (tok == EOF) {
+                endRecovery();
+            } else {
+                throw noViableAlt(NextStatementSync);
+            }
+        } catch (SyntaxError e) {
+            recover(e, start);
+        }
+        return null;
+    }
+
+    // statement : decl ';' | action
+    // Returns null if the statement has a syntax error.
+    private Stmt statement() throws IOException {
+        enter(Eps);
+        int start = index;
+        int before = faults;
+        firstFault = Integer.MAX_VALUE;
+        bigText = null;
+        Stmt s = null;
+        try {
+            sync(StatementStart, false, StatementSync);
+            if (tok == VAR) {
+                s = decl();
+                match(bit(SEMI), Eps, DeclSemi);
+            } else if (in(tok, ActionStart)) {
+                s = action(Eps);
+            } else {
+                throw noViableAlt(StatementSync);
+            }
+        } catch (SyntaxError e) {
+            recover(e, start);
+        }
+        exit();
+        // An integer too large is reported like TreeBuilder.isValid does, if
+        // it comes before the first syntax error.
+        if (bigText != null && bigPos < firstFault) {
+            report(bigLine, "integer too large: " + bigText);
+            return null;
+        }
+        return faults == before ? s : null;
+    }
+
+    // decl : 'var' ID
+    private Stmt decl() throws IOException {
+        enter(bits(SEMI));
+        int start = index;
+        Stmt s = null;
+        try {
+            match(bit(VAR), bits(ID), DeclVar);
+            String name = tokText;
+            int l = tokLine;
+            match(bit(ID), Eps, DeclId);
+            s = new Stmt.Decl(l, name);
+        } catch (SyntaxError e) {
+            recover(e, start);
+        }
+        exit();
+        return s;
+    }
+
+    // action : assign ';' | print ';' | whileLoop | ifElse
+    private Stmt action(int follow) throws IOException {
+        enter(follow);
+        int start = index;
+        Stmt s = null;
+        try {
+            sync(ActionStart, false, ActionSync);
+            switch (tok) {
+            case ID:
+                s = assign();
+                match(bit(SEMI), Eps, AssignSemi);
+                break;
+            case PRINT:
+                s = print();
+                match(bit(SEMI), Eps, PrintSemi);
+                break;
+            case WHILE:
+                s = whileLoop();
+                break;
+            case IF:
+                s = ifElse(Eps);
+                break;
+            default:
+                throw noViableAlt(ActionSync);
+            }
+        } catch (SyntaxError e) {
+            recover(e, start);
+        }
+        exit();
+        return s;
+    }
+
+    // assign : ID '=' expr
+    private Stmt assign() throws IOException {
+        enter(bits(SEMI));
+        int start = index;
+        int l = tokLine;
+        String name = tokText;
+        Stmt s = null;
+        try {
+            match(bit(ID), bits(ASSIGN), AssignId);
+            match(bit(ASSIGN), ExprStart, AssignOp);
+            s = new Stmt.Assign(l, name, expr(Eps));
+        } catch (SyntaxError e) {
+            recover(e, start);
+        }
+        exit();
+        return s;
+    }
+
+    // print : 'print' expr
+    private Stmt print() throws IOException {
+        enter(bits(SEMI));
+        int start = index;
+        int l = tokLine;
+        Stmt s = null;
+        try {
+            match(bit(PRINT), ExprStart, PrintKey);
+            s = new Stmt.Print(l, expr(Eps));
+        } catch (SyntaxError e) {
+            recover(e, start);
+        }
+        exit();
+        return s;
+    }
+
+    // whileLoop : 'while' '(' cond ')' block
+    private Stmt whileLoop() throws IOException {
+        enter(Eps);
+        int start = index;
+        int l = tokLine;
+        Stmt s = null;
+        try {
+            match(bit(WHILE), bits(LPAREN), WhileKey);
+            match(bit(LPAREN), ExprStart, WhileOpen);
+            Cond c = cond();
+            match(bit(RPAREN), bits(LBRACE), WhileClose);
+            s = new Stmt.While(l, c, block(Eps));
+        } catch (SyntaxError e) {
+            recover(e, start);
+        }
+        exit();
+        return s;
+    }
+
+    // ifElse : 'if' '(' cond ')' block ('else' (block | ifElse))?
+    private Stmt ifElse(int follow) throws IOException {
+        enter(follow);
+        int start = index;
+        int l = tokLine;
+        Stmt s = null;
+        try {
+            match(bit(IF), bits(LPAREN), IfKey);
+            match(bit(LPAREN), ExprStart, IfOpen);
+            Cond c = cond();
+            match(bit(RPAREN), bits(LBRACE), IfClose);
+            List<Stmt> thenPart = block(bits(ELSE) | Eps);
+            List<Stmt> elsePart = Collections.emptyList();
+            sync(bits(ELSE) | Eps, false, -1);
+            if (tok == ELSE) {
+                match(bit(ELSE), bits(LBRACE, IF), ElseKey);
+                sync(bits(LBRACE, IF), false, ElseSync);
+                if (tok == LBRACE) {
+                    elsePart = block(Eps);
+                } else if (tok == IF) {
+                    elsePart = Collections.singletonList(ifElse(Eps));
+                } else {
+                    throw noViableAlt(ElseSync);
+                }
+            }
+            s = new Stmt.If(l, c, thenPart, elsePart);
+        } catch (SyntaxError e) {
+            recover(e, start);
+        }
+        exit();
+        return s;
+    }
+
+    // block : '{' action* '}'
+    private List<Stmt> block(int follow) throws IOException {
+        enter(follow);
+        int start = index;
+        ArrayList<Stmt> stmts = new ArrayList<Stmt>();
+        try {
+            match(bit(LBRACE), ActionStart | bits(RBRACE), BlockOpen);
+            sync(ActionStart | bits(RBRACE), false, BlockSync);
+            while (in(tok, ActionStart)) {
+                stmts.add(action(ActionStart | bits(RBRACE)));
+                sync(ActionStart | bits(RBRACE), true, BlockSync);
+            }
+            match(bit(RBRACE), Eps, BlockClose);
+        } catch (SyntaxError e) {
+            recover(e, start);
+        }
+        exit();
+        return stmts;
+    }
+
+    // cond : expr ('<' | '<=' | '>' | '>=' | '==' | '!=') expr
+    private Cond cond() throws IOException {
+        enter(bits(RPAREN));
+        int start = index;
+        int l = tokLine;
+        Cond c = null;
+        try {
+            Expr left = expr(Comparison);
+            Cond.Op op;
+            switch (match(Comparison, ExprStart, CondOp)) {
+            case LT: op = Cond.Op.LT; break;
+            case LE: op = Cond.Op.LE; break;
+            case GT: op = Cond.Op.GT; break;
+            case GE: op = Cond.Op.GE; break;
+            case EQ: op = Cond.Op.EQ; break;
+            case NE: op = Cond.Op.NE; break;
+            default:
+                // Missing and put in, which makes the whole condition bad,
+                // as in TreeBuilder.isValid.
+                op = null;
+                fault(2 * start);
+            }
+            c = new Cond(l, op, left, expr(Eps));
+        } catch (SyntaxError e) {
+            recover(e, start);
+        }
+        exit();
+        return c;
+    }
+
+    // expr : addExpr
+    private Expr expr(int follow) throws IOException {
+        enter(follow);
+        Expr e = addExpr(Eps);
+        exit();
+        return e;
+    }
+
+    // addExpr : mulExpr ('+' mulExpr)*
+    private Expr addExpr(int follow) throws IOException {
+        enter(follow);
+        int l = tokLine;
+        Expr e = mulExpr(bits(PLUS) | Eps);
+        sync(bits(PLUS) | Eps);
+        while (tok == PLUS) {
+            consumeMatch();
+            e = new Expr.Binary(l, Expr.Op.ADD, e, mulExpr(bits(PLUS) | Eps));
+            sync(bits(PLUS) | Eps);
+        }
+        exit();
+        return e;
+    }
+
+    // mulExpr : atomExpr ('*' atomExpr)*
+    private Expr mulExpr(int follow) throws IOException {
+        enter(follow);
+        int l = tokLine;
+        Expr e = atomExpr(bits(TIMES) | Eps);
+        sync(bits(TIMES) | Eps);
+        while (tok == TIMES) {
+            consumeMatch();
+            e = new Expr.Binary(l, Expr.Op.MUL, e, atomExpr(bits(TIMES) | Eps));
+            sync(bits(TIMES) | Eps);
+        }
+        exit();
+        return e;
+    }
+
+    // atomExpr : ID | INT | '(' expr ')'
+    private Expr atomExpr(int follow) throws IOException {
+        enter(follow);
+        int start = index;
+        Expr e = null;
+        try {
+            sync(ExprStart, false, AtomSync);
+            if (tok == ID) {
+                e = new Expr.Var(tokLine, tokText);
+                consumeMatch();
+            } else if (tok == INT) {
+                int v = 0;
+                try {
+                    v = Integer.parseInt(tokText);
+                } catch (NumberFormatException x) {
+                    if (bigText == null) {
+                        bigPos = 2 * index;
+                        bigLine = tokLine;
+                        bigText = tokText;
+                    }
+                }
+                e = new Expr.Const(tokLine, v);
+                consumeMatch();
+            } else if (tok == LPAREN) {
+                match(bit(LPAREN), ExprStart, AtomOpen);
+                e = expr(bits(RPAREN));
+                match(bit(RPAREN), Eps, AtomClose);
+            } else {
+                throw noViableAlt(AtomSync);
+            }
+        } catch (SyntaxError x) {
+            recover(x, start);
+        }
+        exit();
+        return e;
+    }
+
+    private void enter(int follow) {
+        if (depth == follows.length) follows = Arrays.copyOf(follows, 2 * depth);
+        follows[depth++] = follow;
+    }
+
+    private void exit() {
+        depth--;
+    }
+
+    /** Returns the tokens that can come next, given those that can follow
+      * at this point in the current rule: if it can end here, also what can
+      * follow the rule, and so on, and if the statement can end, EOF. */
+    private int expected(int set) {
+        for (int d = depth - 1; (set & Eps) != 0; d--) {
+            set = set & ~Eps | (d >= 0 ? follows[d] : bit(EOF));
+        }
+        return set;
+    }
+
+    /** Returns the tokens to skip to after an error: what can follow each
+      * rule being parsed where it is, and ';' and '}', the ends of
+      * statements. */
+    private int recoverySet() {
+        int set = bits(SEMI, RBRACE);
+        for (int d = 0; d < depth; d++) {
+            set |= follows[d];
+        }
+        return set & ~Eps;
+    }
+
+    /** Consumes a token of one of the kinds in set, and returns its kind. If
+      * the current token is not one of them, but the one after it is, the
+      * current token is skipped. Or if the current one can follow one of
+      * them (given the tokens after, which can follow here), it is taken as
+      * missing, and -1 returned. Otherwise it is an error, thrown as a
+      * SyntaxError at the given point. */
+    private int match(int set, int after, int point) throws IOException, SyntaxError {
+        int kind = tok;
+        if (in(kind, set)) {
+            consumeMatch();
+            return kind;
+        }
+        if (deleteToken(set)) {
+            kind = tok;
+            advance();
+            return kind;
+        }
+        if (in(tok, expected(after))) {
+            fault(2 * index - 1);
+            if (!recovering) {
+                recovering = true;
+                report(tokLine, "missing " + describe(set) + " at " + describe());
+            }
+            return -1;
+        }
+        throw mismatch(expectedAtEnd >= 0 ? expectedAtEnd : set, point);
+    }
+
+    /** Checks the current token against set, the tokens that can come next
+      * at the start of a rule or an alternative (loopBack false), or at the
+      * end of a loop (true). If it is not one of them, either the next token
+      * is, and the current one is skipped, or it is an error: thrown as a
+      * SyntaxError at the start, and at the end of a loop, reported and
+      * tokens skipped up to one that can come next or after the rule. */
+    private void sync(int set, boolean loopBack, int point) throws IOException, SyntaxError {
+        if (recovering) return;
+        if (in(tok, set)) {
+            expectedAtEnd = -1;
+            return;
+        }
+        if ((set & Eps) != 0) {
+            if (expectedAtEnd < 0) expectedAtEnd = expected(set);
+            return;
+        }
+        if (loopBack) {
+            unwanted(set);
+            consumeUntil(set | recoverySet());
+        } else if (!deleteToken(set)) {
+            throw mismatch(set, point);
+        }
+    }
+
+    /** sync at a point where the rule can end, which is never an error. */
+    private void sync(int set) {
+        try {
+            sync(set, false, -1);
+        } catch (IOException | SyntaxError e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Skips the current token if the next one is in expecting, and returns
+      * true if it did. */
+    private boolean deleteToken(int expecting) throws IOException {
+        if (!in(peek(), expecting)) return false;
+        unwanted(expecting);
+        consumeFault();
+        endRecovery();
+        return true;
+    }
+
+    private void unwanted(int expecting) {
+        if (!recovering) {
+            recovering = true;
+            report(tokLine, "extraneous input " + describe() + " expecting " + describe(expecting));
+        }
+    }
+
+    private SyntaxError mismatch(int expecting, int point) {
+        return new SyntaxError(tokLine, "mismatched input " + describe() + " expecting " + describe(expecting),
+                               point);
+    }
+
+    private SyntaxError noViableAlt(int point) {
+        return new SyntaxError(tokLine, "no viable alternative at input " + describe(), point);
+    }
+
+    /** Recovers from an error in the rule that started at token index start:
+      * reports it, unless it comes before a token has been matched after an
+      * earlier one, and skips to a token that can follow. */
+    private void recover(SyntaxError e, int start) throws IOException {
+        fault(2 * start);
+        if (!recovering) {
+            recovering = true;
+            report(e.line, e.msg);
+        }
+        if (lastErrorIndex == index && errorPoints.get(e.point)) {
+            consumeFault();
+        }
+        lastErrorIndex = index;
+        errorPoints.set(e.point);
+        consumeUntil(recoverySet());
+    }
+
+    private void consumeUntil(int set) throws IOException {
+        while (tok != EOF && !in(tok, set)) {
+            consumeFault();
+        }
+    }
+
+    private void consumeMatch() throws IOException {
+        endRecovery();
+        advance();
+    }
+
+    /** Ends error recovery, when a token has been matched. */
+    private void endRecovery() {
+        recovering = false;
+        lastErrorIndex = -1;
+        errorPoints.clear();
+    }
+
+    private void consumeFault() throws IOException {
+        fault(2 * index);
+        advance();
+    }
+
+    private void fault(int pos) {
+        faults++;
+        firstFault = Math.min(firstFault, pos);
+    }
+
+    private void report(int l, String msg) {
+        errors++;
+        err.println(infnam + ":" + l + ": " + msg);
+    }
+
+    private static int bit(int kind) {
+        return 1 << kind;
+    }
+
+    private static int bits(int... kinds) {
+        int set = 0;
+        for (int k : kinds) {
+            set |= bit(k);
+        }
+        return set;
+    }
+
+    private static boolean in(int kind, int set) {
+        return (set & bit(kind)) != 0;
+    }
+
+    /** Returns the current token as shown in messages. */
+    private String describe() {
+        switch (tok) {
+        case EOF: return "'<EOF>'";
+        case ID:
+        case INT: return "'" + tokText + "'";
+        default:  return Names[tok];
+        }
+    }
+
+    /** Returns a set of token kinds as shown in messages. */
+    private static String describe(int set) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < Names.length; k++) {
+            if (in(k, set)) sb.append(sb.length() == 0 ? "" : ", ").append(Names[k]);
+        }
+        return Integer.bitCount(set & ~Eps) > 1 ? "{" + sb + "}" : sb.toString();
+    }
+
+    /** Moves to the next token. At EOF, stays there. */
+    private void advance() throws IOException {
+        if (tok == EOF) return;
+        prevTok = tok;
+        index++;
+        if (peeked) {
+            tok = nextTok;
+            tokText = nextText;
+            tokLine = nextLine;
+            peeked = false;
+        } else {
+            lex();
+        }
+    }
+
+    /** Returns the kind of the token after the current one. */
+    private int peek() throws IOException {
+        if (!peeked && tok != EOF) {
+            int t = tok;
+            String s = tokText;
+            int l = tokLine;
+            lex();
+            nextTok = tok;
+            nextText = tokText;
+            nextLine = tokLine;
+            tok = t;
+            tokText = s;
+            tokLine = l;
+            peeked = true;
+        }
+        return peeked ? nextTok : EOF;
+    }
+
+    /** Reads the next token from the input into tok. */
+    private void lex() throws IOException {
+        while (true) {
+            int c = peekChar();
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                if (c == '\n') line++;
+                bufPos++;
+                continue;
+            }
+            tokLine = line;
+            tokText = null;
+            if (c < 0) {
+                tok = EOF;
+            } else if (c >= 'a' && c <= 'z') {
+                word('a', 'z');
+                tok = keyword(tokText);
+            } else if (c >= '0' && c <= '9') {
+                word('0', '9');
+                tok = INT;
+            } else if (c == '<' || c == '>' || c == '=') {
+                bufPos++;
+                if (peekChar() == '=') {
+                    bufPos++;
+                    tok = c == '<' ? LE : c == '>' ? GE : EQ;
+                } else {
+                    tok = c == '<' ? LT : c == '>' ? GT : ASSIGN;
+                }
+            } else if (c == '!') {
+                bufPos++;
+                int d = peekChar();
+                if (d == '=') {
+                    bufPos++;
+                    tok = NE;
+                } else {
+                    // As in the ANTLR lexer, the character after goes with
+                    // the error.
+                    String s = "!";
+                    if (d >= 0) {
+                        bufPos++;
+                        if (d == '\n') line++;
+                        s += display((char) d);
+                    }
+                    report(tokLine, "token recognition error at: '" + s + "'");
+                    continue;
+                }
+            } else if (c == ';' || c == '+' || c == '*' || c == '(' || c == ')' || c == '{' || c == '}') {
+                bufPos++;
+                tok = c == ';' ? SEMI : c == '+' ? PLUS : c == '*' ? TIMES : c == '(' ? LPAREN
+                    : c == ')' ? RPAREN : c == '{' ? LBRACE : RBRACE;
+            } else {
+                bufPos++;
+                report(line, "token recognition error at: '" + display((char) c) + "'");
+                continue;
+            }
+            return;
+        }
+    }
+
+    /** Returns a character as shown in messages, as ANTLR does. */
+    private static String display(char c) {
+        switch (c) {
+        case '\n': return "\\n";
+        case '\t': return "\\t";
+        case '\r': return "\\r";
+        default:   return String.valueOf(c);
+        }
+    }
+
+    private static int keyword(String word) {
+        switch (word) {
+        case "var":   return VAR;
+        case "print": return PRINT;
+        case "while": return WHILE;
+        case "if":    return IF;
+        case "else":  return ELSE;
+        default:      return ID;
+        }
+    }
+
+    /** Reads a token of characters in the range lo-hi into tokText. */
+    private void word(char lo, char hi) throws IOException {
+        text.setLength(0);
+        int c;
+        while ((c = peekChar()) >= lo && c <= hi) {
+            text.append((char) c);
+            bufPos++;
+        }
+        tokText = text.toString();
+    }
+
+    /** Returns the next character without consuming it, or -1 at the end. */
+    private int peekChar() throws IOException {
+        if (bufPos == bufEnd) {
+            bufEnd = in.read(buf, 0, buf.length);
+            bufPos = 0;
+            if (bufEnd <= 0) {
+                bufEnd = 0;
+                return -1;
+            }
+        }
+        return buf[bufPos];
+    }
+}
@@ -0,0 +1,139 @@
+package xpres2;
+
+/**
+ * An expression, as a tree. This is what the compiler and the interpreter work
+ * with, rather than the parse tree (see TreeBuilder), so that the expression
+ * can be simplified first, by fold.
+ */
+public abstract class Expr {
+    /** The operators of binary expressions. */
+    public enum Op {
+        ADD("+"), MUL("*");
+
+        public final String symbol;
+
+        Op(String symbol) { this.symbol = symbol; }
+
+        /** Computes the result of the operation. */
+        public int apply(int x, int y) {
+            switch (this) {
+            case ADD: return x + y;
+            default:  return x * y;
+            }
+        }
+    }
+
+    /** Looks up variables by name, giving each one a slot number. */
+    public interface Resolver {
+        /** Returns the slot of a variable, reporting an error if it is undefined. */
+        int resolve(String name, int line);
+    }
+
+    /** Values of variables, by slot number. */
+    public interface Env {
+        int get(int slot);
+    }
+
+    /** Source line where the expression starts. */
+    public final int line;
+
+    protected Expr(int line) { this.line = line; }
+
+    /** Looks up all variables in the expression, setting their slots. */
+    public abstract void resolve(Resolver r);
+
+    /** Returns a simplified expression with the same value: subexpressions with
+     *  only constants are computed, and operations with 0 and 1 that do not
+     *  change anything are removed. Variables should be resolved first, since
+     *  some may disappear. */
+    public abstract Expr fold();
+
+    /** Computes the value of the expression. */
+    public abstract int eval(Env env);
+
+    /** An integer constant. */
+    public static class Const extends Expr {
+        public final int value;
+
+        public Const(int line, int value) {
+            super(line);
+            this.value = value;
+        }
+
+        public void resolve(Resolver r) { }
+        public Expr fold() { return this; }
+        public int eval(Env env) { return value; }
+        public String toString() { return Integer.toString(value); }
+    }
+
+    /** A reference to a variable. */
+    public static class Var extends Expr {
+        public final String name;
+        public int slot = -1;   // set by resolve
+
+        public Var(int line, String name) {
+            super(line);
+            this.name = name;
+        }
+
+        public void resolve(Resolver r) { slot = r.resolve(name, line); }
+        public Expr fold() { return this; }
+        public int eval(Env env) { return env.get(slot); }
+        public String toString() { return name; }
+    }
+
+    /** An operator with two operands. */
+    public static class Binary extends Expr {
+        public final Op op;
+        public final Expr left, right;
+
+        public Binary(int line, Op op, Expr left, Expr right) {
+            super(line);
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        public void resolve(Resolver r) {
+            left.resolve(r);
+            right.resolve(r);
+        }
+
+        public Expr fold() {
+            Expr l = left.fold();
+            Expr r = right.fold();
+            if (l instanceof Const && r instanceof Const) {
+                return new Const(line, op.apply(((Const) l).value, ((Const) r).value));
+            }
+            if (l instanceof Const) {   // both ops commute: keep constants on the right
+                Expr t = l;
+                l = r;
+                r = t;
+            }
+            if (r instanceof Const) {
+                int c = ((Const) r).value;
+                if (op == Op.ADD && c == 0 || op == Op.MUL && c == 1) {
+                    return l;
+                }
+                if (op == Op.MUL && c == 0) {
+                    return r;
+                }
+                // (x op c1) op c2 = x op (c1 op c2), since both ops associate
+                if (l instanceof Binary && ((Binary) l).op == op && ((Binary) l).right instanceof Const) {
+                    int c1 = ((Const) ((Binary) l).right).value;
+                    return new Binary(line, op, ((Binary) l).left, new Const(r.line, op.apply(c1, c))).fold();
+                }
+            }
+            if (l == left && r == right) {
+                return this;
+            }
+            return new Binary(line, op, l, r);
+        }
+
+        public int eval(Env env) {
+            return op.apply(left.eval(env), right.eval(env));
+        }
+
+        public String toString() { return "(" + left + op.symbol + right + ")"; }
+    }
+}
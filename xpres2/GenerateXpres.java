@@ -0,0 +1,314 @@
+package xpres2;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates random xpres2 programs, for benchmarks and for checking the
+ * compiler against the interpreter (see CheckXpres). A program is
+ * declarations, assignments and prints, with expressions of variables and
+ * constants; a variable is only used after it has been declared, and none is
+ * declared twice, so every program is valid. The same settings and seed
+ * always give the same program.
+ *
+ * The program is written as it is generated, so it can be of any size, from
+ * a few lines to hundreds of megabytes.
+ *
+ * Usage: GenerateXpres [options] [file.x2]
+ *
+ * With no file, the program is written to standard output.
+ */
+public class GenerateXpres {
+    public long seed = 1;           // -seed=N
+    public long statements = 100;   // -statements=N: the number of statements
+    public long size = 0;           // -size=N[k|m]: instead, stop after this many bytes
+    public int vars = 20;           // -vars=N: the most variables declared
+    public int depth = 3;           // -depth=N: how deep expressions nest
+    public int maxConst = 100;      // -maxconst=N: constants are from 0 up to, not including, N
+    public int prints = 10;         // -prints=N: the percentage of statements that print
+    public int decls = 10;          // -decls=N: the percentage that declare, until all vars are
+    public int loops = 0;           // -loops=N: the percentage that are while loops
+    public int ifs = 0;             // -ifs=N: the percentage that are if statements
+    public int nest = 2;            // -nest=N: how deep loops and ifs nest
+    public int block = 4;           // -block=N: the most statements in a loop or if
+    public int iterations = 10;     // -iterations=N: the most times a loop runs
+    // -mix=A:M:P:L: the weights of +, *, ( ) and a variable or constant, for
+    // each part of an expression above the deepest level.
+    public int add = 1, mul = 1, paren = 1, leaf = 1;
+
+    /** Returns usage text for the options. */
+    public static String usage() {
+        return "  -seed=N         seed of the random numbers (default 1)\n"
+            + "  -statements=N   number of statements (default 100)\n"
+            + "  -size=N[k|m]    instead, generate until the program is N bytes\n"
+            + "  -vars=N         the most variables declared (default 20)\n"
+            + "  -depth=N        how deep expressions nest (default 3)\n"
+            + "  -maxconst=N     constants are less than N (default 100)\n"
+            + "  -prints=P       percentage of statements that print (default 10)\n"
+            + "  -decls=P        percentage that declare, until all vars are (default 10)\n"
+            + "  -loops=P        percentage that are while loops (default 0)\n"
+            + "  -ifs=P          percentage that are if statements (default 0)\n"
+            + "  -nest=N         how deep loops and ifs nest (default 2)\n"
+            + "  -block=N        the most statements in a loop or if (default 4)\n"
+            + "  -iterations=N   the most times a loop runs (default 10)\n"
+            + "  -mix=A:M:P:L    weights of +, *, ( ) and operands in expressions (default 1:1:1:1)\n";
+    }
+
+    /** Sets options from the arguments that start with "-" and are known
+      * here, and returns the other arguments. Throws IllegalArgumentException
+      * for a known option with a bad value. */
+    public String[] parse(String[] args) {
+        ArrayList<String> rest = new ArrayList<String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq + 1), val = arg.substring(eq + 1);
+            try {
+                if (name.equals("-seed=")) {
+                    seed = Long.parseLong(val);
+                } else if (name.equals("-statements=")) {
+                    statements = atLeast(Long.parseLong(val), 1, arg);
+                } else if (name.equals("-size=")) {
+                    size = atLeast(parseSize(val), 1, arg);
+                } else if (name.equals("-vars=")) {
+                    vars = (int) atLeast(Integer.parseInt(val), 1, arg);
+                } else if (name.equals("-depth=")) {
+                    depth = (int) atLeast(Integer.parseInt(val), 0, arg);
+                } else if (name.equals("-maxconst=")) {
+                    maxConst = (int) atLeast(Integer.parseInt(val), 1, arg);
+                } else if (name.equals("-prints=")) {
+                    prints = (int) atLeast(Integer.parseInt(val), 0, arg);
+                } else if (name.equals("-decls=")) {
+                    decls = (int) atLeast(Integer.parseInt(val), 0, arg);
+                } else if (name.equals("-loops=")) {
+                    loops = (int) atLeast(Integer.parseInt(val), 0, arg);
+                } else if (name.equals("-ifs=")) {
+                    ifs = (int) atLeast(Integer.parseInt(val), 0, arg);
+                } else if (name.equals("-nest=")) {
+                    nest = (int) atLeast(Integer.parseInt(val), 0, arg);
+                } else if (name.equals("-block=")) {
+                    block = (int) atLeast(Integer.parseInt(val), 1, arg);
+                } else if (name.equals("-iterations=")) {
+                    iterations = (int) atLeast(Integer.parseInt(val), 1, arg);
+                } else if (name.equals("-mix=")) {
+                    String[] w = val.split(":");
+                    if (w.length != 4) throw new IllegalArgumentException("bad option " + arg);
+                    add = (int) atLeast(Integer.parseInt(w[0]), 0, arg);
+                    mul = (int) atLeast(Integer.parseInt(w[1]), 0, arg);
+                    paren = (int) atLeast(Integer.parseInt(w[2]), 0, arg);
+                    leaf = (int) atLeast(Integer.parseInt(w[3]), 0, arg);
+                    if (add + mul + paren + leaf == 0) throw new IllegalArgumentException("bad option " + arg);
+                } else {
+                    rest.add(arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad option " + arg);
+            }
+        }
+        if (prints + decls + loops + ifs > 100) {
+            throw new IllegalArgumentException("-prints, -decls, -loops and -ifs add up to more than 100");
+        }
+        return rest.toArray(new String[rest.size()]);
+    }
+
+    private static long atLeast(long n, long min, String arg) {
+        if (n < min) throw new IllegalArgumentException("bad option " + arg);
+        return n;
+    }
+
+    private static long parseSize(String s) {
+        long unit = 1;
+        if (s.endsWith("k") || s.endsWith("K")) {
+            unit = 1L << 10;
+        } else if (s.endsWith("m") || s.endsWith("M")) {
+            unit = 1L << 20;
+        }
+        return Long.parseLong(unit == 1 ? s : s.substring(0, s.length() - 1)) * unit;
+    }
+
+    // While generating: the number of variables declared, and which are
+    // counted by the loops being generated.
+    private int declared;
+    private boolean[] counting;
+
+    /** Writes the program to w, and returns the number of statements. */
+    public long generate(Writer w) throws IOException {
+        Random rnd = new Random(seed);
+        StringBuilder sb = new StringBuilder(256);
+        long bytes = 0, n = 0;
+        declared = 0;
+        counting = new boolean[vars];
+        while (size > 0 ? bytes < size : n < statements) {
+            sb.setLength(0);
+            n += statement(sb, rnd, 0);
+            w.append(sb);
+            bytes += sb.length();       // all ASCII
+        }
+        w.flush();
+        return n;
+    }
+
+    /** Appends a statement, nested level deep in loops and ifs (where there
+      * are no declarations), and returns the number of statements in it. */
+    private int statement(StringBuilder sb, Random rnd, int level) {
+        int k = rnd.nextInt(100);
+        indent(sb, level);
+        if (declared == 0 || k < decls && declared < vars && level == 0) {
+            sb.append("var ").append(name(declared++)).append(";\n");
+            return 1;
+        } else if (k >= 100 - prints) {
+            sb.append("print ");
+            expr(sb, rnd, depth);
+            sb.append(";\n");
+            return 1;
+        } else if (k >= 100 - prints - loops && level < nest && free() >= 2) {
+            return loop(sb, rnd, level);
+        } else if (k >= 100 - prints - loops - ifs && k < 100 - prints - loops && level < nest) {
+            return ifElse(sb, rnd, level);
+        }
+        int v = rnd.nextInt(declared);
+        while (counting[v]) v = (v + 1) % declared;
+        sb.append(name(v)).append(" = ");
+        expr(sb, rnd, depth);
+        sb.append(";\n");
+        return 1;
+    }
+
+    /** Appends a loop that counts a variable that is not counted already. */
+    private int loop(StringBuilder sb, Random rnd, int level) {
+        int c = rnd.nextInt(declared);
+        while (counting[c]) c = (c + 1) % declared;
+        String x = name(c), limit = Integer.toString(1 + rnd.nextInt(iterations));
+        sb.append(x).append(" = 0;\n");
+        indent(sb, level);
+        switch (rnd.nextInt(4)) {   // the same condition, in different forms
+        case 0:  sb.append("while (").append(x).append(" < ").append(limit).append(") {\n"); break;
+        case 1:  sb.append("while (").append(limit).append(" > ").append(x).append(") {\n"); break;
+        case 2:  sb.append("while (").append(x).append(" != ").append(limit).append(") {\n"); break;
+        default: sb.append("while (").append(x).append(" + 1 <= ").append(limit).append(") {\n");
+        }
+        counting[c] = true;
+        int n = 2 + block(sb, rnd, level + 1);
+        counting[c] = false;
+        indent(sb, level + 1);
+        sb.append(x).append(" = ").append(x).append(" + 1;\n");
+        indent(sb, level);
+        sb.append("}\n");
+        return n + 1;
+    }
+
+    private int ifElse(StringBuilder sb, Random rnd, int level) {
+        sb.append("if (");
+        expr(sb, rnd, depth);
+        Cond.Op[] ops = Cond.Op.values();
+        sb.append(' ').append(ops[rnd.nextInt(ops.length)].symbol).append(' ');
+        expr(sb, rnd, depth);
+        sb.append(") {\n");
+        int n = 1 + block(sb, rnd, level + 1);
+        indent(sb, level);
+        sb.append('}');
+        if (rnd.nextBoolean()) {
+            sb.append(" else {\n");
+            n += block(sb, rnd, level + 1);
+            indent(sb, level);
+            sb.append('}');
+        }
+        sb.append('\n');
+        return n;
+    }
+
+    private int block(StringBuilder sb, Random rnd, int level) {
+        int n = 0;
+        for (int i = 1 + rnd.nextInt(block); i > 0; i--) {
+            n += statement(sb, rnd, level);
+        }
+        return n;
+    }
+
+    /** Returns the number of declared variables that are not counted. */
+    private int free() {
+        int n = 0;
+        for (int i = 0; i < declared; i++) {
+            if (!counting[i]) n++;
+        }
+        return n;
+    }
+
+    private static void indent(StringBuilder sb, int level) {
+        for (int i = 0; i < level; i++) {
+            sb.append("    ");
+        }
+    }
+
+    /** Returns the program as a string. */
+    public String generate() {
+        StringWriter w = new StringWriter();
+        try {
+            generate(w);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return w.toString();
+    }
+
+    /** Returns a program of the given number of statements, with otherwise
+      * default settings, but up to 200 variables. */
+    static String program(long statements, long seed) {
+        GenerateXpres g = new GenerateXpres();
+        g.statements = statements;
+        g.seed = seed;
+        g.vars = 200;
+        return g.generate();
+    }
+
+    // Variable names are x followed by letters, so that none is a keyword.
+    private static String name(int i) {
+        StringBuilder sb = new StringBuilder(4);
+        sb.append('x');
+        do {
+            sb.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return sb.toString();
+    }
+
+    private void expr(StringBuilder sb, Random rnd, int d) {
+        int k = d == 0 ? -1 : rnd.nextInt(add + mul + paren + leaf);
+        if (k < 0 || k >= add + mul + paren) {
+            if (rnd.nextBoolean()) {
+                sb.append(name(rnd.nextInt(declared)));
+            } else {
+                sb.append(rnd.nextInt(maxConst));
+            }
+        } else if (k >= add + mul) {
+            sb.append('(');
+            expr(sb, rnd, d - 1);
+            sb.append(')');
+        } else {
+            expr(sb, rnd, d - 1);
+            sb.append(k < add ? " + " : " * ");
+            expr(sb, rnd, d - 1);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        GenerateXpres g = new GenerateXpres();
+        try {
+            args = g.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            args = null;
+        }
+        if (args == null || args.length > 1 || args.length == 1 && args[0].startsWith("-")) {
+            System.err.println("usage: GenerateXpres [options] [file.x2]");
+            System.err.print(usage());
+            System.exit(2);
+        }
+        OutputStream out = args.length == 1 ? new FileOutputStream(args[0]) : System.out;
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, "US-ASCII"), 65536);
+        try {
+            g.generate(w);
+        } finally {
+            if (args.length == 1) w.close();
+        }
+    }
+}
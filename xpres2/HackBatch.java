@@ -0,0 +1,306 @@
+package xpres2;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many Hack programs in one JVM, in parallel on a fixed number of
+ * threads. Each thread has one HackCpu, which it loads with a program at a
+ * time (see HackCpu.load), so the 32K words of RAM are allocated once per
+ * thread, not once per program. Each program runs until it stops or has
+ * executed a number of instructions.
+ *
+ * Programs are added from files, which are read by the thread that runs
+ * them, or from code in memory, such as from a HackGen. The report has a
+ * line per program, in the order they were added: whether it stopped, the
+ * instructions executed, the time taken, the number of values printed and the
+ * contents of some memory cells (by default 1025 and up, where CompileXpres puts
+ * the first variables; with a static stack they start at 1024, so use
+ * -cells=1024-1031 for programs compiled with -staticstack). Last is a
+ * summary.
+ *
+ * Usage: HackBatch [-threads=N] [-cycles=N] [-cells=LIST] [-translate] file.hack|dir|@list ...
+ */
+public class HackBatch {
+    // The cells reported by default: the first eight variables, unless the
+    // program was compiled with a static stack.
+    private static final String DefaultCells = "1025-1032";
+
+    /** A program to run, and the result. */
+    private static class Program {
+        final String name;
+        final File file;        // read when run, if not null
+        int[] code;
+        int length;
+
+        String error;
+        boolean halted;
+        long cycles, nanos;
+        int printed;
+        int[] cells;
+
+        Program(String name, File file, int[] code, int length) {
+            this.name = name;
+            this.file = file;
+            this.code = code;
+            this.length = length;
+        }
+    }
+
+    private final ArrayList<Program> programs = new ArrayList<Program>();
+    private final int threads;
+    private final long maxCycles;
+    private final int[] cells;
+    private boolean translate = false;
+    private long wall;
+
+    /** Creates an empty batch, to be run on the given number of threads, with
+      * programs stopped after maxCycles instructions, and the contents of the
+      * addresses cells reported. */
+    public HackBatch(int threads, long maxCycles, int[] cells) {
+        this.threads = threads;
+        this.maxCycles = maxCycles;
+        this.cells = cells.clone();
+    }
+
+    /** Makes each program be translated to JVM bytecode before it runs (see
+      * HackCpu.translate). Only worth it for programs that run long. */
+    public void setTranslate(boolean translate) {
+        this.translate = translate;
+    }
+
+    /** Adds a program with the given code. The code must not change until
+      * the batch has run. */
+    public void add(String name, int[] code, int length) {
+        programs.add(new Program(name, null, code, length));
+    }
+
+    /** Adds the program generated by a HackGen, which must not have flushed
+      * any of it (see HackGen.getProgram). */
+    public void add(String name, HackGen gen) {
+        int[] code = gen.getProgram();
+        add(name, code, code.length);
+    }
+
+    /** Adds a .hack or .hackb file, which is read when it is run. */
+    public void addFile(String name, File file) {
+        programs.add(new Program(name, file, null, 0));
+    }
+
+    /** Adds what an input names: a file, a directory that is searched for
+      * .hack and .hackb files, or @ and the name of a file that lists files,
+      * one per line. */
+    public void addInput(String input) throws IOException {
+        if (input.startsWith("@")) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(
+                new FileInputStream(input.substring(1)), "UTF-8"));
+            try {
+                for (String line = r.readLine(); line != null; line = r.readLine()) {
+                    line = line.trim();
+                    if (!line.isEmpty()) addFile(line, new File(line));
+                }
+            } finally {
+                r.close();
+            }
+        } else if (new File(input).isDirectory()) {
+            addDir(input, new File(input));
+        } else {
+            addFile(input, new File(input));
+        }
+    }
+
+    private void addDir(String name, File d) {
+        String[] names = d.list();
+        if (names == null) return;
+        Arrays.sort(names);
+        for (String n : names) {
+            File f = new File(d, n);
+            if (f.isDirectory()) {
+                addDir(name + File.separator + n, f);
+            } else if (n.endsWith(".hack") || n.endsWith(".hackb")) {
+                addFile(name + File.separator + n, f);
+            }
+        }
+    }
+
+    /** Returns the number of programs added. */
+    public int size() {
+        return programs.size();
+    }
+
+    /** Runs all the programs. The threads take the next program not yet run
+      * as they become free, so long and short programs even out. */
+    public void run() throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(pool.submit(new Runnable() {
+                public void run() {
+                    HackCpu cpu = new HackCpu(new int[0], 0);
+                    for (int i = next.getAndIncrement(); i < programs.size(); i = next.getAndIncrement()) {
+                        runProgram(cpu, programs.get(i));
+                    }
+                }
+            }));
+        }
+        pool.shutdown();
+        try {
+            for (Future<?> f : workers) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        wall = System.nanoTime() - start;
+    }
+
+    private void runProgram(HackCpu cpu, Program p) {
+        try {
+            if (p.file != null) {
+                p.code = HackCpu.readHackFile(p.file.getPath());
+                p.length = p.code.length;
+            }
+            long start = System.nanoTime();
+            cpu.load(p.code, p.length);
+            if (translate) cpu.translate();
+            p.halted = cpu.run(maxCycles);
+            p.nanos = System.nanoTime() - start;
+            p.cycles = cpu.getCycles();
+            p.printed = cpu.getOutputCount();
+            p.cells = new int[cells.length];
+            for (int i = 0; i < cells.length; i++) {
+                p.cells[i] = cpu.peek(cells[i]);
+            }
+        } catch (Exception e) {
+            p.error = e.toString();
+        } finally {
+            if (p.file != null) p.code = null;
+        }
+    }
+
+    /** Prints a line per program, in the order they were added, and a
+      * summary. */
+    public void report(PrintStream out) {
+        int width = 7;
+        for (Program p : programs) {
+            width = Math.max(width, p.name.length());
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-" + width + "s %7s %12s %10s %7s", "program", "result", "cycles", "ms", "printed"));
+        for (int c : cells) {
+            sb.append(String.format(" %6d", c));
+        }
+        out.println(sb);
+
+        int halted = 0, stopped = 0, errors = 0;
+        long cycles = 0, nanos = 0;
+        for (Program p : programs) {
+            sb.setLength(0);
+            sb.append(String.format("%-" + width + "s ", p.name));
+            if (p.error != null) {
+                sb.append("  error ").append(p.error);
+                errors++;
+            } else {
+                sb.append(String.format("%7s %12d %10.3f %7d", p.halted ? "halted" : "stopped", p.cycles,
+                                        p.nanos / 1e6, p.printed));
+                for (int v : p.cells) {
+                    sb.append(String.format(" %6d", v));
+                }
+                if (p.halted) halted++; else stopped++;
+                cycles += p.cycles;
+                nanos += p.nanos;
+            }
+            out.println(sb);
+        }
+
+        out.printf("batch: %d programs in %.3f s on %d threads, %d halted, %d stopped after %d cycles, %d errors%n",
+                   programs.size(), wall / 1e9, threads, halted, stopped, maxCycles, errors);
+        if (programs.isEmpty() || wall == 0) return;
+        out.printf("  %d instructions, %.3f s running: %.0f programs/s, %.0f instructions/s%n",
+                   cycles, nanos / 1e9, programs.size() / (wall / 1e9), cycles / (wall / 1e9));
+    }
+
+    /** Returns the addresses in a list such as "0,1025-1032". Throws
+      * IllegalArgumentException if it is not such a list. */
+    public static int[] parseCells(String list) {
+        int[] cells = new int[16];
+        int n = 0;
+        for (String part : list.split(",")) {
+            if (part.isEmpty()) continue;
+            int dash = part.indexOf('-', 1);
+            int from, to;
+            try {
+                from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+                to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad cells " + part);
+            }
+            if (from < 0 || to >= HackCpu.RamSize || from > to) {
+                throw new IllegalArgumentException("bad cells " + part);
+            }
+            for (int c = from; c <= to; c++) {
+                if (n == cells.length) cells = Arrays.copyOf(cells, 2 * n);
+                cells[n++] = c;
+            }
+        }
+        return Arrays.copyOf(cells, n);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long maxCycles = 1000000000L;
+        int[] cells = parseCells(DefaultCells);
+        boolean translate = false;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                String arg = args[i];
+                if (arg.startsWith("-threads=")) {
+                    threads = Integer.parseInt(arg.substring(9));
+                    if (threads < 1) throw new IllegalArgumentException("bad option " + arg);
+                } else if (arg.startsWith("-cycles=")) {
+                    maxCycles = Long.parseLong(arg.substring(8));
+                    if (maxCycles < 1) throw new IllegalArgumentException("bad option " + arg);
+                } else if (arg.startsWith("-cells=")) {
+                    cells = parseCells(arg.substring(7));
+                } else if (arg.equals("-translate")) {
+                    translate = true;
+                } else {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("bad option " + args[i]);
+            i = args.length;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            i = args.length;
+        }
+        if (i == args.length) {
+            System.err.println("usage: HackBatch [-threads=N] [-cycles=N] [-cells=LIST] [-translate] "
+                               + "file.hack|dir|@list ...");
+            System.err.println("  -threads=N    run on N threads (default the number of processors)");
+            System.err.println("  -cycles=N     stop a program after N instructions (default 1000000000)");
+            System.err.println("  -cells=LIST   memory cells to report, such as 0,1025-1032 (default "
+                               + DefaultCells + ")");
+            System.err.println("  -translate    translate each program to JVM bytecode before running it");
+            System.exit(2);
+        }
+
+        HackBatch batch = new HackBatch(threads, maxCycles, cells);
+        batch.setTranslate(translate);
+        for (; i < args.length; i++) {
+            batch.addInput(args[i]);
+        }
+        batch.run();
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 65536), false);
+        batch.report(out);
+        out.flush();
+    }
+}
@@ -0,0 +1,419 @@
+package xpres2;
+
+import java.io.*;
+import java.util.*;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+
+/**
+ * An emulator for the Hack CPU (see Nisan/Schocken), for running code from
+ * HackGen, or a .hack file, without the external CPU emulator.
+ *
+ * A program is considered to have stopped when it enters the usual infinite
+ * loop at its end (an unconditional jump to itself, or to an @-instruction
+ * right before it that refers to itself, as emitted by HackGen.emitHalt), or
+ * when it runs past the end of the code. Values written to HackGen.PrintAddr
+ * are collected as output.
+ */
+public class HackCpu {
+    public static final int RamSize = 0x8000; // 15-bit addresses
+
+    private int[] rom;
+    private int romSize;
+    private final short[] ram = new short[RamSize];
+    private final int printAddr;
+
+    // Registers, and the state of the current run.
+    private int pc, a, d;
+    private long cycles;
+    private boolean halted;
+
+    // Execution counts by code address, if profiling.
+    private long[] profile;
+
+    // Values written to printAddr.
+    private int[] output = new int[16];
+    private int outputCount;
+
+    // The code translated to JVM bytecode, if translate has been called, and
+    // the registers while it runs.
+    private HackTranslator.Code translated;
+    private HackTranslator.State state;
+
+    /** Creates an emulator with the given code in its ROM, and all of RAM zero.
+      *
+      * @param code      the instructions, one per element
+      * @param length    the number of instructions in code */
+    public HackCpu(int[] code, int length) {
+        this(code, length, HackGen.PrintAddr);
+    }
+
+    /** Creates an emulator as above, with output collected from writes to
+      * printAddr. */
+    public HackCpu(int[] code, int length, int printAddr) {
+        this.rom = code;
+        this.romSize = length;
+        this.printAddr = printAddr;
+    }
+
+    /** Creates an emulator with the code generated by a HackGen, which must
+      * not have flushed any of it (see HackGen.flushCode). */
+    public HackCpu(HackGen gen) {
+        this(gen.getProgram());
+    }
+
+    private HackCpu(int[] code) {
+        this(code, code.length);
+    }
+
+    /** Puts other code in the ROM, and resets the CPU (see reset), so that a
+      * program after another can use the same RAM. Stops any profiling and
+      * drops the translated code. */
+    public void load(int[] code, int length) {
+        rom = code;
+        romSize = length;
+        profile = null;
+        translated = null;
+        state = null;
+        reset();
+    }
+
+    /** Sets the CPU back to its state before the first instruction, with all
+      * of RAM zero and no output. */
+    public void reset() {
+        Arrays.fill(ram, (short) 0);
+        pc = a = d = 0;
+        cycles = 0;
+        halted = false;
+        outputCount = 0;
+    }
+
+    /** Makes run count the instructions executed at each code address, by
+      * adding to counts[address], or stops counting if counts is null. */
+    public void setProfile(long[] counts) {
+        profile = counts;
+    }
+
+    /** Translates the code to JVM bytecode (see HackTranslator), for run to
+      * use instead of executing an instruction at a time, except when
+      * profiling. This takes a while, but makes long runs much faster. */
+    public void translate() {
+        translated = HackTranslator.translate(rom, romSize, printAddr);
+        state = new HackTranslator.State(this);
+    }
+
+    /** Executes instructions until the program stops, or until maxCycles
+      * instructions have been executed in this call. Returns true if the
+      * program has stopped. May be called again to continue a program that has
+      * not stopped. */
+    public boolean run(long maxCycles) {
+        if (translated == null || profile != null) {
+            return interpret(maxCycles);
+        }
+        long limit = cycles + maxCycles;
+        if (limit < cycles) limit = Long.MAX_VALUE;    // overflow
+        HackTranslator.State s = state;
+        while (!halted && cycles < limit) {
+            s.pc = pc;
+            s.a = a;
+            s.d = d;
+            s.cycles = cycles;
+            s.limit = limit;
+            s.halted = false;
+            translated.run(s, ram);
+            boolean ran = s.cycles != cycles;
+            pc = s.pc;
+            a = s.a;
+            d = s.d;
+            cycles = s.cycles;
+            halted = s.halted;
+            // Not at the start of a block, or it would go past the limit.
+            if (!ran && !halted) interpret(1);
+        }
+        return halted;
+    }
+
+    /** Executes instructions one at a time, as run. */
+    private boolean interpret(long maxCycles) {
+        final int[] rom = this.rom;
+        final short[] ram = this.ram;
+        final int romSize = this.romSize;
+        final long[] profile = this.profile;
+        int pc = this.pc, a = this.a, d = this.d;
+        long n = 0;
+
+        while (!halted && n < maxCycles) {
+            if (pc >= romSize) {
+                halted = true;  // ran off the end of the code
+                break;
+            }
+            int ins = rom[pc];
+            n++;
+            if (profile != null) profile[pc]++;
+            if ((ins & 0x8000) == 0) {     // @-instruction
+                a = ins;
+                pc++;
+                continue;
+            }
+
+            // C-instruction. The a-bit selects A or M as the y operand.
+            int y = (ins & 0x1000) == 0 ? a : ram[a & 0x7fff];
+            int r;
+            switch ((ins >> 6) & 0x3f) {
+            case 0b101010: r = 0; break;
+            case 0b111111: r = 1; break;
+            case 0b111010: r = -1; break;
+            case 0b001100: r = d; break;
+            case 0b110000: r = y; break;
+            case 0b001101: r = ~d; break;
+            case 0b110001: r = ~y; break;
+            case 0b001111: r = -d; break;
+            case 0b110011: r = -y; break;
+            case 0b011111: r = d + 1; break;
+            case 0b110111: r = y + 1; break;
+            case 0b001110: r = d - 1; break;
+            case 0b110010: r = y - 1; break;
+            case 0b000010: r = d + y; break;
+            case 0b010011: r = d - y; break;
+            case 0b000111: r = y - d; break;
+            case 0b000000: r = d & y; break;
+            case 0b010101: r = d | y; break;
+            default: r = alu(ins >> 6, d, y);
+            }
+            r = (short) r;
+
+            int target = a;   // jumps go to the address in A before this instruction
+            if ((ins & 0b001000) != 0) {
+                ram[a & 0x7fff] = (short) r;
+                if (a == printAddr) {
+                    print(r);
+                }
+            }
+            if ((ins & 0b010000) != 0) d = r;
+            if ((ins & 0b100000) != 0) a = r;
+
+            int j = ins & 0b111;
+            if (j != 0 && ((j & 0b100) != 0 && r < 0 ||
+                           (j & 0b010) != 0 && r == 0 ||
+                           (j & 0b001) != 0 && r > 0)) {
+                if ((ins & 0b111000) == 0 &&
+                    (target == pc || target == pc - 1 && pc > 0 && rom[target] == target)) {
+                    halted = true;
+                }
+                pc = target & 0x7fff;
+            } else {
+                pc++;
+            }
+        }
+
+        this.pc = pc;
+        this.a = a;
+        this.d = d;
+        cycles += n;
+        return halted;
+    }
+
+    /** The general Hack ALU, for computations that have no mnemonic in the
+      * Hack assembly language. */
+    static int alu(int c, int x, int y) {
+        if ((c & 0b100000) != 0) x = 0;
+        if ((c & 0b010000) != 0) x = ~x;
+        if ((c & 0b001000) != 0) y = 0;
+        if ((c & 0b000100) != 0) y = ~y;
+        int r = (c & 0b000010) != 0 ? x + y : x & y;
+        return (c & 0b000001) != 0 ? ~r : r;
+    }
+
+    void print(int v) {
+        if (outputCount == output.length) {
+            output = Arrays.copyOf(output, 2 * outputCount);
+        }
+        output[outputCount++] = v;
+    }
+
+    /** Returns true if the program has stopped. */
+    public boolean isHalted() { return halted; }
+
+    /** Returns the number of instructions executed since the last reset. */
+    public long getCycles() { return cycles; }
+
+    /** Returns the address of the next instruction to execute. */
+    public int getPC() { return pc; }
+
+    /** Returns the contents of a memory address. */
+    public int peek(int addr) { return ram[addr]; }
+
+    /** Changes the contents of a memory address. */
+    public void poke(int addr, int val) { ram[addr] = (short) val; }
+
+    /** Returns the values printed since the last reset. */
+    public int[] getOutput() { return Arrays.copyOf(output, outputCount); }
+
+    /** Returns the number of values printed since the last reset. */
+    public int getOutputCount() { return outputCount; }
+
+    /** Reads a file in the .hack format (one instruction per line, as a
+      * 16-digit binary number), and returns the instructions. A file name
+      * ending with ".hackb" is read in the binary format instead (see
+      * HackGen.outputBinary). */
+    public static int[] readHackFile(String fnam) throws IOException {
+        if (fnam.endsWith(".hackb")) {
+            return readHackbFile(fnam);
+        }
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(fnam), "US-ASCII"));
+        int[] code = new int[1024];
+        int n = 0;
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if (n == code.length) code = Arrays.copyOf(code, 2 * n);
+                code[n++] = Integer.parseInt(line, 2);
+            }
+        } finally {
+            r.close();
+        }
+        return Arrays.copyOf(code, n);
+    }
+
+    /** Reads a file in the binary .hackb format, by memory mapping it. */
+    private static int[] readHackbFile(String fnam) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(fnam));
+        try {
+            ShortBuffer words = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).asShortBuffer();
+            int[] code = new int[words.remaining()];
+            for (int i = 0; i < code.length; i++) {
+                code[i] = words.get(i) & 0xffff;
+            }
+            return code;
+        } finally {
+            ch.close();
+        }
+    }
+
+    /** Runs a .hack file, printing its output to System.out and the number of
+      * executed instructions to System.err.
+      *
+      * Usage: HackCpu [-profile[=N]] [-translate] file.hack [maxCycles [repeat]]
+      *
+      * With repeat > 1, the program is run that many times, and the run rate is
+      * reported as well. With -profile, the executed instructions are counted
+      * per address, and the N (default 20) source lines that executed the most
+      * are reported, using the source map from CompileXpres -sourcemap. With
+      * -translate, the code is translated to JVM bytecode first (see
+      * HackTranslator). */
+    public static void main(String[] args) throws IOException {
+        int profileTop = 0;
+        boolean translate = false;
+        while (args.length > 0 && args[0].startsWith("-")) {
+            if (args[0].startsWith("-profile")) {
+                profileTop = args[0].startsWith("-profile=") ? Integer.parseInt(args[0].substring(9)) : 20;
+            } else if (args[0].equals("-translate")) {
+                translate = true;
+            } else {
+                break;
+            }
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length < 1 || args[0].startsWith("-")) {
+            System.err.println("usage: HackCpu [-profile[=N]] [-translate] file.hack|file.hackb [maxCycles [repeat]]");
+            System.exit(2);
+        }
+        int[] code = readHackFile(args[0]);
+        long maxCycles = args.length > 1 ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+        int repeat = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        HackCpu cpu = new HackCpu(code, code.length);
+        if (translate) cpu.translate();
+        long[] counts = null;
+        if (profileTop > 0) {
+            counts = new long[code.length];
+            cpu.setProfile(counts);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < repeat; i++) {
+            cpu.reset();
+            cpu.run(maxCycles);
+        }
+        long nanos = System.nanoTime() - start;
+
+        for (int v : cpu.getOutput()) {
+            System.out.println(v);
+        }
+        System.err.println((cpu.isHalted() ? "Halted" : "Stopped") + " after " + cpu.getCycles() + " cycles");
+        if (repeat > 1) {
+            double secs = nanos / 1e9;
+            System.err.printf("%d runs in %.3f s: %.0f runs/s, %.0f instructions/s%n",
+                              repeat, secs, repeat / secs, repeat * (double) cpu.getCycles() / secs);
+        }
+        if (counts != null) {
+            String mapFile = SourceMap.fileFor(args[0]);
+            if (!new File(mapFile).exists()) {
+                System.err.println("no source map " + mapFile + " (compile with -sourcemap)");
+                System.exit(1);
+            }
+            profileReport(SourceMap.read(mapFile), counts, profileTop, System.err);
+        }
+    }
+
+    /** Prints the instructions executed per source line, from the counts per
+      * code address, the most executed first. Code that is not from a line
+      * (routines, the start and end) is counted by what it is. At most top
+      * lines are listed. */
+    static void profileReport(SourceMap map, long[] counts, int top, PrintStream out) throws IOException {
+        // Per line or routine: instructions executed, code size and line.
+        LinkedHashMap<String, long[]> sums = new LinkedHashMap<String, long[]>();
+        long total = 0;
+        for (int i = 0; i < map.size(); i++) {
+            int line = map.getLine(i);
+            String key = line > 0 ? Integer.toString(line) : map.getWhat(i);
+            long[] sum = sums.get(key);
+            if (sum == null) {
+                sum = new long[] { 0, 0, line };
+                sums.put(key, sum);
+            }
+            for (int a = map.getAddr(i); a < map.getEnd(i) && a < counts.length; a++) {
+                sum[0] += counts[a];
+                total += counts[a];
+            }
+            sum[1] += map.getEnd(i) - map.getAddr(i);
+        }
+
+        ArrayList<Map.Entry<String, long[]>> hot = new ArrayList<Map.Entry<String, long[]>>(sums.entrySet());
+        Collections.sort(hot, new Comparator<Map.Entry<String, long[]>>() {
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                return Long.compare(b.getValue()[0], a.getValue()[0]);
+            }
+        });
+        if (hot.size() > top) hot.subList(top, hot.size()).clear();
+
+        // The text of the lines listed, if the source file can be read.
+        HashMap<Integer, String> text = new HashMap<Integer, String>();
+        for (Map.Entry<String, long[]> e : hot) {
+            if (e.getValue()[2] > 0) text.put((int) e.getValue()[2], "");
+        }
+        File src = new File(map.getSource());
+        if (src.exists()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(src), "UTF-8"));
+            try {
+                String l;
+                for (int n = 1; (l = r.readLine()) != null; n++) {
+                    if (text.containsKey(n)) text.put(n, l.trim());
+                }
+            } finally {
+                r.close();
+            }
+        }
+
+        out.println("Profile of " + map.getSource() + ", " + total + " instructions executed:");
+        out.println("  instructions      %   code   line  source");
+        for (Map.Entry<String, long[]> e : hot) {
+            long[] sum = e.getValue();
+            String where = sum[2] > 0 ? String.format("%6d  %s", sum[2], text.get((int) sum[2]))
+                                      : String.format("%6s  (%s)", "-", e.getKey());
+            out.printf("  %12d %5.1f%% %6d %s%n", sum[0], total == 0 ? 0.0 : 100.0 * sum[0] / total, sum[1], where);
+        }
+    }
+}
@@ -2,13 +2,33 @@ package xpres2;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * A utility class for generating hack code.
  */
 public class HackGen {
-    private final int SPAddr;    // memory address of the stack pointer (SP)
-    private final int stackBase; // memory address of the stack (that the SP points to)
+    /** Memory address that print statements write their values to. It is the
+     *  last word before the screen memory map, so it is out of the way of the
+     *  stack and variables. (HackCpu treats writes to it as output.) */
+    public static final int PrintAddr = 16383;
+
+    /** Memory addresses used by runtime routines (registers R11-R15 in the
+     *  Hack conventions). MulX and MulY are the operands of emitMultiply. */
+    public static final int MulX = 13;
+    public static final int MulY = 14;
+    private static final int RetAddr = 15; // return address of a call
+    private static final int Temp1 = 12;
+    private static final int Temp2 = 11;
+
+    private final int SPAddr;    // memory address of the stack pointer (SP), unless staticStack
+    private int stackBase;       // memory address of the stack (that the SP points to)
+    private final boolean staticStack; // stack slots are fixed addresses, no SP
+    private final boolean planned;     // stackBase is decided by finishLayout
 
     // Constants used for the first parameter of emitCInstr (the "destination"
     // part). This can be combined with | to make the result go to more than one
@@ -60,10 +80,37 @@ public class HackGen {
     public static final int JMP = 0b111;
 
     // Keeps track of memory addresses of variables.
+    private final int varBase;
     private int curVarAddr;
 
-    // Output buffer, where the instructions are stored.
-    private ArrayList<Integer> code = new ArrayList<Integer>();
+    // Depth of the stack at the current code address, and the maximum so far.
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    // Code addresses of shared routines, once emitted.
+    private int mulRoutine = -1;
+    private int mulTopRoutine = -1;
+    private final HashMap<Integer, Integer> stackOpRoutines = new HashMap<Integer, Integer>(); // by computation
+    private int routineDepth;   // stack depth where a routine is being emitted
+    private SourceMap sourceMap;   // where routines are recorded, if not null
+
+    // Positions of @-instructions that refer to the stack, with an address
+    // relative to stackBase until it is known (by finishLayout).
+    private BitSet stackRefs = new BitSet();
+    private boolean laidOut = false;
+
+    // Output buffer, where the instructions are stored: the first codeSize
+    // elements of code, which grows as needed.
+    private int[] code = new int[1024];
+    private int codeSize = 0;
+    private int flushed = 0;    // instructions already written out by flushCode
+
+    // Instructions per chunk when writing the code (see outputCode).
+    private static final int OutputChunk = 4096;
+
+    // Positions of @-instructions that refer to code addresses (jump targets)
+    // rather than data, so that they can be relocated if the code is changed.
+    private BitSet codeRefs = new BitSet();
 
     /** Creates a code generator object, given memory addresses of stack and
      *  variable storage. (You might expect a memory address for the code as
@@ -76,56 +123,186 @@ public class HackGen {
     public HackGen(int SPAddr, int stackBase, int varBase) {
         this.SPAddr = SPAddr;
         this.stackBase = stackBase;
+        this.varBase = varBase;
         curVarAddr = varBase;
+        staticStack = false;
+        planned = false;
     }
 
-    /** Makes room for a user variable, and returns its memory address. */
+    /** Creates a code generator object that plans the memory layout itself,
+     *  placing the stack after the last variable, so that they cannot collide.
+     *  This is done by finishLayout, when all variables are known.
+     *
+     *  With a static stack, there is no stack pointer. Since the depth of the
+     *  stack is known at each point where code is generated, each stack slot is
+     *  a fixed memory address instead, and variables start at memBase.
+     *  Otherwise, the stack pointer is at memBase, and variables follow it.
+     *
+     * @param memBase      memory address of area for the stack pointer and user variables
+     * @param staticStack  whether to use static stack slots rather than a stack pointer */
+    public HackGen(int memBase, boolean staticStack) {
+        this.staticStack = staticStack;
+        this.SPAddr = staticStack ? -1 : memBase;
+        this.varBase = staticStack ? memBase : memBase + 1;
+        curVarAddr = varBase;
+        planned = true;
+    }
+
+    /** Makes room for a user variable, and returns its memory address. Throws
+     *  IllegalStateException if there is no room. */
     public int newVarAddr() {
+        if (laidOut) {
+            throw new IllegalStateException("memory layout already finished");
+        }
+        if (curVarAddr == PrintAddr || !planned && curVarAddr == stackBase
+            || !planned && curVarAddr == SPAddr) {
+            throw new IllegalStateException("too many variables, out of memory at " + curVarAddr);
+        }
         return curVarAddr++;
     }
 
+    /** Decides the final memory layout, placing the stack after the variables
+     *  (unless the stack address was given to the constructor), and fills in
+     *  stack addresses in the code. Throws IllegalStateException if the stack
+     *  does not fit. This happens automatically when the code is taken out of
+     *  the buffer, so there is normally no need to call it, but no more
+     *  variables can be added after it. */
+    public void finishLayout() {
+        if (laidOut) return;
+        laidOut = true;
+        if (planned) {
+            stackBase = curVarAddr;
+            for (int pos = stackRefs.nextSetBit(0); pos >= 0; pos = stackRefs.nextSetBit(pos + 1)) {
+                code[pos] += stackBase;
+            }
+        }
+        int stackEnd = stackBase + maxDepth;
+        if (stackEnd > PrintAddr
+            || stackBase < curVarAddr && stackEnd > varBase
+            || SPAddr >= stackBase && SPAddr < stackEnd) {
+            throw new IllegalStateException("stack of depth " + maxDepth + " at " + stackBase
+                                            + " does not fit in memory");
+        }
+    }
+
+    /** Returns the maximum depth of the stack, as far as the code generated so
+     *  far is concerned. */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /** Emits an @-instruction with the address of a stack slot.
+     *
+     * @param slot  position in the stack, 0 at the bottom */
+    private void emitStackRef(int slot) {
+        if (planned && !laidOut) {
+            stackRefs.set(emitAInstr(slot));
+        } else {
+            emitAInstr(stackBase + slot);
+        }
+    }
+
+    /** Keeps track of the depth of the stack. (With a dynamic stack, this is
+     *  only used for checking the memory layout, so it does not matter if
+     *  jumps make it inexact.) */
+    private void changeDepth(int delta) {
+        depth += delta;
+        if (depth < 0 && staticStack) {
+            throw new IllegalStateException("stack underflow at " + currentCodeAddress());
+        }
+        if (depth > maxDepth) maxDepth = depth;
+    }
+
     /** Adds an @-instruction to the output buffer. Returns its designated memory address. */
     public int emitAInstr(int a) {
-        int pos = code.size();
-        code.add(a);
+        int pos = flushed + codeSize;
+        add(a);
+        return pos;
+    }
+
+    private void add(int ins) {
+        if (codeSize == code.length) {
+            code = Arrays.copyOf(code, 2 * codeSize);
+        }
+        code[codeSize++] = ins;
+    }
+
+    /** Adds an @-instruction that refers to a code address, such as a jump
+      * target. Unlike emitAInstr, the address is adjusted if the code is
+      * rearranged by an optimization pass. Returns its designated memory
+      * address. */
+    public int emitCodeRef(int target) {
+        int pos = emitAInstr(target);
+        codeRefs.set(pos - flushed);
         return pos;
     }
 
     /** Gets the current size of the output buffer == the memory address of the next intstruction.*/
     public int currentCodeAddress() {
-        return code.size();
+        return flushed + codeSize;
     }
 
-    /** Changes an @-instruction already emitted to the output buffer.
+    /** Changes an @-instruction already emitted to the output buffer. This is
+      * meant for filling in jump targets, so the instruction is considered to
+      * refer to a code address from then on (as if emitted by emitCodeRef).
       *
       * @param pos The memory address of the instruction.
       * @param a   The new address to refer to in the instruction. */
     public void reviseAInstr(int pos, int a) {
-        code.set(pos, a);
+        if (pos < flushed) {
+            throw new IllegalStateException("instruction at " + pos + " already flushed");
+        }
+        code[pos - flushed] = a;
+        codeRefs.set(pos - flushed);
     }
 
     /** Adds a C-instruction to the output buffer. See Nisan/Schocken for
       * specification of what a C-instruction consists of. Constants provided in
       * this class can be used to fill in the three parts. */
     public void emitCInstr(int dest, int comp, int jump) {
-        int c = 0b1110000000000000 | comp << 6 | dest << 3 | jump;
-        code.add(c);
+        add(0b1110000000000000 | comp << 6 | dest << 3 | jump);
     }
 
     /** Emits a sequence of instructions with the effect of setting the stack
       * pointer to its initial value (destroying the contents of both A and D in
       * the process). */
     public void emitInitSP() {
-        emitAInstr(stackBase);       // @stackBase
+        depth = 0;
+        if (staticStack) return;     // no SP
+        emitStackRef(0);             // @stackBase
         emitCInstr(DestD, CompA, 0); // D=stackBase
         emitAInstr(SPAddr);          // @SP
         emitCInstr(DestM, CompD, 0); // [SP]=stackBase
     }
 
+    /** Emits a sequence of instructions that loads a constant into D
+      * (destroying the contents of A in the process). Unlike a plain
+      * @-instruction, this works for any 16-bit value, including negative
+      * ones. Higher bits are ignored. */
+    public void emitConstD(int c) {
+        c = (short) c;
+        if (c >= 0) {
+            emitAInstr(c);               // @c
+            emitCInstr(DestD, CompA, 0); // D=c
+        } else if (c != Short.MIN_VALUE) {
+            emitAInstr(-c);               // @-c
+            emitCInstr(DestD, MinusA, 0); // D=c
+        } else {
+            emitAInstr(Short.MAX_VALUE); // @32767
+            emitCInstr(DestD, NotA, 0);  // D=!32767=-32768
+        }
+    }
+
     /** Emits a sequence of instructions with the effect of pushing the contents
       * of the D register onto the stack (destroying the contents of both A and
       * D in the process). */
     public void emitPushD() {
+        changeDepth(1);
+        if (staticStack) {
+            emitStackRef(depth-1);       // @slot
+            emitCInstr(DestM, CompD, 0); // [slot]=D
+            return;
+        }
         emitAInstr(SPAddr);           // @SP
         emitCInstr(DestA, CompM, 0);  // A=SP
         emitCInstr(DestM, CompD, 0);  // [SP]=D
@@ -138,17 +315,43 @@ public class HackGen {
       * from the stack and placing it i the D register (destroying the contents
       * of A in the process). */
     public void emitPopD() {
+        changeDepth(-1);
+        if (staticStack) {
+            emitStackRef(depth);         // @slot
+            emitCInstr(DestD, CompM, 0); // D=[slot]
+            return;
+        }
         emitAInstr(SPAddr);                  // @SP
         emitCInstr(DestD, MMinus1, 0);       // D=SP-1
         emitCInstr(DestM | DestA, CompD, 0); // SP=SP-1; A=SP
         emitCInstr(DestD, CompM, 0);         // D=[SP]
     }
 
+    /** Emits a sequence of instructions with the effect of popping one value
+      * from the stack, leaving its address in A, so that it can be referred to
+      * as M. D is not changed. */
+    public void emitPopToM() {
+        changeDepth(-1);
+        if (staticStack) {
+            emitStackRef(depth);                // @slot
+            return;
+        }
+        emitAInstr(SPAddr);                     // @SP
+        emitCInstr(DestM | DestA, MMinus1, 0);  // SP=SP-1; A=SP
+    }
+
     /** Emits a sequence of instructions to prepare for a two-operand operation,
       * by getting the operands from the stack. After this, the address of the
       * left operand is in A (and can this be referred to as M), and the right
       * operand is in D. */
     public void emitGetTwoOperands() {
+        changeDepth(-1);
+        if (staticStack) {
+            emitStackRef(depth);                 // @slot
+            emitCInstr(DestD, CompM, 0);         // D=[slot]
+            emitStackRef(depth-1);               // @slot-1
+            return;
+        }
         emitAInstr(SPAddr);                  // @SP
         emitCInstr(DestD, CompM, 0);         // D=SP
         emitCInstr(DestM|DestA, DMinus1, 0); // A=SP=SP-1
@@ -160,6 +363,11 @@ public class HackGen {
       * stack with the contents of D, i.e., the same effect as first popping a
       * value off the stack (ignoring it) and then pushing D. */
     public void emitReplaceTopWithD() {
+        if (staticStack) {
+            emitStackRef(depth-1);         // @slot
+            emitCInstr(DestM, CompD, 0);   // [slot]=D
+            return;
+        }
         emitAInstr(SPAddr);            // @SP
         emitCInstr(DestA, MMinus1, 0); // A=SP-1
         emitCInstr(DestM, CompD, 0);   // [SP-1]=D
@@ -174,16 +382,515 @@ public class HackGen {
         emitCInstr(HackGen.DestD, HackGen.DAndA, 0); // D=D&mask = nonzero iff negative
     }
     
+    /** Emits a jump to target if D satisfies the jump condition (such as JLT,
+     *  for jumping if D is negative), destroying the contents of A. So a
+     *  comparison is a subtraction into D followed by this. Returns the
+     *  address of the @-instruction, so that a target that is not known yet
+     *  can be filled in with reviseAInstr. */
+    public int emitJumpD(int target, int jump) {
+        int pos = emitCodeRef(target);       // @target
+        emitCInstr(DestNone, CompD, jump);   // D;jump
+        return pos;
+    }
+
+    /** Emits a jump to target, as emitJumpD, but always taken. */
+    public int emitJump(int target) {
+        int pos = emitCodeRef(target);       // @target
+        emitCInstr(DestNone, Comp0, JMP);    // 0;JMP
+        return pos;
+    }
+
+    /** Returns the jump condition with the operands of the comparison the
+      * other way around: JGT for JLT, and so on. */
+    public static int mirrorJump(int jump) {
+        return jump & JEQ | (jump & JLT) >> 2 | (jump & JGT) << 2;
+    }
+
+    /** Returns true if a jump on the difference of two values decides an
+      * order between them, so that it is wrong if the difference overflows. */
+    private static boolean ordered(int jump) {
+        return jump != JEQ && jump != JNE && jump != NoJump && jump != JMP;
+    }
+
+    /** Emits a jump to target if D compares to the constant c as the jump
+      * condition says (JLT: if D < c, and so on), for all 16-bit values:
+      * unlike a jump on D - c, which overflows if D is far enough from c. If
+      * it could, the sign of D decides, and D - c is not computed. Destroys
+      * the contents of A and D. Returns the address of the @-instruction with
+      * the target, as emitJumpD. */
+    public int emitCompareConstD(int c, int target, int jump) {
+        c = (short) c;
+        if (c == 0) return emitJumpD(target, jump);
+        if (c == Short.MIN_VALUE && ordered(jump)) {
+            // Nothing is less than c, so D <= c only if D == c.
+            jump = jump == JLT ? NoJump : jump == JGE ? JMP : jump == JLE ? JEQ : JNE;
+        }
+        int test = -1;
+        if (ordered(jump) && c > 0) {
+            test = emitCodeRef(0);                  // @test
+            emitCInstr(DestNone, CompD, JLT);       // D < 0 < c: D decides
+        } else if (ordered(jump)) {
+            int sub = emitCodeRef(0);               // @sub
+            emitCInstr(DestNone, CompD, JLT);       // D, c < 0: no overflow
+            emitCInstr(DestD, Comp1, 0);            // D >= 0 > c: D=1 decides
+            test = emitJump(0);
+            reviseAInstr(sub, currentCodeAddress());
+        }
+        if (c > 0) {
+            emitAInstr(c);                          // @c
+            emitCInstr(DestD, DMinusA, 0);          // D=D-c
+        } else if (c != Short.MIN_VALUE) {
+            emitAInstr(-c);                         // @-c
+            emitCInstr(DestD, DPlusA, 0);           // D=D-c
+        } else {
+            emitAInstr(Short.MAX_VALUE);            // @32767
+            emitCInstr(DestA, NotA, 0);             // A=-32768
+            emitCInstr(DestD, DMinusA, 0);          // D=D-c
+        }
+        if (test >= 0) reviseAInstr(test, currentCodeAddress());
+        return emitJumpD(target, jump);
+    }
+
+    /** Emits a jump to target if D compares to the value at address addr
+      * as the jump condition says, for all 16-bit values, as
+      * emitCompareConstD. When the signs differ, the difference could
+      * overflow, so the sign of D decides instead. Destroys the contents of
+      * A, D and MulX (so addr must not be MulX). */
+    public int emitCompareD(int addr, int target, int jump) {
+        if (!ordered(jump)) {
+            emitAInstr(addr);                       // @addr
+            emitCInstr(DestD, DMinusM, 0);          // D=D-[addr]
+            return emitJumpD(target, jump);
+        }
+        emitAInstr(MulX);                           // @x
+        emitCInstr(DestM, CompD, 0);                // x=D
+        emitAInstr(addr);                           // @addr
+        emitCInstr(DestD, CompM, 0);                // D=[addr]
+        int nonNeg = emitCodeRef(0);                // @nonNeg
+        emitCInstr(DestNone, CompD, JGE);
+        emitAInstr(MulX);                           // @x
+        emitCInstr(DestD, CompM, 0);                // D=x
+        int sub = emitCodeRef(0);                   // @sub
+        emitCInstr(DestNone, CompD, JLT);           // x, [addr] < 0: no overflow
+        emitCInstr(DestD, Comp1, 0);                // x >= 0 > [addr]: D=1 decides
+        int test1 = emitJump(0);
+        reviseAInstr(nonNeg, currentCodeAddress());
+        emitAInstr(MulX);                           // @x
+        emitCInstr(DestD, CompM, 0);                // D=x
+        int test2 = emitCodeRef(0);                 // @test
+        emitCInstr(DestNone, CompD, JLT);           // x < 0 <= [addr]: D decides
+        reviseAInstr(sub, currentCodeAddress());
+        emitAInstr(addr);                           // @addr
+        emitCInstr(DestD, DMinusM, 0);              // D=x-[addr], same signs
+        reviseAInstr(test1, currentCodeAddress());
+        reviseAInstr(test2, currentCodeAddress());
+        return emitJumpD(target, jump);
+    }
+
+    /** Emits a call of a routine, which returns by jumping to the address in
+     *  RetAddr (destroying the contents of A and D in the process). */
+    private void emitCall(int routine) {
+        int retPos = emitCodeRef(0);        // @ret
+        emitCInstr(DestD, CompA, 0);        // D=ret
+        emitAInstr(RetAddr);                // @RetAddr
+        emitCInstr(DestM, CompD, 0);        // [RetAddr]=ret
+        emitCodeRef(routine);               // @routine
+        emitCInstr(DestNone, Comp0, JMP);   // 0;JMP
+        reviseAInstr(retPos, currentCodeAddress());
+    }
+
+    /** Emits a sequence of instructions that multiplies the values in MulX
+     *  and MulY, leaving the product in D (destroying the contents of A, MulX
+     *  and MulY in the process). This is a call of a shared routine, which
+     *  is emitted, and jumped over, the first time. */
+    public void emitMultiply() {
+        emitCall(multiplyRoutine());
+    }
+
+    /** Returns the address of the multiplication routine, emitting it first
+     *  if needed. */
+    private int multiplyRoutine() {
+        if (mulRoutine < 0) {
+            int skipPos = beginRoutine("multiply routine");
+            mulRoutine = currentCodeAddress();
+            emitMulRoutine();
+            endRoutine(skipPos);
+        }
+        return mulRoutine;
+    }
+
+    /** Emits a sequence of instructions that multiplies D with a value popped
+     *  from the stack, leaving the product in D (destroying the contents of A,
+     *  MulX and MulY in the process). If shared, the popping is also done by a
+     *  routine, which makes the code shorter but slower; see emitStackOp. */
+    public void emitMultiplyTop(boolean shared) {
+        emitAInstr(MulY);                           // @y
+        emitCInstr(DestM, CompD, 0);                // y=D
+        if (!shared || staticStack) {
+            emitPopToM();
+            emitCInstr(DestD, CompM, 0);            // D=left
+            emitAInstr(MulX);                       // @x
+            emitCInstr(DestM, CompD, 0);            // x=D
+            emitMultiply();
+            return;
+        }
+        if (mulTopRoutine < 0) {
+            int mul = multiplyRoutine();
+            int skipPos = beginRoutine("multiply top routine");
+            mulTopRoutine = currentCodeAddress();
+            emitPopToM();
+            emitCInstr(DestD, CompM, 0);            // D=left
+            emitAInstr(MulX);                       // @x
+            emitCInstr(DestM, CompD, 0);            // x=D
+            emitCodeRef(mul);                       // @mul
+            emitCInstr(DestNone, Comp0, JMP);       // 0;JMP (it returns to our caller)
+            endRoutine(skipPos);
+        }
+        emitCall(mulTopRoutine);
+        changeDepth(-1);
+    }
+
+    /** Emits a sequence of instructions that replaces the top two values on
+     *  the stack with the result of a computation on them, such as DPlusM, with
+     *  the right operand in D and the left in M. The result is also left in D.
+     *
+     *  If shared, this is a call of a routine that does it, emitted the first
+     *  time for each computation. A call is 6 instructions instead of 9, but
+     *  executes 9 more. Since the routine must find the stack through the stack
+     *  pointer, shared is ignored with a static stack (where the inline
+     *  sequence is short anyway). */
+    public void emitStackOp(int comp, boolean shared) {
+        if (!shared || staticStack) {
+            emitGetTwoOperands();
+            emitCInstr(DestD, comp, 0);
+            emitReplaceTopWithD();
+            return;
+        }
+        Integer routine = stackOpRoutines.get(comp);
+        if (routine == null) {
+            int skipPos = beginRoutine("stack operation routine");
+            routine = currentCodeAddress();
+            emitGetTwoOperands();
+            emitCInstr(DestD, comp, 0);
+            emitReplaceTopWithD();
+            emitReturn();
+            endRoutine(skipPos);
+            stackOpRoutines.put(comp, routine);
+        }
+        emitCall(routine);
+        changeDepth(-1);
+    }
+
+    /** Starts emitting a routine in the middle of the code, by emitting a jump
+     *  past it. Returns the position to give endRoutine. Stack operations in
+     *  the routine do not count for the depth of the stack where it is emitted
+     *  (the call sites account for them). The routine is recorded in the
+     *  source map under the given name. */
+    private int beginRoutine(String name) {
+        routineDepth = depth;
+        int skipPos = emitCodeRef(0);       // @after
+        emitCInstr(DestNone, Comp0, JMP);   // 0;JMP
+        if (sourceMap != null) sourceMap.beginRoutine(currentCodeAddress(), name);
+        return skipPos;
+    }
+
+    private void endRoutine(int skipPos) {
+        reviseAInstr(skipPos, currentCodeAddress());
+        depth = routineDepth;
+        if (sourceMap != null) sourceMap.endRoutine(currentCodeAddress());
+    }
+
+    /** Makes shared routines be recorded in a source map, as they are
+      * emitted. */
+    public void setSourceMap(SourceMap map) {
+        sourceMap = map;
+    }
+
+    /** Emits a return from a routine called with emitCall. */
+    private void emitReturn() {
+        emitAInstr(RetAddr);                // @RetAddr
+        emitCInstr(DestA, CompM, 0);        // A=ret
+        emitCInstr(DestNone, Comp0, JMP);   // return
+    }
+
+    /** Emits the multiplication routine. It uses shift and add: each bit of
+     *  MulY that is set adds MulX times that bit to the product. The bits are
+     *  cleared from MulY as they are handled, so that the loop ends after the
+     *  highest one, after at most 16 rounds. */
+    private void emitMulRoutine() {
+        emitAInstr(Temp2);                          // @mask
+        emitCInstr(DestM, Comp1, 0);                // mask=1
+        emitAInstr(Temp1);                          // @prod
+        emitCInstr(DestM, Comp0, 0);                // prod=0
+        int loop = currentCodeAddress();
+        emitAInstr(MulY);                           // @y
+        emitCInstr(DestD, CompM, 0);                // D=y
+        int endPos = emitCodeRef(0);                // @end
+        emitCInstr(DestNone, CompD, JEQ);           // done if no bits left
+        emitAInstr(Temp2);                          // @mask
+        emitCInstr(DestD, DAndM, 0);                // D=y&mask
+        int skipPos = emitCodeRef(0);               // @skip
+        emitCInstr(DestNone, CompD, JEQ);           // skip if bit not set
+        emitAInstr(Temp2);                          // @mask
+        emitCInstr(DestD, CompM, 0);                // D=mask
+        emitAInstr(MulY);                           // @y
+        emitCInstr(DestM, MMinusD, 0);              // y=y-mask (clear the bit)
+        emitAInstr(MulX);                           // @x
+        emitCInstr(DestD, CompM, 0);                // D=x
+        emitAInstr(Temp1);                          // @prod
+        emitCInstr(DestM, DPlusM, 0);               // prod=prod+x
+        reviseAInstr(skipPos, currentCodeAddress());
+        emitAInstr(MulX);                           // @x
+        emitCInstr(DestD, CompM, 0);                // D=x
+        emitCInstr(DestM, DPlusM, 0);               // x=x+x
+        emitAInstr(Temp2);                          // @mask
+        emitCInstr(DestD, CompM, 0);                // D=mask
+        emitCInstr(DestM, DPlusM, 0);               // mask=mask+mask
+        emitCodeRef(loop);                          // @loop
+        emitCInstr(DestNone, Comp0, JMP);           // 0;JMP
+        reviseAInstr(endPos, currentCodeAddress());
+        emitAInstr(Temp1);                          // @prod
+        emitCInstr(DestD, CompM, 0);                // D=prod
+        emitReturn();
+    }
+
+    /** Returns (at most) the number of instructions emitMulConstD emits for c,
+     *  or -1 if it cannot handle c. */
+    public static int mulConstCost(int c) {
+        c = (short) c;
+        if (c == Short.MIN_VALUE) return -1;
+        int neg = c < 0 ? 1 : 0;
+        c = Math.abs(c);
+        if (c == 0) return 2;
+        if (c == 1) return neg;
+        int bits = 32 - Integer.numberOfLeadingZeros(c);
+        return 2 + 3 * (bits - 1) + 2 * (Integer.bitCount(c) - 1) + neg;
+    }
+
+    /** Emits a sequence of instructions that multiplies D by a constant,
+     *  without a loop (destroying the contents of A, MulX and MulY in the
+     *  process). Starting from the highest bit of c, D is doubled for each
+     *  bit, and the original value added for each bit that is set. See
+     *  mulConstCost for what it costs. */
+    public void emitMulConstD(int c) {
+        c = (short) c;
+        if (c == 0) {
+            emitAInstr(0);                          // @0
+            emitCInstr(DestD, CompA, 0);            // D=0
+            return;
+        }
+        int m = Math.abs(c);
+        if (m > 1) {
+            emitAInstr(MulX);                       // @x
+            emitCInstr(DestM, CompD, 0);            // x=D
+        }
+        boolean atY = false;
+        for (int bit = 30 - Integer.numberOfLeadingZeros(m); bit >= 0; bit--) {
+            if (!atY) {
+                emitAInstr(MulY);                   // @y
+                atY = true;
+            }
+            emitCInstr(DestM, CompD, 0);            // y=D
+            emitCInstr(DestD, DPlusM, 0);           // D=D+D
+            if ((m & (1 << bit)) != 0) {
+                emitAInstr(MulX);                   // @x
+                emitCInstr(DestD, DPlusM, 0);       // D=D+x
+                atY = false;
+            }
+        }
+        if (c < 0) {
+            emitCInstr(DestD, MinusD, 0);           // D=-D
+        }
+    }
+
+    /** Emits a sequence of instructions to print the contents of D, by
+     *  writing it to PrintAddr (destroying the contents of A in the process). */
+    public void emitPrintD() {
+        emitAInstr(PrintAddr);       // @PrintAddr
+        emitCInstr(DestM, CompD, 0); // [PrintAddr]=D
+    }
+
+    /** Emits an infinite loop, which is the way a Hack program stops. */
+    public void emitHalt() {
+        int pos = currentCodeAddress();
+        emitCodeRef(pos);                 // @pos
+        emitCInstr(DestNone, Comp0, JMP); // 0;JMP
+    }
+
+    /** Returns a copy of the contents of the code buffer, one instruction per
+      * element. (After flushCode, only what has been emitted since.) */
+    public int[] getCode() {
+        finishLayout();
+        return Arrays.copyOf(code, codeSize);
+    }
+
+    /** Returns the whole program, as getCode does if no code has been
+      * flushed. Throws IllegalStateException if some has. */
+    int[] getProgram() {
+        if (flushed > 0) {
+            throw new IllegalStateException(flushed + " instructions already flushed");
+        }
+        return getCode();
+    }
+    
+    /** Returns the memory address of the stack pointer. */
+    int getSPAddr() {
+        return SPAddr;
+    }
+
+    /** Returns the memory address of the stack. */
+    int getStackBase() {
+        return stackBase;
+    }
+
+    /** Returns true if stack slots are fixed addresses. */
+    boolean isStaticStack() {
+        return staticStack;
+    }
+
+    /** Returns a copy of the set of positions of @-instructions that refer to
+      * code addresses. */
+    BitSet getCodeRefs() {
+        return (BitSet) codeRefs.clone();
+    }
+
+    /** Replaces the contents of the code buffer. Used by optimization passes.
+      *
+      * @param c     the new instructions
+      * @param n     the number of instructions in c
+      * @param refs  positions of @-instructions in c that refer to code addresses */
+    void replaceCode(int[] c, int n, BitSet refs) {
+        code = Arrays.copyOf(c, Math.max(n, 16));
+        codeSize = n;
+        codeRefs = (BitSet) refs.clone();
+    }
+    
     /** Outputs the contents of the code buffer as binary-number strings (i.e.,
       * the .hack file format). */
     public void outputCode(Writer w) throws IOException {
-        for (int op : code) {
-            String binstr = Integer.toBinaryString(op);
-            for (int i = binstr.length(); i < 16; i++) {
-                w.write("0"); // pad with initial zeros
+        finishLayout();
+        char[] buf = new char[17 * OutputChunk];
+        for (int start = 0; start < codeSize; start += OutputChunk) {
+            int end = Math.min(codeSize, start + OutputChunk);
+            int p = 0;
+            for (int i = start; i < end; i++) {
+                int op = code[i];
+                for (int bit = 15; bit >= 0; bit--) {
+                    buf[p++] = (char) ('0' + (op >> bit & 1));
+                }
+                buf[p++] = '\n';
+            }
+            w.write(buf, 0, p);
+        }
+    }
+
+    /** Outputs the code in the .hack file format, as above, to a channel. The
+      * instructions are formatted into a buffer and written in large chunks. */
+    public void outputCode(WritableByteChannel ch) throws IOException {
+        finishLayout();
+        writeText(ch, code, codeSize);
+    }
+
+    /** Outputs the code in the binary .hackb format: each instruction as a
+      * 16-bit big-endian word, with nothing else. This is a quarter of the
+      * size of a .hack file, and can be memory mapped when loading (see
+      * HackCpu.readHackFile). */
+    public void outputBinary(WritableByteChannel ch) throws IOException {
+        finishLayout();
+        writeBinary(ch, code, codeSize);
+    }
+
+    /** Writes out the code emitted so far, in the .hack or .hackb format, and
+      * empties the code buffer, so that a long program can be compiled without
+      * keeping all its code in memory. Instructions that have been flushed can
+      * no longer be revised, so this should be done between statements. It
+      * cannot be done when the memory layout is planned, since the stack
+      * addresses are not known until the end; use the constructor with a
+      * fixed layout. */
+    public void flushCode(WritableByteChannel ch, boolean binary) throws IOException {
+        if (planned) {
+            throw new IllegalStateException("cannot flush code before the memory layout is finished");
+        }
+        if (binary) {
+            writeBinary(ch, code, codeSize);
+        } else {
+            writeText(ch, code, codeSize);
+        }
+        flushed += codeSize;
+        codeSize = 0;
+        codeRefs = new BitSet();
+    }
+
+    /** Returns the code emitted so far, and empties the code buffer, like
+      * flushCode, but leaves the writing to the caller (see writeCode). */
+    public int[] takeCode() {
+        if (planned) {
+            throw new IllegalStateException("cannot flush code before the memory layout is finished");
+        }
+        int[] c = Arrays.copyOf(code, codeSize);
+        flushed += codeSize;
+        codeSize = 0;
+        codeRefs = new BitSet();
+        return c;
+    }
+
+    /** Writes the instructions in c, in the .hack or .hackb format. */
+    public static void writeCode(WritableByteChannel ch, int[] c, boolean binary) throws IOException {
+        if (binary) {
+            writeBinary(ch, c, c.length);
+        } else {
+            writeText(ch, c, c.length);
+        }
+    }
+
+    private static void writeText(WritableByteChannel ch, int[] code, int codeSize) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(17 * OutputChunk);
+        byte[] b = buf.array();
+        for (int start = 0; start < codeSize; start += OutputChunk) {
+            int end = Math.min(codeSize, start + OutputChunk);
+            int p = 0;
+            for (int i = start; i < end; i++) {
+                int op = code[i];
+                for (int bit = 15; bit >= 0; bit--) {
+                    b[p++] = (byte) ('0' + (op >> bit & 1));
+                }
+                b[p++] = '\n';
+            }
+            buf.clear().limit(p);
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+    }
+
+    private static void writeBinary(WritableByteChannel ch, int[] code, int codeSize) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(2 * OutputChunk); // big-endian
+        for (int start = 0; start < codeSize; start += OutputChunk) {
+            int end = Math.min(codeSize, start + OutputChunk);
+            buf.clear();
+            for (int i = start; i < end; i++) {
+                buf.putShort((short) code[i]);
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+    }
+
+    /** Writes the code to a file, in the .hackb format if the file name ends
+      * with ".hackb", otherwise in the .hack format. */
+    public void writeCodeFile(String fnam) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(fnam), StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            if (fnam.endsWith(".hackb")) {
+                outputBinary(ch);
+            } else {
+                outputCode(ch);
             }
-            w.write(binstr);
-            w.write("\n"); 
+        } finally {
+            ch.close();
         }
     }
 }
@@ -0,0 +1,511 @@
+package xpres2;
+
+import java.io.*;
+import java.util.*;
+import org.cojen.classfile.*;
+
+/**
+ * Translates Hack code to JVM bytecode with Cojen, for HackCpu to run instead
+ * of executing an instruction at a time (see HackCpu.translate).
+ *
+ * The code is split into basic blocks. A block starts at address 0, after a
+ * jump, and at any address in the code that an @-instruction loads for a
+ * jump, or as a value (such as a return address, for a jump later), and it
+ * ends at the next start or with a jump.
+ * Each block becomes straight-line JVM code with A and D in locals, and the
+ * address in A known where an @-instruction in the block set it. The blocks
+ * are grouped into methods (the JVM limits the length of methods, and
+ * HotSpot does not compile very long ones); within a method a block goes
+ * on to the next with a jump, or a switch on the address, and between
+ * methods through Code.run.
+ *
+ * A block counts all its instructions when it starts, and does not start if
+ * that would take more than the cycle limit. That, and a jump to an address
+ * that does not start a block, makes run return, and HackCpu executes
+ * instructions one at a time until the next block. So the results, the RAM
+ * and the cycle count are always the same as with HackCpu on its own.
+ */
+public class HackTranslator {
+    // Estimated bytecode size per method before starting a new one (see
+    // JvmCompiler).
+    private static final int MaxMethodSize = 7000;
+
+    // Estimated bytecode size of an instruction, at most, and the longest
+    // block that fits in a method.
+    private static final int InstructionSize = 40;
+    private static final int MaxBlock = (MaxMethodSize - 100) / InstructionSize;
+
+    private static final TypeDesc StateType = TypeDesc.forClass(State.class);
+    private static final TypeDesc RamType = TypeDesc.SHORT.toArrayType();
+    private static final TypeDesc[] PartParams = new TypeDesc[] { StateType, RamType };
+
+    /** The registers of a HackCpu, while it runs translated code. */
+    public static final class State {
+        private final HackCpu cpu;
+        public int pc, a, d;
+        public long cycles;
+        public long limit;      // the cycle count not to go past
+        public boolean halted;
+
+        State(HackCpu cpu) {
+            this.cpu = cpu;
+        }
+
+        /** Called for a write to the print address. */
+        public void print(int v) {
+            cpu.print(v);
+        }
+    }
+
+    /** Translated code. The generated class implements part. */
+    public abstract static class Code {
+        // For each address that starts a block, the method it is in, or -1.
+        private int[] partOf;
+
+        protected Code() { }
+
+        /** Runs blocks in method k from s.pc on, and returns true if it went
+          * on to an address outside the method, or false if it stopped. */
+        public abstract boolean part(int k, State s, short[] ram);
+
+        /** Runs blocks from s.pc on, until the program halts, the cycle
+          * limit is reached, or it gets to an address that does not start a
+          * block. */
+        final void run(State s, short[] ram) {
+            int[] partOf = this.partOf;
+            while (s.pc < partOf.length) {
+                int k = partOf[s.pc];
+                if (k < 0 || !part(k, s, ram)) return;
+            }
+        }
+    }
+
+    /** The general Hack ALU, for the generated code. */
+    public static int alu(int c, int x, int y) {
+        return HackCpu.alu(c, x, y);
+    }
+
+    private final int[] rom;
+    private final int length;
+    private final int printAddr;
+    private int[] starts;       // the addresses where blocks start, in order
+
+    private HackTranslator(int[] rom, int length, int printAddr) {
+        this.rom = rom;
+        this.length = length;
+        this.printAddr = printAddr;
+    }
+
+    /** Translates the first length instructions of code, with values written
+      * to printAddr printed, and loads the result. */
+    public static Code translate(int[] code, int length, int printAddr) {
+        HackTranslator t = new HackTranslator(code, length, printAddr);
+        t.starts = t.blockStarts();
+        List<int[]> parts = t.parts();
+        ClassFile cf = t.generate(parts);
+        Code c;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            cf.writeTo(bytes);
+            Class<?> cls = new JvmCompiler.Loader(HackTranslator.class.getClassLoader())
+                .define(cf.getClassName(), bytes.toByteArray());
+            c = (Code) cls.getConstructor().newInstance();
+        } catch (IOException | ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        c.partOf = new int[length];
+        Arrays.fill(c.partOf, -1);
+        for (int k = 0; k < parts.size(); k++) {
+            for (int p : parts.get(k)) {
+                c.partOf[p] = k;
+            }
+        }
+        return c;
+    }
+
+    private static boolean isJump(int ins) {
+        return (ins & 0x8000) != 0 && (ins & 0b111) != 0;
+    }
+
+    /** Returns true if ins jumps to the address in A, or computes with the
+      * value of A itself, as when a return address is saved. An address in
+      * A that is only used for M is not a jump target. */
+    private static boolean usesA(int ins) {
+        if ((ins & 0x8000) == 0) return false;
+        if (isJump(ins)) return true;
+        if ((ins & 0x1000) != 0) return false;   // M, not A
+        return (ins & 0b001000000000) == 0;      // y is not zeroed
+    }
+
+    /** Returns the addresses where blocks start, in order. */
+    private int[] blockStarts() {
+        BitSet starts = new BitSet(length);
+        if (length > 0) starts.set(0);
+        for (int p = 0; p < length; p++) {
+            int ins = rom[p];
+            if ((ins & 0x8000) == 0) {
+                if (ins < length && p + 1 < length && usesA(rom[p + 1])) starts.set(ins);
+            } else if (isJump(ins) && p + 1 < length) {
+                starts.set(p + 1);
+            }
+        }
+        // Long straight-line code is split, so that each block fits in a
+        // method. Any address can start a block.
+        for (int p = 0; p < length; p = starts.nextSetBit(p + 1)) {
+            int end = starts.nextSetBit(p + 1);
+            if (end < 0) end = length;
+            for (int q = p + MaxBlock; q < end; q += MaxBlock) {
+                starts.set(q);
+            }
+            if (end == length) break;
+        }
+        int[] s = new int[starts.cardinality()];
+        int n = 0;
+        for (int p = starts.nextSetBit(0); p >= 0; p = starts.nextSetBit(p + 1)) {
+            s[n++] = p;
+        }
+        return s;
+    }
+
+    /** Groups the blocks into methods, and returns the starts of the blocks
+      * of each. */
+    private List<int[]> parts() {
+        ArrayList<int[]> parts = new ArrayList<int[]>();
+        int first = 0, size = 0;
+        for (int i = 0; i < starts.length; i++) {
+            int n = 30 + InstructionSize * (blockEnd(starts[i]) - starts[i]);
+            if (size + n > MaxMethodSize && i > first) {
+                parts.add(Arrays.copyOfRange(starts, first, i));
+                first = i;
+                size = 0;
+            }
+            size += n;
+        }
+        parts.add(Arrays.copyOfRange(starts, first, starts.length));
+        return parts;
+    }
+
+    /** Returns the address after the block that starts at p. */
+    private int blockEnd(int p) {
+        int i = Arrays.binarySearch(starts, p);
+        return i + 1 < starts.length ? starts[i + 1] : length;
+    }
+
+    private ClassFile generate(List<int[]> parts) {
+        ClassFile cf = new ClassFile("HackCode", Code.class);
+        cf.addDefaultConstructor();
+        for (int k = 0; k < parts.size(); k++) {
+            MethodInfo mi = cf.addMethod(Modifiers.PRIVATE.toStatic(true), "part" + k, TypeDesc.BOOLEAN, PartParams);
+            new Part(new CodeBuilder(mi), parts.get(k)).generate();
+        }
+
+        MethodInfo mi = cf.addMethod(Modifiers.PUBLIC, "part", TypeDesc.BOOLEAN,
+                                     new TypeDesc[] { TypeDesc.INT, StateType, RamType });
+        CodeBuilder b = new CodeBuilder(mi);
+        int[] cases = new int[parts.size()];
+        Label[] labels = new Label[parts.size()];
+        for (int k = 0; k < cases.length; k++) {
+            cases[k] = k;
+            labels[k] = b.createLabel();
+        }
+        Label none = b.createLabel();
+        b.loadLocal(b.getParameter(0));
+        b.switchBranch(cases, labels, none);
+        for (int k = 0; k < cases.length; k++) {
+            labels[k].setLocation();
+            b.loadLocal(b.getParameter(1));
+            b.loadLocal(b.getParameter(2));
+            b.invokeStatic("part" + k, TypeDesc.BOOLEAN, PartParams);
+            b.returnValue(TypeDesc.BOOLEAN);
+        }
+        none.setLocation();
+        b.loadConstant(false);
+        b.returnValue(TypeDesc.BOOLEAN);
+        return cf;
+    }
+
+    /** Generates the method for a group of blocks. */
+    private class Part {
+        private final CodeBuilder b;
+        private final int[] partStarts;
+        private final HashMap<Integer, Label> blocks = new HashMap<Integer, Label>();
+        private final LocalVariable s, ram, pc, a, d, r, target, cycles, limit;
+        private final Label dispatch, out, stop;
+
+        Part(CodeBuilder b, int[] partStarts) {
+            this.b = b;
+            this.partStarts = partStarts;
+            s = b.getParameter(0);
+            ram = b.getParameter(1);
+            pc = b.createLocalVariable("pc", TypeDesc.INT);
+            a = b.createLocalVariable("a", TypeDesc.INT);
+            d = b.createLocalVariable("d", TypeDesc.INT);
+            r = b.createLocalVariable("r", TypeDesc.INT);
+            target = b.createLocalVariable("target", TypeDesc.INT);
+            cycles = b.createLocalVariable("cycles", TypeDesc.LONG);
+            limit = b.createLocalVariable("limit", TypeDesc.LONG);
+            dispatch = b.createLabel();
+            out = b.createLabel();
+            stop = b.createLabel();
+            for (int p : partStarts) {
+                blocks.put(p, b.createLabel());
+            }
+        }
+
+        void generate() {
+            load(pc, "pc", TypeDesc.INT);
+            load(a, "a", TypeDesc.INT);
+            load(d, "d", TypeDesc.INT);
+            load(cycles, "cycles", TypeDesc.LONG);
+            load(limit, "limit", TypeDesc.LONG);
+
+            dispatch.setLocation();
+            Label[] labels = new Label[partStarts.length];
+            for (int i = 0; i < partStarts.length; i++) {
+                labels[i] = blocks.get(partStarts[i]);
+            }
+            b.loadLocal(pc);
+            b.switchBranch(partStarts, labels, out);
+
+            for (int p : partStarts) {
+                block(p, blockEnd(p));
+            }
+
+            out.setLocation();
+            save();
+            b.loadConstant(true);
+            b.returnValue(TypeDesc.BOOLEAN);
+            stop.setLocation();
+            save();
+            b.loadConstant(false);
+            b.returnValue(TypeDesc.BOOLEAN);
+        }
+
+        private void load(LocalVariable v, String field, TypeDesc type) {
+            b.loadLocal(s);
+            b.loadField(StateType, field, type);
+            b.storeLocal(v);
+        }
+
+        private void store(LocalVariable v, String field, TypeDesc type) {
+            b.loadLocal(s);
+            b.loadLocal(v);
+            b.storeField(StateType, field, type);
+        }
+
+        private void save() {
+            store(pc, "pc", TypeDesc.INT);
+            store(a, "a", TypeDesc.INT);
+            store(d, "d", TypeDesc.INT);
+            store(cycles, "cycles", TypeDesc.LONG);
+        }
+
+        /** Goes on at address p: to its block, if it is in this method, and
+          * otherwise out. */
+        private void goTo(int p) {
+            b.loadConstant(p);
+            b.storeLocal(pc);
+            Label l = blocks.get(p);
+            b.branch(l != null ? l : out);
+        }
+
+        /** Generates the block of the instructions from p up to end. */
+        private void block(int p, int end) {
+            blocks.get(p).setLocation();
+            // Stop if the whole block would go past the limit.
+            Label run = b.createLabel();
+            b.loadLocal(cycles);
+            b.loadConstant((long) (end - p));
+            b.math(Opcode.LADD);
+            b.loadLocal(limit);
+            b.ifComparisonBranch(run, "<=", TypeDesc.LONG);
+            b.loadConstant(p);
+            b.storeLocal(pc);
+            b.branch(stop);
+            run.setLocation();
+            b.loadLocal(cycles);
+            b.loadConstant((long) (end - p));
+            b.math(Opcode.LADD);
+            b.storeLocal(cycles);
+
+            int knownA = -1;    // the value of A, if set by an @-instruction in the block
+            for (int i = p; i < end; i++) {
+                int ins = rom[i];
+                if ((ins & 0x8000) == 0) {
+                    b.loadConstant(ins);
+                    b.storeLocal(a);
+                    knownA = ins;
+                    continue;
+                }
+                comp(ins, knownA);
+                b.storeLocal(r);
+                boolean jump = isJump(ins);
+                if (jump && knownA < 0 && (ins & 0b100000) != 0) {
+                    b.loadLocal(a);         // jumps go to the address in A before this instruction
+                    b.storeLocal(target);
+                }
+                if ((ins & 0b001000) != 0) storeM(knownA);
+                if ((ins & 0b010000) != 0) {
+                    b.loadLocal(r);
+                    b.storeLocal(d);
+                }
+                if (jump) {
+                    jump(i, ins, knownA);   // the last instruction of the block
+                    return;
+                }
+                if ((ins & 0b100000) != 0) {
+                    b.loadLocal(r);
+                    b.storeLocal(a);
+                    knownA = -1;
+                }
+            }
+            goTo(end);
+        }
+
+        /** Pushes the address in A, masked to 15 bits. */
+        private void address(int knownA) {
+            if (knownA >= 0) {
+                b.loadConstant(knownA & 0x7fff);
+            } else {
+                b.loadLocal(a);
+                b.loadConstant(0x7fff);
+                b.math(Opcode.IAND);
+            }
+        }
+
+        /** Pushes the y operand: A, or M if the a-bit is set. */
+        private void y(int ins, int knownA) {
+            if ((ins & 0x1000) == 0) {
+                b.loadLocal(a);
+            } else {
+                b.loadLocal(ram);
+                address(knownA);
+                b.loadFromArray(TypeDesc.SHORT);
+            }
+        }
+
+        /** Pushes the result of the computation, as a 16-bit value. */
+        private void comp(int ins, int knownA) {
+            boolean wrap = true;    // may the result need to be cut to 16 bits
+            switch ((ins >> 6) & 0x3f) {
+            case 0b101010: b.loadConstant(0); wrap = false; break;
+            case 0b111111: b.loadConstant(1); wrap = false; break;
+            case 0b111010: b.loadConstant(-1); wrap = false; break;
+            case 0b001100: b.loadLocal(d); wrap = false; break;
+            case 0b110000: y(ins, knownA); wrap = false; break;
+            case 0b001101: b.loadLocal(d); not(); wrap = false; break;
+            case 0b110001: y(ins, knownA); not(); wrap = false; break;
+            case 0b001111: b.loadLocal(d); b.math(Opcode.INEG); break;
+            case 0b110011: y(ins, knownA); b.math(Opcode.INEG); break;
+            case 0b011111: b.loadLocal(d); b.loadConstant(1); b.math(Opcode.IADD); break;
+            case 0b110111: y(ins, knownA); b.loadConstant(1); b.math(Opcode.IADD); break;
+            case 0b001110: b.loadLocal(d); b.loadConstant(1); b.math(Opcode.ISUB); break;
+            case 0b110010: y(ins, knownA); b.loadConstant(1); b.math(Opcode.ISUB); break;
+            case 0b000010: b.loadLocal(d); y(ins, knownA); b.math(Opcode.IADD); break;
+            case 0b010011: b.loadLocal(d); y(ins, knownA); b.math(Opcode.ISUB); break;
+            case 0b000111: y(ins, knownA); b.loadLocal(d); b.math(Opcode.ISUB); break;
+            case 0b000000: b.loadLocal(d); y(ins, knownA); b.math(Opcode.IAND); wrap = false; break;
+            case 0b010101: b.loadLocal(d); y(ins, knownA); b.math(Opcode.IOR); wrap = false; break;
+            default:
+                b.loadConstant(ins >> 6);
+                b.loadLocal(d);
+                y(ins, knownA);
+                b.invokeStatic(TypeDesc.forClass(HackTranslator.class), "alu", TypeDesc.INT,
+                               new TypeDesc[] { TypeDesc.INT, TypeDesc.INT, TypeDesc.INT });
+            }
+            if (wrap) b.convert(TypeDesc.INT, TypeDesc.SHORT);
+        }
+
+        private void not() {
+            b.loadConstant(-1);
+            b.math(Opcode.IXOR);
+        }
+
+        /** Stores the result in M, and prints it if A is the print address. */
+        private void storeM(int knownA) {
+            b.loadLocal(ram);
+            address(knownA);
+            b.loadLocal(r);
+            b.storeToArray(TypeDesc.SHORT);
+            if (knownA >= 0 && knownA != printAddr) return;
+            Label skip = b.createLabel();
+            if (knownA < 0) {
+                b.loadLocal(a);
+                b.loadConstant(printAddr);
+                b.ifComparisonBranch(skip, "!=");
+            }
+            b.loadLocal(s);
+            b.loadLocal(r);
+            b.invokeVirtual(StateType, "print", null, new TypeDesc[] { TypeDesc.INT });
+            skip.setLocation();
+        }
+
+        /** Generates the jump at address p, the last instruction of a block,
+          * when the result is in r. */
+        private void jump(int p, int ins, int knownA) {
+            int j = ins & 0b111;
+            Label taken = b.createLabel();
+            if (j == 0b111) {
+                b.branch(taken);
+            } else {
+                String[] conditions = { null, ">", "==", ">=", "<", "!=", "<=" };
+                b.loadLocal(r);
+                b.ifZeroComparisonBranch(taken, conditions[j]);
+            }
+            if ((ins & 0b100000) != 0) {    // not taken; A gets the result
+                b.loadLocal(r);
+                b.storeLocal(a);
+            }
+            goTo(p + 1);
+
+            taken.setLocation();
+            LocalVariable t = (ins & 0b100000) != 0 ? target : a;
+            if ((ins & 0b100000) != 0) {
+                b.loadLocal(r);
+                b.storeLocal(a);
+            }
+            // The usual infinite loop at the end of a program (see HackCpu).
+            boolean halts = (ins & 0b111000) == 0;
+            boolean selfRef = p > 0 && rom[p - 1] == p - 1;
+            if (knownA >= 0) {
+                if (halts && (knownA == p || selfRef && knownA == p - 1)) {
+                    b.loadConstant(knownA & 0x7fff);
+                    b.storeLocal(pc);
+                    halt();
+                } else {
+                    goTo(knownA & 0x7fff);
+                }
+                return;
+            }
+            if (halts) {
+                Label halt = b.createLabel(), go = b.createLabel();
+                b.loadLocal(t);
+                b.loadConstant(p);
+                b.ifComparisonBranch(halt, "==");
+                if (selfRef) {
+                    b.loadLocal(t);
+                    b.loadConstant(p - 1);
+                    b.ifComparisonBranch(halt, "==");
+                }
+                b.branch(go);
+                halt.setLocation();
+                b.loadLocal(t);
+                b.storeLocal(pc);
+                halt();
+                go.setLocation();
+            }
+            b.loadLocal(t);
+            b.loadConstant(0x7fff);
+            b.math(Opcode.IAND);
+            b.storeLocal(pc);
+            b.branch(dispatch);
+        }
+
+        private void halt() {
+            b.loadLocal(s);
+            b.loadConstant(true);
+            b.storeField(StateType, "halted", TypeDesc.BOOLEAN);
+            b.branch(stop);
+        }
+    }
+}
@@ -1,24 +1,69 @@
 package xpres2;
 
-import xpres2.grammar.*;
 import java.util.*;
-import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.*;
+import java.util.concurrent.CancellationException;
+import java.io.PrintStream;
 
-public class Interpreter extends XpresBaseListener {
-    private static class Var { int val; }
+/**
+ * Runs a program a statement at a time, as execute is called. Values are
+ * ints, unless set to be 16 bits, as on the Hack computer (see setShort).
+ */
+public class Interpreter {
+    private static class Var { int val; int slot = -1; }
     
     private final String infnam;
+    private final PrintStream out, err;
     private final HashMap<String, Var> vars = new HashMap<String, Var>();
-    private Stack<Integer> exprVal = new Stack<Integer>();
+    private boolean cut = false;        // values are cut to 16 bits (see setShort)
 
-    Interpreter(String infnam) { this.infnam = infnam; }
+    // Variables referred to by expressions, by slot number.
+    private final ArrayList<Var> varList = new ArrayList<Var>();
 
-    private Var getVar(Token tok) {
-        String name = tok.getText();
+    private final Expr.Resolver resolver = new Expr.Resolver() {
+        public int resolve(String name, int line) {
+            Var v = getVar(name, line);
+            if (v.slot < 0) {
+                v.slot = varList.size();
+                varList.add(v);
+            }
+            return v.slot;
+        }
+    };
+
+    private final Expr.Env env = new Expr.Env() {
+        public int get(int slot) {
+            return varList.get(slot).val;
+        }
+    };
+
+    Interpreter(String infnam) { this(infnam, System.out, System.err); }
+
+    /** Creates an interpreter that prints values to out, and errors to err. */
+    Interpreter(String infnam, PrintStream out, PrintStream err) {
+        this.infnam = infnam;
+        this.out = out;
+        this.err = err;
+    }
+
+    /** Makes values 16 bits, as on the Hack computer: each value assigned,
+      * printed or compared is cut to 16 bits, signed. (Sums and products
+      * are the same, modulo 2^16, either way, but comparisons are not.) */
+    void setShort(boolean cut) {
+        this.cut = cut;
+    }
+
+    private int value(int v) {
+        return cut ? (short) v : v;
+    }
+
+    private boolean test(Cond c) {
+        return c.op.test(value(c.left.eval(env)), value(c.right.eval(env)));
+    }
+
+    private Var getVar(String name, int line) {
         Var v = vars.get(name);
         if (v == null) {
-            error(tok.getLine(), "undefined " + name);
+            error(line, "undefined " + name);
             return new Var();   // avoid null pointer exception
         } else {
             return v;
@@ -26,48 +71,91 @@ public class Interpreter extends XpresBaseListener {
     }
     
     private void error(int line, String msg) {
-        System.err.println(infnam + ":" + line + ": " + msg);
+        err.println(infnam + ":" + line + ": " + msg);
     }
     
-    @Override
-    public void enterDecl(XpresParser.DeclContext ctx) {
-        String name = ctx.ID().getText();
-        Var old = vars.put(name, new Var());
-        if (old != null) {
-            error(ctx.ID().getSymbol().getLine(), "redefined " + name);
-        }
+    /** A statement ready to run, with its variables looked up. */
+    private interface Action {
+        void run();
     }
 
-    @Override
-    public void exitAssign(XpresParser.AssignContext ctx) {
-        getVar(ctx.ID().getSymbol()).val = exprVal.pop();
+    /** Executes a statement. Throws CancellationException if the thread is
+      * interrupted, also while looping, so that XpresServer can stop it. */
+    public void execute(Stmt s) {
+        checkInterrupted();
+        if (s instanceof Stmt.Decl) {
+            String name = ((Stmt.Decl) s).name;
+            Var old = vars.put(name, new Var());
+            if (old != null) {
+                error(s.line, "redefined " + name);
+            }
+        } else {
+            prepare(s).run();
+        }
     }
 
-    @Override
-    public void exitPrint(XpresParser.PrintContext ctx) {
-        System.out.println(exprVal.pop());
+    private static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) throw new CancellationException();
     }
-    
-    @Override
-    public void exitAddExpr(XpresParser.AddExprContext ctx) {
-        if (ctx.addExpr() != null) {
-            exprVal.push(exprVal.pop() + exprVal.pop());
+
+    /** Returns an action that runs a statement other than a declaration. The
+     *  variables and expressions are resolved here, once, so that errors are
+     *  reported once even if the statement is in a loop. */
+    private Action prepare(Stmt s) {
+        if (s instanceof Stmt.Assign) {
+            Stmt.Assign a = (Stmt.Assign) s;
+            final Expr e = expr(a.expr);
+            final Var v = getVar(a.name, a.line);
+            return new Action() {
+                public void run() { v.val = value(e.eval(env)); }
+            };
+        } else if (s instanceof Stmt.Print) {
+            final Expr e = expr(((Stmt.Print) s).expr);
+            return new Action() {
+                public void run() { out.println(value(e.eval(env))); }
+            };
+        } else if (s instanceof Stmt.While) {
+            Stmt.While w = (Stmt.While) s;
+            final Cond c = cond(w.cond);
+            final Action[] body = prepare(w.body);
+            return new Action() {
+                public void run() {
+                    while (test(c)) {
+                        for (Action a : body) a.run();
+                        checkInterrupted();
+                    }
+                }
+            };
+        } else {
+            Stmt.If i = (Stmt.If) s;
+            final Cond c = cond(i.cond);
+            final Action[] thenPart = prepare(i.thenPart);
+            final Action[] elsePart = prepare(i.elsePart);
+            return new Action() {
+                public void run() {
+                    for (Action a : test(c) ? thenPart : elsePart) a.run();
+                }
+            };
         }
     }
-    
-    @Override
-    public void exitMulExpr(XpresParser.MulExprContext ctx) {
-        if (ctx.mulExpr() != null) {
-            exprVal.push(exprVal.pop() * exprVal.pop());
+
+    private Action[] prepare(List<Stmt> stmts) {
+        Action[] actions = new Action[stmts.size()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = prepare(stmts.get(i));
         }
+        return actions;
     }
-    
-    @Override
-    public void enterAtomExpr(XpresParser.AtomExprContext ctx) {
-        if (ctx.ID() != null) {
-            exprVal.push(getVar(ctx.ID().getSymbol()).val);
-        } else if (ctx.INT() != null) {
-            exprVal.push(Integer.parseInt(ctx.INT().getText()));
-        }
+
+    /** Returns the simplified expression, with variables resolved to slots in
+     *  varList. */
+    private Expr expr(Expr e) {
+        e.resolve(resolver);
+        return e.fold();
+    }
+
+    private Cond cond(Cond c) {
+        c.resolve(resolver);
+        return c.fold();
     }
 }
@@ -0,0 +1,415 @@
+package xpres2;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.io.*;
+import java.lang.reflect.*;
+import org.cojen.classfile.*;
+
+/**
+ * A backend that compiles a program to a JVM class with Cojen (as in the
+ * cojen-examples), instead of to Hack code. The class has a static method
+ * run(PrintStream) that executes the program, printing with println(int), and
+ * a main method that calls run(System.out), so that a class file written to
+ * disk can be run with java. The class can also be loaded directly, to run
+ * the program in-process (see load), where HotSpot compiles it like any other
+ * code.
+ *
+ * Variables are int locals. A long program is split into several methods,
+ * called in order by run, since the JVM limits the length of methods (and
+ * HotSpot does not compile very long ones). A variable used in more than one
+ * of them is kept in a static field between them, and loaded into a local at
+ * the start of each method that uses it.
+ *
+ * Values are ints, as in Interpreter, and expressions are folded first. A
+ * while loop or if statement is kept whole in one method, and becomes
+ * branches that compare the operands. So a loop or if statement with more
+ * than 64K bytes of code cannot be compiled, which is reported as an error.
+ * Each time round, a loop throws CancellationException if the thread has
+ * been interrupted, so that XpresServer can stop a program that never ends.
+ */
+public class JvmCompiler {
+    // Estimated bytecode size per method before starting a new one. The
+    // limit is 64K, but HotSpot does not compile methods longer than 8000
+    // bytes (unless run with -XX:-DontCompileHugeMethods).
+    private static final int MaxMethodSize = 7000;
+
+    // The JVM's limit on the bytecode of a method.
+    private static final int MaxCodeLength = 65535;
+
+    private static final TypeDesc PrintStreamType = TypeDesc.forClass(PrintStream.class);
+
+    private final String infnam;
+    private final PrintStream err;
+
+    // The variable number of each declared variable (a new one for each
+    // declaration). Expr.Var slots are set to these.
+    private final HashMap<String, Integer> vars = new HashMap<String, Integer>();
+    private int numVars = 0;
+
+    private final Expr.Resolver resolver = new Expr.Resolver() {
+        public int resolve(String name, int line) {
+            Integer v = vars.get(name);
+            if (v == null) {
+                error(line, "undefined " + name);
+                return numVars++;   // a variable of its own, like Interpreter
+            }
+            return v;
+        }
+    };
+
+    // Resolved.target for statements that do not assign.
+    private static final int Print = -1, While = -2, If = -3;
+
+    /** A statement with variables resolved to their numbers: an assignment
+      * or print of expr, or a loop or if statement on cond, with the
+      * statements inside resolved as well. */
+    private static class Resolved {
+        final int line;
+        final int target;   // variable number, or Print, While or If
+        final Expr expr;
+        final Cond cond;
+        final List<Resolved> body, elsePart;
+
+        Resolved(int line, int target, Expr expr) {
+            this(line, target, expr, null, null, null);
+        }
+
+        Resolved(int line, int target, Expr expr, Cond cond, List<Resolved> body, List<Resolved> elsePart) {
+            this.line = line;
+            this.target = target;
+            this.expr = expr;
+            this.cond = cond;
+            this.body = body;
+            this.elsePart = elsePart;
+        }
+    }
+
+    private JvmCompiler(String infnam, PrintStream err) {
+        this.infnam = infnam;
+        this.err = err;
+    }
+
+    private void error(int line, String msg) {
+        err.println(infnam + ":" + line + ": " + msg);
+    }
+
+    /** Compiles a program to a class with the given name, reporting undefined
+      * and redefined variables to err. Returns null, after reporting it, if a
+      * statement is too long for a method. */
+    public static ClassFile compile(String className, String infnam, List<Stmt> program, PrintStream err) {
+        return new JvmCompiler(infnam, err).compile(className, program);
+    }
+
+    private ClassFile compile(String className, List<Stmt> program) {
+        // Resolve and fold, leaving out declarations, and split the
+        // statements into parts that each become a method. A statement is
+        // not split, so a long loop or if statement makes a long part.
+        ArrayList<List<Resolved>> parts = new ArrayList<List<Resolved>>();
+        ArrayList<Resolved> part = new ArrayList<Resolved>();
+        int size = 0;
+        for (Stmt s : program) {
+            Resolved r = resolve(s);
+            if (r == null) continue;
+            int n = estimate(r);
+            if (size + n > MaxMethodSize && !part.isEmpty()) {
+                parts.add(part);
+                part = new ArrayList<Resolved>();
+                size = 0;
+            }
+            part.add(r);
+            size += n;
+        }
+        parts.add(part);
+
+        // Variables used in more than one part are shared in static fields.
+        int[] firstPart = new int[numVars];
+        Arrays.fill(firstPart, -1);
+        boolean[] shared = new boolean[numVars];
+        for (int i = 0; i < parts.size(); i++) {
+            BitSet used = used(parts.get(i));
+            for (int v = used.nextSetBit(0); v >= 0; v = used.nextSetBit(v + 1)) {
+                if (firstPart[v] < 0) {
+                    firstPart[v] = i;
+                } else if (firstPart[v] != i) {
+                    shared[v] = true;
+                }
+            }
+        }
+
+        ClassFile cf = new ClassFile(className);
+        cf.addDefaultConstructor();
+        for (int v = 0; v < numVars; v++) {
+            if (shared[v]) {
+                cf.addField(Modifiers.PRIVATE.toStatic(true), field(v), TypeDesc.INT);
+            }
+        }
+        TypeDesc[] printParams = new TypeDesc[] { PrintStreamType };
+        MethodInfo[] methods = new MethodInfo[parts.size()];
+        for (int i = 0; i < parts.size(); i++) {
+            MethodInfo mi = cf.addMethod(Modifiers.PRIVATE.toStatic(true), "part" + i, null, printParams);
+            emitPart(new CodeBuilder(mi), parts.get(i), shared);
+            methods[i] = mi;
+        }
+
+        MethodInfo mi = cf.addMethod(Modifiers.PUBLIC_STATIC, "run", null, printParams);
+        CodeBuilder b = new CodeBuilder(mi);
+        for (int v = 0; v < numVars; v++) {
+            if (shared[v]) {                    // zero, in case of an earlier run
+                b.loadConstant(0);
+                b.storeStaticField(field(v), TypeDesc.INT);
+            }
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            b.loadLocal(b.getParameter(0));
+            b.invokeStatic("part" + i, null, printParams);
+        }
+        b.returnVoid();
+
+        mi = cf.addMethod(Modifiers.PUBLIC_STATIC, "main", null, new TypeDesc[] { TypeDesc.STRING.toArrayType() });
+        b = new CodeBuilder(mi);
+        b.loadStaticField("java.lang.System", "out", PrintStreamType);
+        b.invokeStatic("run", null, printParams);
+        b.returnVoid();
+
+        // The code is only laid out in bytes when the class is written.
+        try {
+            cf.writeTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            if (methods[i].getCodeAttr().getCodeBuffer().getByteCodes().length > MaxCodeLength) {
+                Resolved longest = null;
+                for (Resolved r : parts.get(i)) {
+                    if (longest == null || estimate(r) > estimate(longest)) longest = r;
+                }
+                error(longest.line, (longest.target == While ? "while loop" : longest.target == If ? "if statement"
+                                     : "statement") + " too long for a JVM method (64K bytes of code)");
+                return null;
+            }
+        }
+        return cf;
+    }
+
+    /** Returns the statement with variables resolved and the expression
+      * folded, or null for a declaration (which only makes a new variable). */
+    private Resolved resolve(Stmt s) {
+        if (s instanceof Stmt.Decl) {
+            String name = ((Stmt.Decl) s).name;
+            if (vars.put(name, numVars++) != null) {
+                error(s.line, "redefined " + name);
+            }
+            return null;
+        } else if (s instanceof Stmt.Assign) {
+            Stmt.Assign a = (Stmt.Assign) s;
+            Expr e = expr(a.expr);
+            return new Resolved(a.line, resolver.resolve(a.name, a.line), e);
+        } else if (s instanceof Stmt.Print) {
+            return new Resolved(s.line, Print, expr(((Stmt.Print) s).expr));
+        } else if (s instanceof Stmt.While) {
+            Stmt.While w = (Stmt.While) s;
+            return new Resolved(w.line, While, null, cond(w.cond), resolve(w.body), null);
+        } else {
+            Stmt.If i = (Stmt.If) s;
+            Cond c = cond(i.cond);
+            return new Resolved(i.line, If, null, c, resolve(i.thenPart), resolve(i.elsePart));
+        }
+    }
+
+    private List<Resolved> resolve(List<Stmt> stmts) {
+        ArrayList<Resolved> result = new ArrayList<Resolved>(stmts.size());
+        for (Stmt s : stmts) {
+            result.add(resolve(s));
+        }
+        return result;
+    }
+
+    private Cond cond(Cond c) {
+        c.resolve(resolver);
+        return c.fold();
+    }
+
+    private Expr expr(Expr e) {
+        e.resolve(resolver);
+        return e.fold();
+    }
+
+    /** Returns (roughly, at most) the number of bytes of code for r. */
+    private static int estimate(Resolved r) {
+        if (r.cond == null) {
+            return 8 + estimate(r.expr);
+        }
+        int n = (r.target == While ? 32 : 16) + estimate(r.cond.left) + estimate(r.cond.right);
+        for (Resolved b : r.body) {
+            n += estimate(b);
+        }
+        if (r.elsePart != null) {
+            for (Resolved b : r.elsePart) {
+                n += estimate(b);
+            }
+        }
+        return n;
+    }
+
+    /** Returns (roughly, at most) the number of bytes of code for e. */
+    private static int estimate(Expr e) {
+        if (e instanceof Expr.Binary) {
+            return 1 + estimate(((Expr.Binary) e).left) + estimate(((Expr.Binary) e).right);
+        }
+        return 4;   // wide iload, or ldc_w
+    }
+
+    private static BitSet used(List<Resolved> part) {
+        BitSet used = new BitSet();
+        addUsed(part, used);
+        return used;
+    }
+
+    private static void addUsed(List<Resolved> stmts, BitSet used) {
+        for (Resolved r : stmts) {
+            if (r.target >= 0) used.set(r.target);
+            if (r.expr != null) addVars(r.expr, used);
+            if (r.cond != null) {
+                addVars(r.cond.left, used);
+                addVars(r.cond.right, used);
+                addUsed(r.body, used);
+                if (r.elsePart != null) addUsed(r.elsePart, used);
+            }
+        }
+    }
+
+    private static void addVars(Expr e, BitSet used) {
+        if (e instanceof Expr.Var) {
+            used.set(((Expr.Var) e).slot);
+        } else if (e instanceof Expr.Binary) {
+            addVars(((Expr.Binary) e).left, used);
+            addVars(((Expr.Binary) e).right, used);
+        }
+    }
+
+    private static String field(int v) {
+        return "v" + v;
+    }
+
+    /** Emits the method for one part of the program. Its variables start out
+      * zero, or loaded from their fields if shared, and shared variables are
+      * stored back at the end. */
+    private void emitPart(CodeBuilder b, List<Resolved> part, boolean[] shared) {
+        LocalVariable out = b.getParameter(0);
+        HashMap<Integer, LocalVariable> locals = new HashMap<Integer, LocalVariable>();
+        BitSet used = used(part);
+        for (int v = used.nextSetBit(0); v >= 0; v = used.nextSetBit(v + 1)) {
+            LocalVariable l = b.createLocalVariable(field(v), TypeDesc.INT);
+            locals.put(v, l);
+            if (shared[v]) {
+                b.loadStaticField(field(v), TypeDesc.INT);
+            } else {
+                b.loadConstant(0);
+            }
+            b.storeLocal(l);
+        }
+
+        emitStmts(b, part, locals, out);
+
+        for (int v = used.nextSetBit(0); v >= 0; v = used.nextSetBit(v + 1)) {
+            if (shared[v]) {
+                b.loadLocal(locals.get(v));
+                b.storeStaticField(field(v), TypeDesc.INT);
+            }
+        }
+        b.returnVoid();
+    }
+
+    private static void emitStmts(CodeBuilder b, List<Resolved> stmts, Map<Integer, LocalVariable> locals,
+                                  LocalVariable out) {
+        TypeDesc[] intParam = new TypeDesc[] { TypeDesc.INT };
+        for (Resolved r : stmts) {
+            if (r.target >= 0) {
+                emitExpr(b, r.expr, locals);
+                b.storeLocal(locals.get(r.target));
+            } else if (r.target == Print) {
+                b.loadLocal(out);
+                emitExpr(b, r.expr, locals);
+                b.invokeVirtual(PrintStreamType, "println", null, intParam);
+            } else if (r.target == While) {
+                // The test is after the body, as in Compiler.
+                Label test = b.createLabel(), body = b.createLabel();
+                b.branch(test);
+                body.setLocation();
+                emitStmts(b, r.body, locals, out);
+                test.setLocation();
+                emitInterruptCheck(b);
+                emitBranch(b, r.cond, r.cond.op, body, locals);
+            } else {
+                Label elsePart = b.createLabel(), end = b.createLabel();
+                emitBranch(b, r.cond, r.cond.op.negate(), elsePart, locals);
+                emitStmts(b, r.body, locals, out);
+                if (!r.elsePart.isEmpty()) b.branch(end);
+                elsePart.setLocation();
+                emitStmts(b, r.elsePart, locals, out);
+                end.setLocation();
+            }
+        }
+    }
+
+    /** Emits code that throws a CancellationException if the thread has been
+      * interrupted, so that a loop can be stopped (by XpresServer). */
+    private static void emitInterruptCheck(CodeBuilder b) {
+        TypeDesc thread = TypeDesc.forClass(Thread.class);
+        TypeDesc cancelled = TypeDesc.forClass(CancellationException.class);
+        Label go = b.createLabel();
+        b.invokeStatic(thread, "currentThread", thread, null);
+        b.invokeVirtual(thread, "isInterrupted", TypeDesc.BOOLEAN, null);
+        b.ifZeroComparisonBranch(go, "==");
+        b.newObject(cancelled);
+        b.dup();
+        b.invokeConstructor(cancelled, null);
+        b.throwObject();
+        go.setLocation();
+    }
+
+    /** Emits a branch to target if the operands of c compare by op. */
+    private static void emitBranch(CodeBuilder b, Cond c, Cond.Op op, Label target,
+                                   Map<Integer, LocalVariable> locals) {
+        emitExpr(b, c.left, locals);
+        emitExpr(b, c.right, locals);
+        b.ifComparisonBranch(target, op.symbol);
+    }
+
+    /** Emits code that pushes the value of e. */
+    private static void emitExpr(CodeBuilder b, Expr e, Map<Integer, LocalVariable> locals) {
+        if (e instanceof Expr.Const) {
+            b.loadConstant(((Expr.Const) e).value);
+        } else if (e instanceof Expr.Var) {
+            b.loadLocal(locals.get(((Expr.Var) e).slot));
+        } else {
+            Expr.Binary bin = (Expr.Binary) e;
+            emitExpr(b, bin.left, locals);
+            emitExpr(b, bin.right, locals);
+            b.math(bin.op == Expr.Op.ADD ? Opcode.IADD : Opcode.IMUL);
+        }
+    }
+
+    /** Loads a compiled class in a class loader of its own, and returns its
+      * run method. */
+    public static Method load(ClassFile cf) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        cf.writeTo(bytes);
+        Class<?> c = new Loader(JvmCompiler.class.getClassLoader())
+            .define(cf.getClassName(), bytes.toByteArray());
+        try {
+            return c.getMethod("run", PrintStream.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) { super(parent); }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+}
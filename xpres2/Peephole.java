@@ -0,0 +1,303 @@
+package xpres2;
+
+import java.util.*;
+
+/**
+ * A peephole optimizer for the code in a HackGen buffer. It runs over the
+ * emitted instructions, replacing short sequences with cheaper ones that have
+ * the same effect, for instance a push directly followed by a pop. This is
+ * meant to be done after all code has been emitted, just before outputCode.
+ *
+ * Since instructions are removed, code addresses change. @-instructions that
+ * refer to code addresses are relocated. These are the ones emitted by
+ * HackGen.emitCodeRef or changed by HackGen.reviseAInstr, and @-instructions
+ * directly followed by a jump. The addresses they refer to are labels, which
+ * no replaced sequence may span.
+ *
+ * With a static stack (see HackGen), the stack operations are plain loads and
+ * stores, and a store to a stack slot that is overwritten before it is read is
+ * removed.
+ */
+public class Peephole {
+    private static final int Unknown = -1; // unknown value of A
+
+    // Instruction sequences emitted by HackGen, used as patterns (null with a
+    // static stack).
+    private final int[] push, pop, getTwo, replaceTop;
+    private final int spAddr;
+
+    // Addresses of stack slots, with a static stack (otherwise empty).
+    private final int slotBase, slotEnd;
+
+    // The code being optimized.
+    private int[] code;
+    private int n;
+    private BitSet refs;
+    private BitSet labels;
+
+    // Output of the current pass.
+    private int[] outCode;
+    private int outN;
+    private BitSet outRefs;
+    private int knownA;
+
+    private Peephole(HackGen gen) {
+        spAddr = gen.getSPAddr();
+        if (gen.isStaticStack()) {
+            push = pop = getTwo = replaceTop = null;
+            slotBase = gen.getStackBase();
+            slotEnd = slotBase + gen.getMaxDepth();
+        } else {
+            push = pattern(gen, 0);
+            pop = pattern(gen, 1);
+            getTwo = pattern(gen, 2);
+            replaceTop = pattern(gen, 3);
+            slotBase = slotEnd = 0;
+        }
+    }
+
+    /** Returns the sequence that a HackGen with the same layout as gen emits
+      * for the given operation. */
+    private static int[] pattern(HackGen gen, int which) {
+        HackGen g = new HackGen(gen.getSPAddr(), gen.getStackBase(), 0);
+        g.emitPushD();
+        g.emitPushD();
+        int start = g.currentCodeAddress();
+        switch (which) {
+        case 0: g.emitPushD(); break;
+        case 1: g.emitPopD(); break;
+        case 2: g.emitGetTwoOperands(); break;
+        default: g.emitReplaceTopWithD();
+        }
+        return Arrays.copyOfRange(g.getCode(), start, g.currentCodeAddress());
+    }
+
+    /** Optimizes the code in a HackGen buffer, replacing its contents. Returns
+      * a map from old to new code addresses: element i is the new address of
+      * the instruction that was at address i (or of the instruction that
+      * replaced it). The map has one extra element, for the end of the code. */
+    public static int[] optimize(HackGen gen) {
+        int[] code = gen.getCode();
+        Peephole p = new Peephole(gen);
+        p.code = code;
+        p.n = gen.currentCodeAddress();
+        p.refs = gen.getCodeRefs();
+        for (int i = 0; i + 1 < p.n; i++) {
+            if (isA(p.code[i]) && !isA(p.code[i + 1]) && (p.code[i + 1] & 0b111) != 0) {
+                p.refs.set(i); // @-instruction used for a jump
+            }
+        }
+
+        int[] total = identity(p.n + 1);
+        int[] map;
+        while ((map = p.pass()) != null) {
+            for (int i = 0; i < total.length; i++) {
+                total[i] = map[total[i]];
+            }
+        }
+        gen.replaceCode(p.code, p.n, p.refs);
+        return total;
+    }
+
+    private static int[] identity(int size) {
+        int[] m = new int[size];
+        for (int i = 0; i < size; i++) {
+            m[i] = i;
+        }
+        return m;
+    }
+
+    /** Makes one pass over the code, applying the first matching rule at each
+      * position. Returns the map from old to new addresses, or null if nothing
+      * changed. */
+    private int[] pass() {
+        labels = new BitSet();
+        for (int i = refs.nextSetBit(0); i >= 0; i = refs.nextSetBit(i + 1)) {
+            if (code[i] <= n) labels.set(code[i]);
+        }
+        outCode = new int[n];
+        outN = 0;
+        outRefs = new BitSet();
+        knownA = Unknown;
+        int[] map = new int[n + 1];
+        boolean changed = false;
+
+        int i = 0;
+        while (i < n) {
+            if (labels.get(i)) {
+                knownA = Unknown; // could be reached by a jump
+            }
+            int start = outN;
+            int k = rewrite(i);
+            if (k == 0) {
+                emit(code[i], refs.get(i));
+                k = 1;
+            } else {
+                changed = true;
+            }
+            for (int j = i; j < i + k; j++) {
+                map[j] = start;
+            }
+            i += k;
+        }
+        map[n] = outN;
+        if (!changed) return null;
+
+        for (int p = outRefs.nextSetBit(0); p >= 0; p = outRefs.nextSetBit(p + 1)) {
+            if (outCode[p] <= n) outCode[p] = map[outCode[p]];
+        }
+        code = outCode;
+        n = outN;
+        refs = outRefs;
+        return map;
+    }
+
+    /** Tries the rules at position i. If one matches, emits its replacement
+      * and returns the number of instructions replaced; otherwise returns 0. */
+    private int rewrite(int i) {
+        // Push directly followed by pop leaves everything as it was, except A.
+        if (matches(i, push, pop) && nextIsA(i + push.length + pop.length)) {
+            return push.length + pop.length;
+        }
+
+        // Push directly followed by getting two operands: the right operand is
+        // already in D, so the left one just has to be addressed.
+        if (matches(i, push, getTwo)) {
+            emitA(spAddr);                                       // @SP
+            emitC(HackGen.DestA, HackGen.MMinus1, 0);            // A=SP-1
+            return push.length + getTwo.length;
+        }
+
+        // Replacing the top of the stack and then popping it just leaves the
+        // value in D, and the stack one shorter.
+        if (matches(i, replaceTop, pop) && nextIsA(i + replaceTop.length + pop.length)) {
+            emitA(spAddr);                                       // @SP
+            emitC(HackGen.DestM, HackGen.MMinus1, 0);            // SP=SP-1
+            return replaceTop.length + pop.length;
+        }
+
+        // A binary operation on the top of the stack followed by replacing the
+        // top with the result can be done in place.
+        //   @SP; A=M-1; D=D op M; @SP; A=M-1; M=D  ->  @SP; A=M-1; M=D op M; D=M
+        if (i + 6 <= n && code[i] == spAddr && code[i + 1] == cInstr(HackGen.DestA, HackGen.MMinus1, 0)
+            && isDOpM(code[i + 2]) && matches(i + 3, replaceTop)
+            && !matches(i + 3, replaceTop, pop) && noLabels(i, 6)) {
+            emitA(spAddr);                                       // @SP
+            emitC(HackGen.DestA, HackGen.MMinus1, 0);            // A=SP-1
+            emitC(HackGen.DestM, comp(code[i + 2]), 0);          // M=D op M
+            emitC(HackGen.DestD, HackGen.CompM, 0);              // D=M
+            return 6;
+        }
+
+        if (isA(code[i]) && !refs.get(i)) {
+            // Loading A with what it already contains.
+            if (code[i] == knownA) {
+                return 1;
+            }
+            // Loading A, and then loading it again.
+            if (i + 1 < n && isA(code[i + 1]) && !labels.get(i + 1)) {
+                return 1;
+            }
+        }
+
+        // Storing in a stack slot that is overwritten before it is read.
+        if (slotBase <= code[i] && code[i] < slotEnd && !refs.get(i) && i + 1 < n
+            && code[i + 1] == cInstr(HackGen.DestM, HackGen.CompD, 0) && !labels.get(i + 1)
+            && nextIsA(i + 2) && deadSlot(code[i], i + 2)) {
+            return 2;
+        }
+
+        // Storing D and then loading it back.
+        if (code[i] == cInstr(HackGen.DestM, HackGen.CompD, 0) && i + 1 < n
+            && code[i + 1] == cInstr(HackGen.DestD, HackGen.CompM, 0) && !labels.get(i + 1)) {
+            emitC(HackGen.DestM, HackGen.CompD, 0);
+            return 2;
+        }
+
+        return 0;
+    }
+
+    /** Returns true if memory address s is certainly overwritten before it is
+      * read, starting from position i. Gives up at jumps and labels, and after a
+      * limited number of instructions. */
+    private boolean deadSlot(int s, int i) {
+        int a = Unknown;
+        for (int end = Math.min(n, i + 100); i < end; i++) {
+            if (labels.get(i)) return false;
+            int ins = code[i];
+            if (isA(ins)) {
+                a = refs.get(i) ? Unknown : ins;
+                continue;
+            }
+            if ((ins & 0x1000) != 0 && (a == s || a == Unknown)) return false; // reads M
+            if ((ins & 0b111) != 0) return false;                             // jumps
+            if ((ins & (HackGen.DestM << 3)) != 0 && a == s) return true;     // writes M
+            if ((ins & (HackGen.DestA << 3)) != 0) a = Unknown;
+        }
+        return i >= n;
+    }
+
+    /** Returns true if the given sequences occur, one after another, at
+      * position i, with no label (except possibly at i itself) and no code
+      * reference among them. */
+    private boolean matches(int i, int[]... seqs) {
+        int p = i;
+        for (int[] seq : seqs) {
+            if (seq == null || p + seq.length > n) return false;
+            for (int s : seq) {
+                if (code[p] != s || refs.get(p) || p > i && labels.get(p)) return false;
+                p++;
+            }
+        }
+        return true;
+    }
+
+    private boolean noLabels(int i, int len) {
+        int next = labels.nextSetBit(i + 1);
+        return next < 0 || next >= i + len;
+    }
+
+    /** Returns true if the instruction at i is an @-instruction, or i is the
+      * end of the code. That is, if the contents of A do not matter at i. */
+    private boolean nextIsA(int i) {
+        return i >= n || isA(code[i]);
+    }
+
+    private void emit(int ins, boolean ref) {
+        if (ref) outRefs.set(outN);
+        outCode[outN++] = ins;
+        if (isA(ins)) {
+            knownA = ref ? Unknown : ins;
+        } else if ((ins & (HackGen.DestA << 3)) != 0) {
+            knownA = Unknown;
+        }
+    }
+
+    private void emitA(int a) {
+        emit(a, false);
+    }
+
+    private void emitC(int dest, int comp, int jump) {
+        emit(cInstr(dest, comp, jump), false);
+    }
+
+    private static int cInstr(int dest, int comp, int jump) {
+        return 0b1110000000000000 | comp << 6 | dest << 3 | jump;
+    }
+
+    private static boolean isA(int ins) {
+        return (ins & 0x8000) == 0;
+    }
+
+    private static int comp(int ins) {
+        return (ins >> 6) & 0b1111111;
+    }
+
+    /** Returns true if ins is D=D op M, for an op that uses both D and M. */
+    private static boolean isDOpM(int ins) {
+        if (isA(ins) || (ins & 0b111) != 0 || ((ins >> 3) & 0b111) != HackGen.DestD) return false;
+        int c = comp(ins);
+        return c == HackGen.DPlusM || c == HackGen.DMinusM || c == HackGen.MMinusD
+            || c == HackGen.DAndM || c == HackGen.DOrM;
+    }
+}
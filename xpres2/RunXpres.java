@@ -1,27 +1,179 @@
 package xpres2;
 
 import java.io.*;
-import java.util.Scanner;
-import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.*;
-import xpres2.grammar.*;
+import java.util.*;
+import java.lang.reflect.*;
+import org.cojen.classfile.ClassFile;
 
 public class RunXpres {
+    private static int usage(PrintStream err) {
+        err.println("usage: RunXpres [-descent] [-bytecode|-jit|-stream] [-class=Name] [-bench=N] [file]\n"
+                    + "  -descent     parse with the hand-written parser instead of the ANTLR one\n"
+                    + "  -bytecode    run the program lowered to Bytecode, instead of with Interpreter\n"
+                    + "  -jit         run the program compiled to a JVM class by JvmCompiler\n"
+                    + "  -stream      run a statement at a time while reading, for very long programs\n"
+                    + "  -class=Name  compile to a JVM class and write it to Name.class, without running\n"
+                    + "  -bench=N     run the program N times without output, and report the time\n"
+                    + "  -client[=port]  have a running XpresServer do it (default port "
+                    + XpresServer.DefaultPort + ")");
+        return 2;
+    }
+
     public static void main(String[] args) throws IOException {
+        if (XpresServer.isClient(args)) {
+            try {
+                System.exit(XpresServer.request("run", args));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(usage(System.err));
+            }
+        }
+        int status = run(args, null, System.out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /** Runs as given by the command line args, with relative file names
+      * relative to dir, and returns the exit status. The program prints to
+      * out, and errors to err. If dir is null, file names are relative to
+      * the current directory, and the file is asked for if not given. */
+    static int run(String[] args, File dir, PrintStream out, PrintStream err) throws IOException {
+        boolean descent = false, bytecode = false, jit = false, stream = false;
+        String className = null;
+        int bench = 0;
+        ArrayList<String> rest = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.equals("-bytecode")) {
+                bytecode = true;
+            } else if (arg.equals("-descent")) {
+                descent = true;
+            } else if (arg.equals("-stream")) {
+                stream = true;
+            } else if (arg.equals("-jit")) {
+                jit = true;
+            } else if (arg.startsWith("-class=")) {
+                className = arg.substring(7);
+            } else if (arg.startsWith("-bench=")) {
+                try {
+                    bench = Integer.parseInt(arg.substring(7));
+                } catch (NumberFormatException e) {
+                    return usage(err);
+                }
+            } else if (arg.startsWith("-")) {
+                return usage(err);
+            } else {
+                rest.add(arg);
+            }
+        }
+
         String infnam;
-        if (args.length > 0) {
-            infnam = args[0];
-        } else {
+        if (rest.size() > 0) {
+            infnam = rest.get(0);
+        } else if (dir == null) {
             System.out.println("Vilken fil vill du köra?");
             Scanner scanner = new Scanner(System.in);
             infnam = scanner.nextLine();
+        } else {
+            return usage(err);
+        }
+        if (stream && (bytecode || jit || className != null || bench > 0)) {
+            return usage(err);
+        }
+
+        Reader r = new InputStreamReader(new FileInputStream(XpresServer.resolve(dir, infnam)), "UTF-8");
+        try {
+            if (stream) {
+                Interpreter interpreter = new Interpreter(infnam, out, err);
+                StatementSource stmts = descent ? new DescentParser(infnam, r, err)
+                                                : new StatementStream(infnam, new BufferedReader(r), err);
+                for (Stmt s = stmts.next(); s != null; s = stmts.next()) {
+                    interpreter.execute(s);
+                }
+                return stmts.getErrors() > 0 ? 1 : 0;
+            }
+            List<Stmt> program = descent ? DescentParser.parse(infnam, r, err) : TreeBuilder.parse(infnam, r, err);
+            if (program == null) return 1;
+
+            if (className != null) {
+                ClassFile cf = JvmCompiler.compile(className, infnam, program, err);
+                if (cf == null) return 1;
+                OutputStream f = new FileOutputStream(XpresServer.resolve(dir, className + ".class"));
+                cf.writeTo(f);
+                f.close();
+            } else if (bench > 0) {
+                return bench(infnam, program, bytecode, jit, bench, err);
+            } else if (jit) {
+                ClassFile cf = JvmCompiler.compile("XpresProgram", infnam, program, err);
+                if (cf == null) return 1;
+                runJit(JvmCompiler.load(cf), out);
+            } else if (bytecode) {
+                new Bytecode(infnam, program, err).run(out);
+            } else {
+                interpret(new Interpreter(infnam, out, err), program);
+            }
+            return 0;
+        } finally {
+            r.close();
+        }
+    }
+
+    private static void interpret(Interpreter interpreter, List<Stmt> program) {
+        for (Stmt s : program) {
+            interpreter.execute(s);
+        }
+    }
+
+    /** Calls the run method of a class from JvmCompiler. */
+    private static void runJit(Method run, PrintStream out) {
+        try {
+            run.invoke(null, out);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /** Runs the program the given number of times, discarding the output, and
+      * reports the time per run. With bytecode or jit, lowering or compiling
+      * is done once, and timed separately. Returns the exit status. */
+    private static int bench(String infnam, List<Stmt> program, boolean bytecode, boolean jit, int runs,
+                              PrintStream err)
+        throws IOException
+    {
+        OutputStream discard = new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        };
+        PrintStream quiet = new PrintStream(discard);
+        Bytecode bc = null;
+        if (bytecode) {
+            long t = System.nanoTime();
+            bc = new Bytecode(infnam, program, err);
+            err.printf("lowered to %d ints in %.3f ms%n", bc.size(), (System.nanoTime() - t) / 1e6);
+        }
+        Method run = null;
+        if (jit) {
+            long t = System.nanoTime();
+            ClassFile cf = JvmCompiler.compile("XpresProgram", infnam, program, err);
+            if (cf == null) return 1;
+            run = JvmCompiler.load(cf);
+            err.printf("compiled and loaded in %.3f ms%n", (System.nanoTime() - t) / 1e6);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            if (jit) {
+                runJit(run, quiet);
+            } else if (bytecode) {
+                bc.run(discard);
+            } else {
+                interpret(new Interpreter(infnam, quiet, err), program);
+            }
         }
-        CharStream input = CharStreams.fromFileName(infnam);
-        XpresLexer lexer = new XpresLexer(input);
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        XpresParser parser = new XpresParser(tokens);
-        ParseTree tree = parser.code();
-        ParseTreeWalker walker = new ParseTreeWalker();
-        walker.walk(new Interpreter(infnam), tree);
+        double secs = (System.nanoTime() - start) / 1e9;
+        err.printf("%d runs in %.3f s: %.3f ms/run%n", runs, secs, secs * 1000 / runs);
+        return 0;
     }
 }
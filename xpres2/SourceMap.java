@@ -0,0 +1,147 @@
+package xpres2;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A map from code addresses to the source lines they were compiled from, for
+ * profiling (see HackCpu -profile). The code of a statement is an entry: its
+ * start address, line and what kind of statement it is, and it lasts until
+ * the start of the next entry. Shared routines, emitted in the middle of the
+ * code of the statement that first needs them, get entries of their own,
+ * with line 0, and so do the start and end of the program.
+ *
+ * The map is written to a text file next to the code (see fileFor): a line
+ * "source file", then a line "address line what" for each entry, and last a
+ * line "end address".
+ */
+public class SourceMap {
+    private final String source;
+    private int[] addrs = new int[256];
+    private int[] lines = new int[256];
+    private String[] whats = new String[256];
+    private int n = 0;
+    private int end = 0;
+
+    // Where a routine interrupted the code of a statement (see beginRoutine).
+    private int outerLine;
+    private String outerWhat;
+
+    /** Creates an empty map of code compiled from the file source. */
+    public SourceMap(String source) {
+        this.source = source;
+    }
+
+    /** Returns the name of the source file. */
+    public String getSource() {
+        return source;
+    }
+
+    /** Records that the code from addr on is for what on the given line. An
+      * earlier entry for the same address is replaced, since it has no code. */
+    public void add(int addr, int line, String what) {
+        if (n > 0 && addrs[n - 1] == addr) n--;
+        if (n == addrs.length) {
+            addrs = Arrays.copyOf(addrs, 2 * n);
+            lines = Arrays.copyOf(lines, 2 * n);
+            whats = Arrays.copyOf(whats, 2 * n);
+        }
+        addrs[n] = addr;
+        lines[n] = line;
+        whats[n] = what;
+        n++;
+        end = Math.max(end, addr);
+    }
+
+    /** Records that a routine starts at addr, in the middle of the code of the
+      * current entry, which goes on at endRoutine. */
+    void beginRoutine(int addr, String what) {
+        outerLine = n > 0 ? lines[n - 1] : 0;
+        outerWhat = n > 0 ? whats[n - 1] : "start";
+        add(addr, 0, what);
+    }
+
+    void endRoutine(int addr) {
+        add(addr, outerLine, outerWhat);
+    }
+
+    /** Records the address where the code ends. */
+    public void setEnd(int addr) {
+        end = addr;
+    }
+
+    /** Moves the entries to new addresses, after Peephole.optimize changed the
+      * code: element i of map is the new address of the instruction that was
+      * at address i, with one extra for the end of the code. */
+    public void relocate(int[] map) {
+        for (int i = 0; i < n; i++) {
+            addrs[i] = map[addrs[i]];
+        }
+        end = map[end];
+    }
+
+    /** Returns the number of entries. */
+    public int size() { return n; }
+
+    /** Returns the start address of entry i. */
+    public int getAddr(int i) { return addrs[i]; }
+
+    /** Returns the address after the code of entry i. */
+    public int getEnd(int i) { return i + 1 < n ? addrs[i + 1] : end; }
+
+    /** Returns the source line of entry i, or 0 for code not from a line. */
+    public int getLine(int i) { return lines[i]; }
+
+    /** Returns what kind of code entry i is, such as "print" or "multiply
+      * routine". */
+    public String getWhat(int i) { return whats[i]; }
+
+    /** Returns the name of the map file for a code file: the name without
+      * .hack or .hackb, with .map added. */
+    public static String fileFor(String codeFile) {
+        String name = codeFile;
+        if (name.endsWith(".hackb")) {
+            name = name.substring(0, name.length() - 6);
+        } else if (name.endsWith(".hack")) {
+            name = name.substring(0, name.length() - 5);
+        }
+        return name + ".map";
+    }
+
+    /** Writes the map to a file. */
+    public void write(String fnam) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fnam), "UTF-8"));
+        try {
+            w.write("source " + source + "\n");
+            for (int i = 0; i < n; i++) {
+                w.write(addrs[i] + " " + lines[i] + " " + whats[i] + "\n");
+            }
+            w.write("end " + end + "\n");
+        } finally {
+            w.close();
+        }
+    }
+
+    /** Reads a map written by write. */
+    public static SourceMap read(String fnam) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(fnam), "UTF-8"));
+        try {
+            String line = r.readLine();
+            if (line == null || !line.startsWith("source ")) {
+                throw new IOException(fnam + ": not a source map");
+            }
+            SourceMap map = new SourceMap(line.substring(7));
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("end ")) {
+                    map.setEnd(Integer.parseInt(line.substring(4)));
+                    break;
+                }
+                String[] f = line.split(" ", 3);
+                map.add(Integer.parseInt(f[0]), Integer.parseInt(f[1]), f[2].intern());
+            }
+            return map;
+        } finally {
+            r.close();
+        }
+    }
+}
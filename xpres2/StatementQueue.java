@@ -0,0 +1,98 @@
+package xpres2;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads the statements of another StatementSource on a thread of its own,
+ * and hands them over through a bounded queue, so that parsing is done at
+ * the same time as compiling (for CompileXpres -pipeline). Statements are
+ * passed a batch at a time, to keep the cost of the queue down. If the
+ * statements are not read to the end, close has to be called, or the parser
+ * thread waits for room in the queue forever.
+ */
+public class StatementQueue implements StatementSource {
+    private static final int BatchSize = 1024;
+    private static final int Batches = 16;     // the most batches in the queue
+
+    // A batch with no statements marks the end.
+    private final BlockingQueue<List<Stmt>> queue = new ArrayBlockingQueue<List<Stmt>>(Batches);
+    private List<Stmt> batch = Collections.emptyList();
+    private int next = 0;
+    private boolean done = false;
+    private final StatementSource source;
+    private volatile Throwable failure;
+    private volatile boolean closed = false;
+
+    /** Starts reading the statements of source. */
+    public StatementQueue(final StatementSource source) {
+        this.source = source;
+        Thread t = new Thread("parser") {
+            public void run() {
+                try {
+                    ArrayList<Stmt> b = new ArrayList<Stmt>(BatchSize);
+                    for (Stmt s = source.next(); s != null; s = source.next()) {
+                        b.add(s);
+                        if (b.size() == BatchSize) {
+                            if (!handOver(b)) return;
+                            b = new ArrayList<Stmt>(BatchSize);
+                        }
+                    }
+                    if (!b.isEmpty()) handOver(b);
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    handOver(Collections.<Stmt>emptyList());
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Puts a batch in the queue, waiting for room until it is closed.
+      * Returns false if it was closed. */
+    private boolean handOver(List<Stmt> b) {
+        try {
+            while (!closed) {
+                if (queue.offer(b, 100, TimeUnit.MILLISECONDS)) return true;
+            }
+        } catch (InterruptedException e) { }
+        return false;
+    }
+
+    /** Stops reading statements. The parser thread ends when it has parsed
+      * the statement it is at. */
+    public void close() {
+        closed = true;
+    }
+
+    /** Returns the next statement, or null at the end. An exception in the
+      * parser is thrown here, at the point where it happened. */
+    public Stmt next() throws IOException {
+        if (next == batch.size()) {
+            if (done) return null;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            next = 0;
+            if (batch.isEmpty()) {
+                done = true;
+                if (failure instanceof IOException) throw (IOException) failure;
+                if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+                if (failure instanceof Error) throw (Error) failure;
+                return null;
+            }
+        }
+        return batch.get(next++);
+    }
+
+    /** Returns the number of syntax errors the parser has reported, which
+      * is only up to date when next has returned null. */
+    public int getErrors() {
+        return source.getErrors();
+    }
+}
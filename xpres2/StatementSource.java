@@ -0,0 +1,15 @@
+package xpres2;
+
+import java.io.IOException;
+
+/**
+ * A parser that gives the statements of a program one at a time (see
+ * StatementStream and DescentParser).
+ */
+public interface StatementSource {
+    /** Returns the next statement, or null at the end of the program. */
+    Stmt next() throws IOException;
+
+    /** Returns the number of syntax errors reported so far. */
+    int getErrors();
+}
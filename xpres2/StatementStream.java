@@ -0,0 +1,105 @@
+package xpres2;
+
+import java.io.*;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.IntervalSet;
+import xpres2.grammar.*;
+
+/**
+ * Parses a program a statement at a time, for compiling or running it while
+ * it is read. Characters and tokens are read through unbuffered streams, and
+ * only the parse tree for the current statement is built, so memory use does
+ * not grow with the length of the program.
+ */
+public class StatementStream implements StatementSource {
+    private final UnbufferedTokenStream<Token> tokens;
+    private final XpresParser parser;
+    private final TreeBuilder.SyntaxErrors errors;
+
+    /** Creates a stream of the statements read from r. Syntax errors are
+      * reported to err, as "infnam:line: message". */
+    public StatementStream(String infnam, Reader r, PrintStream err) {
+        errors = new TreeBuilder.SyntaxErrors(infnam, err);
+        XpresLexer lexer = new XpresLexer(new UnbufferedCharStream(r)) {
+            // Lexer.notifyListeners asks for the text up to and including
+            // the character where the error was found, which an
+            // UnbufferedCharStream cannot give when that is EOF.
+            @Override
+            public void notifyListeners(LexerNoViableAltException e) {
+                int stop = _input.LA(1) == IntStream.EOF ? _input.index() - 1 : _input.index();
+                String text = _input.getText(Interval.of(_tokenStartCharIndex, stop));
+                getErrorListenerDispatch().syntaxError(this, null, _tokenStartLine, _tokenStartCharPositionInLine,
+                                                       "token recognition error at: '" + getErrorDisplay(text) + "'", e);
+            }
+        };
+        TreeBuilder.reportErrors(lexer, errors);
+        // The text of tokens has to be copied, since the characters are not
+        // kept in the char stream.
+        lexer.setTokenFactory(new CommonTokenFactory(true));
+        tokens = new UnbufferedTokenStream<Token>(lexer);
+        parser = new XpresParser(tokens);
+        parser.setErrorHandler(new Resync());
+        TreeBuilder.reportErrors(parser, errors);
+    }
+
+    /** Returns the next statement, or null at the end of the input. Syntax
+      * errors are reported by the parser, and statements with errors are
+      * skipped. */
+    public Stmt next() {
+        while (true) {
+            int before = tokens.index();
+            XpresParser.NextStatementContext ctx = parser.nextStatement();
+            if (ctx.statement() != null && TreeBuilder.isValid(ctx.statement(), errors)) {
+                return TreeBuilder.stmt(ctx.statement());
+            }
+            if (tokens.LA(1) == Token.EOF) {
+                return null;
+            }
+            // Recovery stops in front of the ';' or '}' that ends the
+            // statement with the error (see Resync), which goes with it.
+            Token last = ctx.getStop();
+            boolean ended = last != null && last.getTokenIndex() >= before && Resync.ends(last.getType());
+            if (!ended && Resync.ends(tokens.LA(1)) || tokens.index() == before) {
+                tokens.consume();   // also makes sure that an error makes progress
+            }
+        }
+    }
+
+    /** Error recovery that also stops at a ';' or '}'. The parser recovers
+      * from an error in a rule by skipping to a token that can follow the
+      * rule, and since a statement at the top level is followed only by EOF
+      * here, an error there would otherwise skip the rest of the program. */
+    private static class Resync extends DefaultErrorStrategy {
+        private static final int Semi = tokenType("';'"), Close = tokenType("'}'");
+
+        private static int tokenType(String literal) {
+            for (int t = 1; t <= XpresParser.VOCABULARY.getMaxTokenType(); t++) {
+                if (literal.equals(XpresParser.VOCABULARY.getLiteralName(t))) return t;
+            }
+            throw new IllegalStateException("no token " + literal);
+        }
+
+        static boolean ends(int type) {
+            return type == Semi || type == Close;
+        }
+
+        @Override
+        protected IntervalSet getErrorRecoverySet(Parser recognizer) {
+            IntervalSet set = super.getErrorRecoverySet(recognizer);
+            set.add(Semi);
+            set.add(Close);
+            return set;
+        }
+
+        // The text of EOF is empty when text is copied, instead of <EOF>.
+        @Override
+        protected String getTokenErrorDisplay(Token t) {
+            return t != null && t.getType() == Token.EOF ? "'<EOF>'" : super.getTokenErrorDisplay(t);
+        }
+    }
+
+    public int getErrors() {
+        return errors.getCount();
+    }
+}
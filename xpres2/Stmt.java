@@ -0,0 +1,113 @@
+package xpres2;
+
+import java.util.*;
+
+/**
+ * A statement, with its expression as a tree (see Expr). A program is a list of
+ * these, which makes it possible for the compiler to work on the whole program
+ * at once.
+ */
+public abstract class Stmt {
+    /** Source line of the statement. */
+    public final int line;
+
+    protected Stmt(int line) { this.line = line; }
+
+    /** Adds the names of the variables that the statement assigns to, also
+      * in statements inside it, to names. */
+    public void addAssigned(Set<String> names) { }
+
+    /** A variable declaration. */
+    public static class Decl extends Stmt {
+        public final String name;
+
+        public Decl(int line, String name) {
+            super(line);
+            this.name = name;
+        }
+
+        public String toString() { return "var " + name; }
+    }
+
+    /** An assignment to a variable. */
+    public static class Assign extends Stmt {
+        public final String name;
+        public final Expr expr;
+
+        public Assign(int line, String name, Expr expr) {
+            super(line);
+            this.name = name;
+            this.expr = expr;
+        }
+
+        public void addAssigned(Set<String> names) { names.add(name); }
+
+        public String toString() { return name + " = " + expr; }
+    }
+
+    /** A print statement. */
+    public static class Print extends Stmt {
+        public final Expr expr;
+
+        public Print(int line, Expr expr) {
+            super(line);
+            this.expr = expr;
+        }
+
+        public String toString() { return "print " + expr; }
+    }
+
+    /** A while loop. The statements of the body are not declarations. */
+    public static class While extends Stmt {
+        public final Cond cond;
+        public final List<Stmt> body;
+
+        public While(int line, Cond cond, List<Stmt> body) {
+            super(line);
+            this.cond = cond;
+            this.body = body;
+        }
+
+        public void addAssigned(Set<String> names) { addAssigned(body, names); }
+
+        public String toString() { return "while (" + cond + ") " + block(body); }
+    }
+
+    /** An if statement, with an else part that may be empty. The statements
+      * of the parts are not declarations. */
+    public static class If extends Stmt {
+        public final Cond cond;
+        public final List<Stmt> thenPart, elsePart;
+
+        public If(int line, Cond cond, List<Stmt> thenPart, List<Stmt> elsePart) {
+            super(line);
+            this.cond = cond;
+            this.thenPart = thenPart;
+            this.elsePart = elsePart;
+        }
+
+        public void addAssigned(Set<String> names) {
+            addAssigned(thenPart, names);
+            addAssigned(elsePart, names);
+        }
+
+        public String toString() {
+            return "if (" + cond + ") " + block(thenPart) + (elsePart.isEmpty() ? "" : " else " + block(elsePart));
+        }
+    }
+
+    /** Adds the names of the variables assigned to by statements to names. */
+    public static void addAssigned(List<Stmt> stmts, Set<String> names) {
+        for (Stmt s : stmts) {
+            s.addAssigned(names);
+        }
+    }
+
+    private static String block(List<Stmt> stmts) {
+        StringBuilder sb = new StringBuilder("{ ");
+        for (Stmt s : stmts) {
+            sb.append(s).append("; ");
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,149 @@
+package xpres2;
+
+import java.io.*;
+
+/**
+ * Where the compiler traces what it emits. A record is the code address, the
+ * source line, an action and an int argument; the message for it is only
+ * made when it is written, so tracing that is off costs a test of a final
+ * field. The level says what is recorded: nothing, a record per statement,
+ * or also one per operation on the stack.
+ *
+ * Records are written as text, through a buffer, to a stream or file (see
+ * to), or kept in a ring buffer of the last ones, which are written when the
+ * trace is finished (see ring).
+ */
+public abstract class Trace {
+    public enum Level { OFF, STATEMENTS, OPERATIONS }
+
+    /** What a record is about. The message has %d where the argument goes. */
+    public enum Action {
+        INIT_SP("Initialize SP", true),
+        ASSIGN("Statement: assign to %d", true),
+        PRINT("Statement: print", true),
+        WHILE("Statement: while", true),
+        IF("Statement: if", true),
+        HALT("Halt", true),
+        SPILL("Spill D to stack", false),
+        PUSH_CONST("Push %d on stack", false),
+        PUSH_VAR("Push contents of %d on stack", false),
+        POP_STORE("Pop from stack and put in %d", false),
+        POP_PRINT("Pop from stack and print", false),
+        ADD_TOP("Add top two numbers on the stack, leaving the sum", false),
+        ADD_VAR("Add contents of %d to D", false),
+        ADD_CONST("Add %d to D", false),
+        MUL_CONST("Multiply top of stack by %d", false),
+        MUL_TOP("Multiply top two numbers on the stack, leaving the product", false),
+        COMPARE_VAR("Compare D with contents of %d, and jump if the condition holds", false),
+        COMPARE_CONST("Compare D with %d, and jump if the condition holds", false),
+        COMPARE_TOP("Compare top two numbers on the stack, and jump if the condition holds", false),
+        JUMP("Jump", false);
+
+        final String message;
+        final boolean statement;   // recorded at the STATEMENTS level
+
+        Action(String message, boolean statement) {
+            this.message = message;
+            this.statement = statement;
+        }
+    }
+
+    /** A trace that records nothing. */
+    public static final Trace OFF = new Trace(Level.OFF) {
+        void write(int addr, int line, Action action, int arg) { }
+    };
+
+    private static final int BufferSize = 65536;
+
+    private final Level level;
+
+    protected Trace(Level level) {
+        this.level = level;
+    }
+
+    /** Returns true if records about action are kept. */
+    public final boolean isOn(Action action) {
+        return level == Level.OPERATIONS || level == Level.STATEMENTS && action.statement;
+    }
+
+    /** Records an action at a code address and source line, if its level is
+      * traced. */
+    public final void record(int addr, int line, Action action, int arg) {
+        if (isOn(action)) write(addr, line, action, arg);
+    }
+
+    abstract void write(int addr, int line, Action action, int arg);
+
+    /** Writes out what is buffered or kept. Called when compiling is done. */
+    public void finish() throws IOException { }
+
+    /** Returns the text of a record. */
+    static String format(int addr, int line, Action action, int arg) {
+        StringBuilder sb = new StringBuilder(80);
+        sb.append("At operation ").append(addr);
+        if (line > 0) sb.append(", line ").append(line);
+        sb.append(": ");
+        String m = action.message;
+        int p = m.indexOf("%d");
+        if (p < 0) {
+            sb.append(m);
+        } else {
+            sb.append(m, 0, p).append(arg).append(m, p + 2, m.length());
+        }
+        return sb.toString();
+    }
+
+    /** Returns a trace that writes records to out, through a buffer, and
+      * flushes (or, if close, closes) it when finished. */
+    public static Trace to(Level level, OutputStream out, final boolean close) throws IOException {
+        if (level == Level.OFF) return OFF;
+        final Writer w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BufferSize);
+        return new Trace(level) {
+            void write(int addr, int line, Action action, int arg) {
+                try {
+                    w.write(format(addr, line, action, arg));
+                    w.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            public void finish() throws IOException {
+                if (close) {
+                    w.close();
+                } else {
+                    w.flush();
+                }
+            }
+        };
+    }
+
+    /** Returns a trace that keeps the last size records in memory, and
+      * writes them to out when finished. */
+    public static Trace ring(Level level, final int size, final PrintStream out) {
+        if (level == Level.OFF) return OFF;
+        return new Trace(level) {
+            private final int[] addrs = new int[size], lines = new int[size], args = new int[size];
+            private final Action[] actions = new Action[size];
+            private long count = 0;
+
+            void write(int addr, int line, Action action, int arg) {
+                int i = (int) (count++ % size);
+                addrs[i] = addr;
+                lines[i] = line;
+                actions[i] = action;
+                args[i] = arg;
+            }
+
+            public void finish() {
+                long first = Math.max(0, count - size);
+                if (first > 0) out.println("(" + first + " earlier trace records not kept)");
+                for (long c = first; c < count; c++) {
+                    int i = (int) (c % size);
+                    out.println(format(addrs[i], lines[i], actions[i], args[i]));
+                }
+                out.flush();
+            }
+        };
+    }
+}
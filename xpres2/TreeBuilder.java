@@ -0,0 +1,190 @@
+package xpres2;
+
+import xpres2.grammar.*;
+import java.util.*;
+import java.io.*;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+
+/**
+ * Converts parts of the parse tree into the statements and expression trees
+ * that the compiler and interpreter work with.
+ */
+public class TreeBuilder {
+    private TreeBuilder() { }
+
+    /** Reports the syntax errors of lexers and parsers (see reportErrors),
+      * and of the parse tree (see isValid), to err as "infnam:line: message",
+      * like other errors, and counts them. */
+    public static class SyntaxErrors extends BaseErrorListener {
+        private final String infnam;
+        private final PrintStream err;
+        private int count = 0;
+
+        public SyntaxErrors(String infnam, PrintStream err) {
+            this.infnam = infnam;
+            this.err = err;
+        }
+
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                int charPositionInLine, String msg, RecognitionException e) {
+            report(line, msg);
+        }
+
+        void report(int line, String msg) {
+            count++;
+            err.println(infnam + ":" + line + ": " + msg);
+        }
+
+        /** Returns the number of errors reported so far. */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    /** Parses a program read from in with the ANTLR parser, and returns its
+      * statements. Syntax errors are reported to err, and if there are any,
+      * null is returned instead. */
+    public static List<Stmt> parse(String infnam, Reader in, PrintStream err) throws IOException {
+        SyntaxErrors errors = new SyntaxErrors(infnam, err);
+        XpresLexer lexer = new XpresLexer(CharStreams.fromReader(in, infnam));
+        reportErrors(lexer, errors);
+        XpresParser parser = new XpresParser(new CommonTokenStream(lexer));
+        reportErrors(parser, errors);
+        XpresParser.CodeContext code = parser.file().code();
+        for (XpresParser.StatementContext s : code.statement()) {
+            isValid(s, errors);
+        }
+        return errors.getCount() > 0 ? null : program(code);
+    }
+
+    /** Makes a lexer or parser report its syntax errors to errors. */
+    public static void reportErrors(Recognizer<?, ?> r, SyntaxErrors errors) {
+        r.removeErrorListeners();
+        r.addErrorListener(errors);
+    }
+
+    /** Returns true if a part of the parse tree can be made into statements
+      * and expressions. It cannot if the parser recovered from a syntax
+      * error in it, which leaves out parts or puts in error nodes (the error
+      * has been reported by the parser), or if it has an integer that does
+      * not fit in an int (which is reported to errors here). */
+    public static boolean isValid(ParserRuleContext ctx, SyntaxErrors errors) {
+        if (ctx.exception != null) return false;
+        // A missing operator that the parser put in is not in the tree as an
+        // error node, since the parser matches it as a set, not as a token.
+        if (ctx instanceof XpresParser.CondContext && ((XpresParser.CondContext) ctx).op.getTokenIndex() < 0) {
+            return false;
+        }
+        if (ctx.children == null) return true;
+        for (ParseTree child : ctx.children) {
+            if (child instanceof ErrorNode) {
+                return false;
+            } else if (child instanceof ParserRuleContext) {
+                if (!isValid((ParserRuleContext) child, errors)) return false;
+            } else {
+                Token t = ((TerminalNode) child).getSymbol();
+                if (t.getType() == XpresParser.INT) {
+                    try {
+                        Integer.parseInt(t.getText());
+                    } catch (NumberFormatException e) {
+                        errors.report(t.getLine(), "integer too large: " + t.getText());
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Returns the statements of a whole program, in order. */
+    public static List<Stmt> program(XpresParser.CodeContext ctx) {
+        ArrayList<Stmt> program = new ArrayList<Stmt>();
+        for (XpresParser.StatementContext s : ctx.statement()) {
+            program.add(stmt(s));
+        }
+        return program;
+    }
+
+    /** Returns the statement for a statement in the parse tree, which must be
+      * valid (see isValid). */
+    public static Stmt stmt(XpresParser.StatementContext ctx) {
+        if (ctx.decl() != null) {
+            Token id = ctx.decl().ID().getSymbol();
+            return new Stmt.Decl(id.getLine(), id.getText());
+        }
+        return action(ctx.action());
+    }
+
+    private static Stmt action(XpresParser.ActionContext ctx) {
+        if (ctx.assign() != null) {
+            Token id = ctx.assign().ID().getSymbol();
+            return new Stmt.Assign(id.getLine(), id.getText(), expr(ctx.assign().expr()));
+        } else if (ctx.print() != null) {
+            return new Stmt.Print(ctx.getStart().getLine(), expr(ctx.print().expr()));
+        } else if (ctx.whileLoop() != null) {
+            XpresParser.WhileLoopContext w = ctx.whileLoop();
+            return new Stmt.While(w.getStart().getLine(), cond(w.cond()), block(w.block()));
+        } else {
+            return ifElse(ctx.ifElse());
+        }
+    }
+
+    private static Stmt ifElse(XpresParser.IfElseContext ctx) {
+        List<Stmt> elsePart;
+        if (ctx.ifElse() != null) {
+            elsePart = Collections.singletonList(ifElse(ctx.ifElse()));
+        } else if (ctx.block().size() > 1) {
+            elsePart = block(ctx.block(1));
+        } else {
+            elsePart = Collections.emptyList();
+        }
+        return new Stmt.If(ctx.getStart().getLine(), cond(ctx.cond()), block(ctx.block(0)), elsePart);
+    }
+
+    private static List<Stmt> block(XpresParser.BlockContext ctx) {
+        ArrayList<Stmt> stmts = new ArrayList<Stmt>();
+        for (XpresParser.ActionContext a : ctx.action()) {
+            stmts.add(action(a));
+        }
+        return stmts;
+    }
+
+    /** Returns the condition for a comparison in the parse tree. */
+    public static Cond cond(XpresParser.CondContext ctx) {
+        return new Cond(ctx.getStart().getLine(), Cond.Op.of(ctx.op.getText()),
+                        expr(ctx.expr(0)), expr(ctx.expr(1)));
+    }
+
+    /** Returns the expression tree for an expression in the parse tree. */
+    public static Expr expr(XpresParser.ExprContext ctx) {
+        return addExpr(ctx.addExpr());
+    }
+
+    private static Expr addExpr(XpresParser.AddExprContext ctx) {
+        if (ctx.addExpr() == null) {
+            return mulExpr(ctx.mulExpr());
+        }
+        return new Expr.Binary(ctx.getStart().getLine(), Expr.Op.ADD,
+                               addExpr(ctx.addExpr()), mulExpr(ctx.mulExpr()));
+    }
+
+    private static Expr mulExpr(XpresParser.MulExprContext ctx) {
+        if (ctx.mulExpr() == null) {
+            return atomExpr(ctx.atomExpr());
+        }
+        return new Expr.Binary(ctx.getStart().getLine(), Expr.Op.MUL,
+                               mulExpr(ctx.mulExpr()), atomExpr(ctx.atomExpr()));
+    }
+
+    private static Expr atomExpr(XpresParser.AtomExprContext ctx) {
+        if (ctx.ID() != null) {
+            return new Expr.Var(ctx.ID().getSymbol().getLine(), ctx.ID().getText());
+        } else if (ctx.INT() != null) {
+            return new Expr.Const(ctx.INT().getSymbol().getLine(), Integer.parseInt(ctx.INT().getText()));
+        } else {
+            return expr(ctx.expr());
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package xpres2;
+
+import java.util.*;
+
+/**
+ * Common subexpression elimination by local value numbering. Every value
+ * computed by the program gets a number, such that subexpressions with the same
+ * number are known to have the same value. When a value is computed more than
+ * once, the first computation is moved to an assignment to a temporary
+ * variable, and the following ones are replaced by the temporary. If a user
+ * variable already holds the value (because it was assigned it, and has not
+ * been assigned since), it is used instead.
+ *
+ * Temporary variables get names that cannot occur in programs, and are
+ * declared just before they are first assigned. A temporary that is no longer
+ * used is given to the next one that is needed, so that the number of
+ * variables declared is the most that are used at the same time, and not the
+ * number of values hoisted.
+ *
+ * While loops and if statements are left as they are, and the variables
+ * they assign get new value numbers after them, as if assigned unknown
+ * values.
+ */
+public class ValueNumbering {
+    private static final String TempPrefix = "$";
+
+    private final HashMap<String, Integer> numbers = new HashMap<String, Integer>(); // key -> value number
+    private final HashMap<String, Integer> varNumber = new HashMap<String, Integer>(); // variable -> its value number
+    private final HashMap<Integer, String> holder = new HashMap<Integer, String>();    // value number -> variable
+    private int nextNumber = 0;
+    private int temps = 0;
+
+    private ValueNumbering() { }
+
+    /** Returns the program with common subexpressions replaced by variables. The
+      * statements given are not changed. */
+    public static List<Stmt> run(List<Stmt> program) {
+        // First count how many times each value would be computed, and then do
+        // the replacement, with numbers given out in the same order.
+        HashMap<Integer, Integer> count = new ValueNumbering().count(program);
+        return reuseTemps(new ValueNumbering().replace(program, count));
+    }
+
+    /** Renames the temporaries of a program, so that each one takes the
+      * lowest-numbered temporary that is no longer used, and leaves out the
+      * declarations of those that already are declared. A temporary is no
+      * longer used after the last statement that reads it. */
+    private static List<Stmt> reuseTemps(List<Stmt> program) {
+        HashMap<String, Integer> lastUse = new HashMap<String, Integer>();
+        for (int i = 0; i < program.size(); i++) {
+            Expr e = exprOf(program.get(i));
+            if (e != null) addUses(e, i, lastUse);
+        }
+        HashMap<Integer, List<String>> dying = new HashMap<Integer, List<String>>(); // statement -> temporaries last used by it
+        for (Map.Entry<String, Integer> u : lastUse.entrySet()) {
+            List<String> d = dying.get(u.getValue());
+            if (d == null) dying.put(u.getValue(), d = new ArrayList<String>());
+            d.add(u.getKey());
+        }
+
+        ArrayList<Stmt> result = new ArrayList<Stmt>(program.size());
+        HashMap<String, Integer> slot = new HashMap<String, Integer>(); // temporary -> number of the one it is renamed to
+        TreeSet<Integer> free = new TreeSet<Integer>();
+        int slots = 0;
+        for (int i = 0; i < program.size(); i++) {
+            Stmt s = program.get(i);
+            if (s instanceof Stmt.Decl && isTemp(((Stmt.Decl) s).name)) {
+                Integer k = free.pollFirst();
+                if (k == null) {
+                    k = slots++;
+                    result.add(new Stmt.Decl(s.line, TempPrefix + k));
+                }
+                slot.put(((Stmt.Decl) s).name, k);
+            } else if (s instanceof Stmt.Assign) {
+                Stmt.Assign a = (Stmt.Assign) s;
+                Integer k = slot.get(a.name);
+                String name = k == null ? a.name : TempPrefix + k;
+                Expr e = rename(a.expr, slot);
+                result.add(name.equals(a.name) && e == a.expr ? s : new Stmt.Assign(a.line, name, e));
+            } else if (s instanceof Stmt.Print) {
+                Stmt.Print p = (Stmt.Print) s;
+                Expr e = rename(p.expr, slot);
+                result.add(e == p.expr ? s : new Stmt.Print(p.line, e));
+            } else {
+                result.add(s);
+            }
+            List<String> d = dying.get(i);
+            if (d != null) {
+                for (String t : d) {
+                    free.add(slot.get(t));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the expression of an assignment or print statement, or null. */
+    private static Expr exprOf(Stmt s) {
+        if (s instanceof Stmt.Assign) return ((Stmt.Assign) s).expr;
+        if (s instanceof Stmt.Print) return ((Stmt.Print) s).expr;
+        return null;
+    }
+
+    /** Records that the temporaries in e are used by statement i. */
+    private static void addUses(Expr e, int i, HashMap<String, Integer> lastUse) {
+        if (e instanceof Expr.Var) {
+            String name = ((Expr.Var) e).name;
+            if (isTemp(name)) lastUse.put(name, i);
+        } else if (e instanceof Expr.Binary) {
+            addUses(((Expr.Binary) e).left, i, lastUse);
+            addUses(((Expr.Binary) e).right, i, lastUse);
+        }
+    }
+
+    /** Returns e with its temporaries renamed as given by slot. */
+    private static Expr rename(Expr e, HashMap<String, Integer> slot) {
+        if (e instanceof Expr.Var) {
+            Integer k = slot.get(((Expr.Var) e).name);
+            return k == null ? e : new Expr.Var(e.line, TempPrefix + k);
+        }
+        if (!(e instanceof Expr.Binary)) {
+            return e;
+        }
+        Expr.Binary b = (Expr.Binary) e;
+        Expr l = rename(b.left, slot);
+        Expr r = rename(b.right, slot);
+        return l == b.left && r == b.right ? b : new Expr.Binary(b.line, b.op, l, r);
+    }
+
+    private static boolean isTemp(String name) {
+        return name.startsWith(TempPrefix);
+    }
+
+    private HashMap<Integer, Integer> count(List<Stmt> program) {
+        HashMap<Integer, Integer> count = new HashMap<Integer, Integer>();
+        for (Stmt s : program) {
+            if (s instanceof Stmt.Assign) {
+                Stmt.Assign a = (Stmt.Assign) s;
+                assigned(a.name, countIn(a.expr, count));
+            } else if (s instanceof Stmt.Print) {
+                countIn(((Stmt.Print) s).expr, count);
+            } else if (s instanceof Stmt.Decl) {
+                assigned(((Stmt.Decl) s).name, newNumber());
+            } else {
+                assignedIn(s);
+            }
+        }
+        return count;
+    }
+
+    /** Counts computations in e of values not held by variables, and returns
+      * the value number of e. */
+    private int countIn(Expr e, HashMap<Integer, Integer> count) {
+        if (!(e instanceof Expr.Binary)) {
+            return number(e);
+        }
+        Expr.Binary b = (Expr.Binary) e;
+        int n = binaryNumber(b, countIn(b.left, count), countIn(b.right, count));
+        if (heldBy(n) == null) {
+            Integer c = count.get(n);
+            count.put(n, c == null ? 1 : c + 1);
+        }
+        return n;
+    }
+
+    private List<Stmt> replace(List<Stmt> program, HashMap<Integer, Integer> count) {
+        ArrayList<Stmt> result = new ArrayList<Stmt>(program.size());
+        for (Stmt s : program) {
+            if (s instanceof Stmt.Decl) {
+                assigned(((Stmt.Decl) s).name, newNumber());
+                result.add(s);
+                continue;
+            }
+            if (s instanceof Stmt.While || s instanceof Stmt.If) {
+                assignedIn(s);
+                result.add(s);
+                continue;
+            }
+            Expr e = s instanceof Stmt.Assign ? ((Stmt.Assign) s).expr : ((Stmt.Print) s).expr;
+            ArrayList<Stmt> hoisted = new ArrayList<Stmt>();
+            int[] n = new int[1];
+            Expr r = replaceIn(e, count, hoisted, s.line, n);
+            for (Stmt h : hoisted) {
+                result.add(new Stmt.Decl(h.line, ((Stmt.Assign) h).name));
+                result.add(h);
+            }
+            if (s instanceof Stmt.Assign) {
+                Stmt.Assign a = (Stmt.Assign) s;
+                result.add(r == a.expr ? s : new Stmt.Assign(a.line, a.name, r));
+                assigned(a.name, n[0]);
+            } else {
+                result.add(r == e ? s : new Stmt.Print(s.line, r));
+            }
+        }
+        return result;
+    }
+
+    /** Returns e with values that are held by variables replaced by the
+      * variables. Values that will be needed again are computed in assignments
+      * to temporaries, added to hoisted. The value number of e is left in n[0]. */
+    private Expr replaceIn(Expr e, HashMap<Integer, Integer> count, List<Stmt> hoisted, int line, int[] n) {
+        if (!(e instanceof Expr.Binary)) {
+            n[0] = number(e);
+            return e;
+        }
+        Expr.Binary b = (Expr.Binary) e;
+        Expr l = replaceIn(b.left, count, hoisted, line, n);
+        int ln = n[0];
+        Expr r = replaceIn(b.right, count, hoisted, line, n);
+        int rn = n[0];
+        n[0] = binaryNumber(b, ln, rn);
+
+        String h = heldBy(n[0]);
+        if (h != null) {
+            return new Expr.Var(b.line, h);
+        }
+        Expr result = l == b.left && r == b.right ? b : new Expr.Binary(b.line, b.op, l, r);
+        Integer c = count.get(n[0]);
+        if (c != null && c > 1) {
+            String temp = TempPrefix + temps++;
+            hoisted.add(new Stmt.Assign(line, temp, result));
+            assigned(temp, n[0]);
+            return new Expr.Var(b.line, temp);
+        }
+        return result;
+    }
+
+    /** Returns the value number of a constant or variable. */
+    private int number(Expr e) {
+        if (e instanceof Expr.Const) {
+            return numberOf("c" + ((Expr.Const) e).value);
+        }
+        String name = ((Expr.Var) e).name;
+        Integer n = varNumber.get(name);
+        if (n == null) {    // not seen before (undefined)
+            n = newNumber();
+            varNumber.put(name, n);
+        }
+        return n;
+    }
+
+    /** Returns the value number of a binary operation on two value numbers. */
+    private int binaryNumber(Expr.Binary b, int l, int r) {
+        // Both operators commute, so let the operand order not matter.
+        return numberOf(b.op.symbol + Math.min(l, r) + "," + Math.max(l, r));
+    }
+
+    private int numberOf(String key) {
+        Integer n = numbers.get(key);
+        if (n == null) {
+            n = newNumber();
+            numbers.put(key, n);
+        }
+        return n;
+    }
+
+    private int newNumber() {
+        return nextNumber++;
+    }
+
+    /** Records that a variable now has the value with number n. */
+    private void assigned(String name, int n) {
+        varNumber.put(name, n);
+        if (heldBy(n) == null) {
+            holder.put(n, name);
+        }
+    }
+
+    /** Gives the variables assigned in a loop or if statement new value
+      * numbers, in the same order every time. */
+    private void assignedIn(Stmt s) {
+        TreeSet<String> names = new TreeSet<String>();
+        s.addAssigned(names);
+        for (String name : names) {
+            assigned(name, newNumber());
+        }
+    }
+
+    /** Returns a variable that holds the value with number n, or null. */
+    private String heldBy(int n) {
+        String name = holder.get(n);
+        if (name != null && varNumber.get(name) != n) {
+            return null;    // it has been assigned since
+        }
+        return name;
+    }
+}
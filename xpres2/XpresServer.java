@@ -0,0 +1,334 @@
+package xpres2;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A server that compiles and runs programs for CompileXpres and RunXpres
+ * started with -client, so that each file does not need a JVM of its own.
+ * The server keeps the classes loaded and compiled by HotSpot between
+ * requests, and the ANTLR parser keeps its DFA cache (which is shared by all
+ * parsers for the grammar), so a request only does the actual work.
+ *
+ * Start it with "java xpres2.XpresServer [-timeout=seconds] [port]". It listens on the loopback
+ * interface only, but other users on the machine can connect to that, and it
+ * reads and writes any file the user who started it can. So it writes a
+ * random token to a file in the user's home directory (see tokenFile) that
+ * only the user can read, and serves only clients that send the token. A
+ * client that has it is the same user (or root), and may use any path, as
+ * when running the tool directly.
+ *
+ * A request is the token, the tool ("compile" or "run"), the directory of
+ * the client, that relative file names are resolved against, and the
+ * command line arguments. The reply is the output and error output of the
+ * tool, in frames of a kind byte (Out or Err) and a length, ending with an
+ * Exit frame with the exit status.
+ *
+ * A request is stopped if the client closes the connection, or if it takes
+ * longer than the time limit (-timeout, 0 for none), since a program with a
+ * while loop may never end, and would otherwise keep a thread of the pool
+ * for good. The thread serving it is interrupted, which makes the loops of
+ * the interpreters and compiled programs throw CancellationException.
+ */
+public class XpresServer {
+    public static final int DefaultPort = 4711;
+
+    // Frame kinds of the reply.
+    private static final int Exit = 0, Out = 1, Err = 2;
+
+    private static final int BufferSize = 8192;
+
+    // Time to wait for a request, once connected, in milliseconds.
+    private static final int RequestTimeout = 10000;
+
+    // Default time limit for serving a request, in seconds.
+    private static final int DefaultTimeout = 300;
+
+    /** Returns the file with the token of the server on port. */
+    static Path tokenFile(int port) {
+        return Paths.get(System.getProperty("user.home"), ".xpres-server-" + port);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DefaultPort, timeout = DefaultTimeout;
+        try {
+            int i = 0;
+            if (i < args.length && args[i].startsWith("-timeout=")) {
+                timeout = Integer.parseInt(args[i++].substring(9));
+                if (timeout < 0 || timeout > Integer.MAX_VALUE / 1000) throw new NumberFormatException();
+            }
+            if (i < args.length) port = Integer.parseInt(args[i++]);
+            if (i < args.length) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            System.err.println("usage: XpresServer [-timeout=seconds] [port]");
+            System.exit(2);
+        }
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        final String token = writeToken(tokenFile(port));
+        System.err.println("XpresServer listening on port " + port + ", token in " + tokenFile(port));
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        final int limit = timeout;
+        while (true) {
+            final Socket s = server.accept();
+            pool.execute(new Runnable() {
+                public void run() {
+                    serve(s, token, limit);
+                }
+            });
+        }
+    }
+
+    /** Returns name as a file, relative to dir if it is relative and dir is
+      * not null. */
+    static File resolve(File dir, String name) {
+        File f = new File(name);
+        return dir == null || f.isAbsolute() ? f : new File(dir, name);
+    }
+
+    /** Writes a new random token to file, readable and writable by the user
+      * only, and returns it. The file is removed when the server exits. */
+    private static String writeToken(final Path file) throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        String token = sb.toString();
+
+        // Created anew with its permissions, so that no one else can have it
+        // open, or have made it readable.
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file);     // not POSIX: the home directory is the user's own
+        }
+        Files.write(file, token.getBytes("UTF-8"));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) { }
+            }
+        });
+        return token;
+    }
+
+    private static void serve(Socket s, String token, int timeout) {
+        try {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(RequestTimeout);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            if (!MessageDigest.isEqual(in.readUTF().getBytes("UTF-8"), token.getBytes("UTF-8"))) {
+                byte[] msg = "XpresServer: wrong token\n".getBytes("UTF-8");
+                reply.writeByte(Err);
+                reply.writeInt(msg.length);
+                reply.write(msg);
+                reply.writeByte(Exit);
+                reply.writeInt(2);
+                reply.flush();
+                return;
+            }
+            String tool = in.readUTF();
+            File dir = new File(in.readUTF());
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            Watch watch = new Watch(s, in, timeout);
+            watch.start();
+
+            // Flushed at each println, like System.out, so that output and
+            // errors come in the same order as when run directly.
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FrameStream(reply, Out), BufferSize), true);
+            PrintStream err = new PrintStream(new BufferedOutputStream(new FrameStream(reply, Err), BufferSize), true);
+            int status;
+            try {
+                if (tool.equals("compile")) {
+                    status = CompileXpres.run(args, dir, out, err);
+                } else if (tool.equals("run")) {
+                    status = RunXpres.run(args, dir, out, err);
+                } else {
+                    err.println("unknown tool " + tool);
+                    status = 2;
+                }
+            } catch (Exception e) {
+                if (watch.isCancelled()) {
+                    err.println(watch.isTimedOut() ? "XpresServer: stopped after " + timeout + " s" : "XpresServer: stopped");
+                } else {
+                    e.printStackTrace(err);
+                }
+                status = 1;
+            }
+            watch.done();
+            out.flush();
+            err.flush();
+            synchronized (reply) {
+                reply.writeByte(Exit);
+                reply.writeInt(status);
+                reply.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("XpresServer: " + e);
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    /** Watches the connection of a request while it is served, and
+      * interrupts the thread serving it if the client closes the connection
+      * or the time limit is passed. */
+    private static class Watch extends Thread {
+        private final Socket s;
+        private final InputStream in;
+        private final int timeout;      // in seconds, 0 for none
+        private final Thread worker = Thread.currentThread();
+        private boolean done = false, cancelled = false;
+        private volatile boolean timedOut = false;
+
+        Watch(Socket s, InputStream in, int timeout) {
+            super("watch");
+            setDaemon(true);
+            this.s = s;
+            this.in = in;
+            this.timeout = timeout;
+        }
+
+        public void run() {
+            try {
+                s.setSoTimeout(timeout * 1000);
+                while (in.read() >= 0) { }      // the client sends nothing more
+            } catch (SocketTimeoutException e) {
+                timedOut = true;
+            } catch (IOException e) { }         // closed by either side
+            cancel();
+        }
+
+        private synchronized void cancel() {
+            if (!done) {
+                cancelled = true;
+                worker.interrupt();
+            }
+        }
+
+        /** Called by the worker when the request has been served, after
+          * which it is not interrupted. */
+        synchronized void done() {
+            done = true;
+            Thread.interrupted();
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        boolean isTimedOut() {
+            return timedOut;
+        }
+    }
+
+    /** Writes what is written to it as frames of the given kind. A failure
+      * interrupts the thread, since PrintStream hides it, and the client is
+      * gone (see Watch). */
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream reply;
+        private final int kind;
+
+        FrameStream(DataOutputStream reply, int kind) {
+            this.reply = reply;
+            this.kind = kind;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (reply) {
+                try {
+                    reply.writeByte(kind);
+                    reply.writeInt(len);
+                    reply.write(b, off, len);
+                } catch (IOException e) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Returns true if args has the -client option. */
+    static boolean isClient(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("-client") || arg.startsWith("-client=")) return true;
+        }
+        return false;
+    }
+
+    /** Sends a request for the tool with args (without -client) to the
+      * server, with the token from its token file, copies its output to
+      * System.out and System.err, and returns the exit status. Throws
+      * IllegalArgumentException if the port is not a number. */
+    static int request(String tool, String[] args) throws IOException {
+        int port = DefaultPort;
+        ArrayList<String> rest = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("-client=")) {
+                try {
+                    port = Integer.parseInt(arg.substring(8));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad port in " + arg);
+                }
+            } else if (!arg.equals("-client")) {
+                rest.add(arg);
+            }
+        }
+        String token;
+        Socket s;
+        try {
+            token = new String(Files.readAllBytes(tokenFile(port)), "UTF-8").trim();
+            s = new Socket(InetAddress.getLoopbackAddress(), port);
+        } catch (NoSuchFileException | ConnectException e) {
+            System.err.println("no XpresServer on port " + port + " (start it with java xpres2.XpresServer)");
+            return 2;
+        }
+        try {
+            s.setTcpNoDelay(true);
+            DataOutputStream req = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            req.writeUTF(token);
+            req.writeUTF(tool);
+            req.writeUTF(new File("").getAbsolutePath());
+            req.writeInt(rest.size());
+            for (String arg : rest) {
+                req.writeUTF(arg);
+            }
+            req.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            byte[] buf = new byte[BufferSize];
+            while (true) {
+                int kind = in.readByte();
+                if (kind == Exit) {
+                    System.out.flush();
+                    System.err.flush();
+                    return in.readInt();
+                }
+                int len = in.readInt();
+                if (len > buf.length) buf = new byte[len];
+                in.readFully(buf, 0, len);
+                (kind == Out ? System.out : System.err).write(buf, 0, len);
+            }
+        } finally {
+            s.close();
+        }
+    }
+}
@@ -6,18 +6,31 @@ package xpres2.grammar;
 }
 
 file
-: code
+: code EOF
 ;
 
 code
-: statement ';' code
-|
+: statement*
+;
+
+// A statement, or the end of the input. Used for parsing a statement at a
+// time, when streaming (see StatementStream).
+nextStatement
+: statement
+| EOF
 ;
 
 statement
-: decl
-| assign
-| print
+: decl ';'
+| action
+;
+
+// A statement that may be inside a block, which is any but a declaration.
+action
+: assign ';'
+| print ';'
+| whileLoop
+| ifElse
 ;
 
 decl
@@ -32,6 +45,22 @@ print
 : 'print' expr
 ;
 
+whileLoop
+: 'while' '(' cond ')' block
+;
+
+ifElse
+: 'if' '(' cond ')' block ('else' (block | ifElse))?
+;
+
+block
+: '{' action* '}'
+;
+
+cond
+: expr op=('<' | '<=' | '>' | '>=' | '==' | '!=') expr
+;
+
 expr
 : addExpr
 ;